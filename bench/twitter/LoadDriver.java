@@ -0,0 +1,152 @@
+package twitter;
+
+import twitter.persistence.PersistAccessToken;
+import twitter.persistence.PersistConsumerKey;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterFactory;
+import twitter4j.auth.AccessToken;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Generador de carga: N sesiones concurrentes, cada una en su hilo y con
+ * su directorio de datos, ejecutan una mezcla de comandos (timeline,
+ * seguidores, DMs, busqueda y usuarios) contra la api indicada en
+ * -Djtwit.api.url, o contra un MockServer arrancado en el mismo proceso si
+ * no se indica. Al terminar muestra la latencia p50/p90/p99 de cada
+ * comando y de cada endpoint, las peticiones por segundo y los errores.
+ * <p>
+ * Se compila como SessionBench y se ejecuta con:
+ * <pre>
+ * java -cp out/bench:lib/twitter4j-core-4.0.7.jar twitter.LoadDriver [sesiones] [segundos]
+ * </pre>
+ * La latencia y los 429 del servidor se configuran con las propiedades
+ * jtwit.mock.* de MockServer
+ *
+ * @author fsancheztemprano
+ */
+class LoadDriver {
+    /**
+     * comando de la mezcla
+     */
+    @FunctionalInterface
+    interface Command {
+        void run(Session session, SplittableRandom random) throws TwitterException;
+    }
+
+    private static final String[] NAMES = {"timeline", "followers", "dms", "search", "user", "user.timeline"};
+    private static final Command[] COMMANDS = {
+            (session, random) -> session.printTimeline(),
+            (session, random) -> session.printFollowers(null),
+            (session, random) -> session.printDMs(),
+            (session, random) -> session.searchStatus(Collections.singletonList("java"), 100, null, null),
+            (session, random) -> session.showUser(2 + random.nextInt(MockServer.DEFAULT_USERS - 1)),
+            (session, random) -> session.printTimeline("user" + (1 + random.nextInt(MockServer.DEFAULT_USERS)))};
+    /**
+     * peso de cada comando en la mezcla, en el orden de COMMANDS
+     */
+    private static final int[] WEIGHTS = {30, 5, 10, 10, 30, 15};
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+        ApiMetrics.install();
+        MockServer mock = null;
+        if (System.getProperty(Session.API_URL) == null) {
+            mock = MockServer.create();
+            mock.start(0, MockServer.DEFAULT_THREADS);
+            System.setProperty(Session.API_URL, mock.url());
+        }
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(SessionBench.NullStream.INSTANCE));
+        System.setErr(new PrintStream(SessionBench.NullStream.INSTANCE));
+
+        PersistConsumerKey consumer = new PersistConsumerKey();
+        consumer.setDefault();
+        TwitterFactory factory = new TwitterFactory(Session.configuration(consumer).build());
+        File dir = Files.createTempDirectory("jtwit-load").toFile();
+        List<Session> pool = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            Twitter twitter = factory.getInstance(new AccessToken(i + "-token", "secret"));
+            Session session = new Session(twitter, new PersistAccessToken(i + "-token", "secret"), () -> {
+            }, () -> {
+            }, new File(dir, "session" + i));
+            session.setOutput(RowRenderer.Format.TABLE, SessionBench.NullStream.INSTANCE);
+            pool.add(session);
+        }
+
+        ApiMetrics commands = new ApiMetrics();
+        AtomicLong failures = new AtomicLong();
+        long callsBefore = ApiMetrics.GLOBAL.totalCalls();
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            Session session = pool.get(i);
+            SplittableRandom random = new SplittableRandom(SessionBench.SEED + i);
+            workers.add(executor.submit(() -> {
+                while (System.nanoTime() < deadline) {
+                    int command = pick(random);
+                    try {
+                        commands.time(NAMES[command], () -> {
+                            COMMANDS[command].run(session, random);
+                            return null;
+                        });
+                    } catch (TwitterException | RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> worker : workers)
+            worker.get();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        long calls = ApiMetrics.GLOBAL.totalCalls() - callsBefore;
+
+        report.printf(Locale.ROOT, "%d sessions, %.1f s, %d commands (%.1f/s), %d requests (%.1f/s), %d failed commands%n",
+                sessions, elapsed, commands.totalCalls(), commands.totalCalls() / elapsed, calls, calls / elapsed, failures.get());
+        if (mock != null)
+            report.printf("mock: %d requests, %d rate limited%n", mock.getRequests(), mock.getRateLimited());
+        report.println("\ncommands:");
+        report.print(commands.report());
+        report.println("\nendpoints:");
+        report.print(ApiMetrics.GLOBAL.report());
+        if (mock != null)
+            mock.stop();
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+        System.exit(0);
+    }
+
+    private static int pick(SplittableRandom random) {
+        int total = 0;
+        for (int weight : WEIGHTS)
+            total += weight;
+        int value = random.nextInt(total);
+        for (int i = 0; i < WEIGHTS.length; i++) {
+            value -= WEIGHTS[i];
+            if (value < 0)
+                return i;
+        }
+        return 0;
+    }
+}
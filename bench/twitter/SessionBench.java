@@ -0,0 +1,557 @@
+package twitter;
+
+import twitter.persistence.PersistAccessToken;
+import twitter.persistence.PersistIdSnapshot;
+import twitter.persistence.PersistSinceIds;
+import twitter.persistence.PersistStatusIndex;
+import twitter.persistence.PersistTape;
+import twitter4j.DirectMessage;
+import twitter4j.Paging;
+import twitter4j.Relationship;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+import twitter4j.User;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks de los caminos calientes de Session contra StubTwitter, sin
+ * red y con datos deterministas. Cada benchmark se calienta y despues se
+ * mide en varias iteraciones de duracion fija, como hace JMH; el resultado
+ * es la media de ns por operacion con su desviacion entre iteraciones.
+ * <p>
+ * bench/ es un arbol de fuentes aparte que no entra en jtwit.jar. Se
+ * compila junto a las fuentes del programa y se ejecuta con:
+ * <pre>
+ * javac -encoding UTF-8 -cp lib/twitter4j-core-4.0.7.jar -d out/bench $(find twitter bench -name '*.java')
+ * java -cp out/bench:lib/twitter4j-core-4.0.7.jar twitter.SessionBench [benchmark...]
+ * </pre>
+ * Propiedades: jtwit.bench.latency (microsegundos por llamada, 0),
+ * jtwit.bench.warmup (iteraciones, 3), jtwit.bench.iterations (5),
+ * jtwit.bench.time (ms por iteracion, 1000), jtwit.bench.followers (2000).
+ * daemon.cold arranca una JVM por operacion, asi que mide tambien el
+ * arranque y la carga de clases que se ahorra el daemon. index.* y graph.*
+ * generan sus datos en el primer uso y necesitan unos 2 GB de heap
+ * (-Xmx2g) si se ejecutan todos en la misma JVM.
+ * Con jtwit.bench.out=archivo cada resultado se añade como una linea TSV
+ * con la etiqueta jtwit.bench.label (por ejemplo el commit), para comparar
+ * ejecuciones de distintas versiones.
+ * <p>
+ * Con jtwit.bench.replay=archivo se añaden replay.followers, replay.dms y
+ * replay.search, que responden con una grabacion hecha con jtwit --record.
+ * La busqueda es jtwit.bench.replay.search (java) y con
+ * jtwit.bench.replay.realtime=true cada peticion tarda lo que la original
+ *
+ * @author fsancheztemprano
+ */
+class SessionBench {
+    /**
+     * operacion medida, devuelve algo que depende del trabajo hecho para que
+     * el JIT no pueda eliminarlo
+     */
+    @FunctionalInterface
+    interface Op {
+        long run() throws Exception;
+    }
+
+    static final long SEED = 42;
+    static final int USERS = 10_000;
+    static final int RENDER_ROWS = 100_000;
+    static final int INDEX_DOCS = 1_000_000;
+    static final int GRAPH_IDS = 10_000_000;
+
+    private static final long LATENCY = Long.getLong("jtwit.bench.latency", 0);
+    private static final int WARMUP = Integer.getInteger("jtwit.bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("jtwit.bench.iterations", 5);
+    private static final long TIME = Long.getLong("jtwit.bench.time", 1000);
+    private static final int FOLLOWERS = Integer.getInteger("jtwit.bench.followers", 2000);
+    private static final boolean REALTIME = Boolean.getBoolean("jtwit.bench.replay.realtime");
+    private static final String SEARCH = System.getProperty("jtwit.bench.replay.search", "java");
+    private static final String ONCE = "--once";
+
+    /**
+     * sumidero de los resultados, como el Blackhole de JMH
+     */
+    static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream results = System.out;
+        // los mensajes de Session no forman parte de la medida
+        System.setOut(new PrintStream(NullStream.INSTANCE));
+        File dir = Files.createTempDirectory("jtwit-bench").toFile();
+        if (args.length == 2 && args[0].equals(ONCE)) {
+            // proceso hijo de daemon.cold: una sola ejecucion del comando
+            sink += coldRun(dir, args[1]);
+            delete(dir);
+            return;
+        }
+        Map<String, Op> benchmarks = benchmarks(dir);
+        List<String> selected = args.length > 0 ? Arrays.asList(args) : new ArrayList<>(benchmarks.keySet());
+
+        results.printf("%-22s %10s %14s %8s %12s%n", "benchmark", "latency us", "ns/op", "+-%", "ops/s");
+        for (String name : selected) {
+            Op op = benchmarks.get(name);
+            if (op == null) {
+                results.println("Unknown benchmark " + name + ", available: " + benchmarks.keySet());
+                continue;
+            }
+            double[] nanos = measure(op);
+            double mean = mean(nanos);
+            double error = mean > 0 ? 100 * stddev(nanos, mean) / mean : 0;
+            results.printf(Locale.ROOT, "%-22s %10d %14.0f %8.1f %12.1f%n", name, LATENCY, mean, error, 1e9 / mean);
+            append(name, mean, error);
+        }
+        delete(dir);
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * benchmarks disponibles, cada uno con su propia sesion y directorio
+     */
+    static Map<String, Op> benchmarks(File dir) throws TwitterException {
+        SyntheticData data = new SyntheticData(SEED, USERS, FOLLOWERS);
+        long latency = LATENCY * 1000;
+        Map<String, Op> benchmarks = new LinkedHashMap<>();
+
+        // filas de la tabla y NDJSON: formateo de fechas y columnas
+        List<Status> statuses = new ArrayList<>();
+        for (long id = 1; id <= 50; id++)
+            statuses.add(TwitterObjectFactory.createStatus(data.statusJson(id)));
+        List<User> users = new ArrayList<>();
+        for (long id = 1; id <= 50; id++)
+            users.add(TwitterObjectFactory.createUser(data.userJson(id)));
+        List<DirectMessage> messages = new ArrayList<>();
+        for (long id = 1; id <= 20; id++)
+            messages.add(TwitterObjectFactory.createDirectMessage(data.directMessageJson(id, 2, 1)));
+        for (RowRenderer.Format format : new RowRenderer.Format[]{RowRenderer.Format.TABLE, RowRenderer.Format.NDJSON}) {
+            CountingWriter out = new CountingWriter();
+            RowRenderer rows = RowRenderer.create(format, out);
+            benchmarks.put("render." + format.name().toLowerCase(Locale.ROOT), () -> {
+                for (Status status : statuses)
+                    rows.status(status);
+                for (User user : users)
+                    rows.user(user);
+                for (DirectMessage message : messages)
+                    rows.directMessage(message, "user2", "user1");
+                rows.flush();
+                return out.count;
+            });
+        }
+
+        // 100k filas de status con printf y dateFormater, como se pintaban
+        // antes de RowRenderer, y con la tabla de RowRenderer volcada por paginas
+        List<Status> rendered = new ArrayList<>();
+        for (long id = 1; id <= 1000; id++)
+            rendered.add(TwitterObjectFactory.createStatus(data.statusJson(id)));
+        CountingStream console = new CountingStream();
+        PrintStream printf = new PrintStream(console, true);
+        benchmarks.put("render.100k.printf", () -> {
+            for (int i = 0; i < RENDER_ROWS; i++) {
+                Status status = rendered.get(i % rendered.size());
+                printf.printf("%20s | %15s | %100s %n", dateFormater(status.getCreatedAt()), ("@" + status.getUser().getScreenName()), status.getText());
+            }
+            return console.count;
+        });
+        CountingWriter table = new CountingWriter();
+        RowRenderer pages = RowRenderer.create(RowRenderer.Format.TABLE, table);
+        benchmarks.put("render.100k", () -> {
+            for (int i = 0; i < RENDER_ROWS; i++) {
+                pages.status(rendered.get(i % rendered.size()));
+                if (i % 50 == 49)
+                    pages.flush();
+            }
+            pages.flush();
+            return table.count;
+        });
+
+        // seguidores con la cache de usuarios caliente, como en el daemon
+        Session followers = session(StubTwitter.create(data, latency, 0), new File(dir, "followers"));
+        benchmarks.put("followers", () -> {
+            followers.printFollowers(null);
+            return followers.getUserCache().size();
+        });
+
+        // seguidores resolviendo todos los usuarios con lookupUsers
+        Twitter cold = StubTwitter.create(data, latency, 0);
+        benchmarks.put("followers.cold", () -> {
+            CountingWriter out = new CountingWriter();
+            RowRenderer rows = RowRenderer.create(RowRenderer.Format.TABLE, out);
+            UserHydrator hydrator = new UserHydrator(cold::lookupUsers, new UserCache(), rows::user);
+            IDCursor ids = new IDCursor(cursor -> cold.getFollowersIDs(cursor));
+            while (ids.hasNext())
+                hydrator.add(ids.nextLong());
+            hydrator.flush();
+            rows.flush();
+            return out.count;
+        });
+
+        // DMs con la resolucion de screenNames e indexado
+        Session dms = session(StubTwitter.create(data, latency, 0), new File(dir, "dms"));
+        benchmarks.put("dms", () -> {
+            dms.printDMs();
+            return dms.getUserCache().size();
+        });
+
+        // pagina del home timeline con 50 status nuevos en cada llamada
+        Twitter home = StubTwitter.create(data, latency, 50);
+        Session timeline = session(home, new File(dir, "timeline"));
+        benchmarks.put("timeline", () -> {
+            timeline.printTimeline();
+            return StubTwitter.calls(home);
+        });
+
+        // timeline conjunto de 200 usuarios, sin sinceId guardado
+        Twitter watched = StubTwitter.create(data, latency, 0);
+        List<String> screenNames = new ArrayList<>();
+        for (int id = 1; id <= 200; id++)
+            screenNames.add("user" + id);
+        benchmarks.put("timeline.users", () -> {
+            CountingWriter out = new CountingWriter();
+            RowRenderer rows = RowRenderer.create(RowRenderer.Format.TABLE, out);
+            PersistSinceIds sinceIds = new PersistSinceIds(new File(dir, "users.since").getPath());
+            new TimelineMerge(watched::getUserTimeline, sinceIds, 1000, rows::status).run(screenNames);
+            rows.flush();
+            return out.count;
+        });
+
+        // datos del menu de interaccion: usuario, relacion y timeline uno
+        // detras de otro, o en paralelo con AsyncSession como hace el menu.
+        // Con jtwit.bench.latency el paralelo tarda lo que la llamada mas lenta
+        Session interaction = session(StubTwitter.create(data, latency, 0), new File(dir, "interaction"));
+        benchmarks.put("interaction.sequential", () -> {
+            User user = interaction.pickUser("user2");
+            Relationship relationship = interaction.call("/friendships/show",
+                    () -> interaction.getTwitter().showFriendship(interaction.getScreenName(), "user2"));
+            ResponseList<Status> page = interaction.call("/statuses/user_timeline",
+                    () -> interaction.getTwitter().getUserTimeline("user2", new Paging().count(50)));
+            return user.getId() + relationship.getTargetUserId() + page.size();
+        });
+        AsyncSession async = new AsyncSession(interaction);
+        benchmarks.put("interaction", () -> {
+            AsyncSession.UserView view = async.view("user2");
+            return view.getUser().getId() + view.getRelationship().getTargetUserId() + view.getTimeline().size();
+        });
+
+        // un comando reenviado a un daemon con la sesion abierta, frente a
+        // una JVM nueva que arranca, abre la sesion y ejecuta el comando
+        Twitter served = StubTwitter.create(data, latency, 0);
+        Session daemonSession = session(served, new File(dir, "daemon"));
+        File daemonFile = new File(dir, "daemon.dat");
+        Daemon daemon = new Daemon((args, format, out) -> {
+            daemonSession.setOutput(format, out);
+            daemonSession.printTimeline();
+            return 0;
+        }, daemonFile);
+        benchmarks.put("daemon", () -> {
+            if (!daemonFile.exists())
+                startDaemon(daemon, daemonFile);
+            int code = Daemon.forward(daemonFile, new String[]{"timeline"}, RowRenderer.Format.TABLE,
+                    NullStream.INSTANCE, NullStream.INSTANCE);
+            if (code != 0)
+                throw new IllegalStateException("Daemon returned " + code);
+            return StubTwitter.calls(served);
+        });
+        benchmarks.put("daemon.cold", () -> {
+            Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-cp", System.getProperty("java.class.path"), SessionBench.class.getName(), ONCE, "timeline")
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(dir, "cold.out"))
+                    .start();
+            int code = process.waitFor();
+            if (code != 0)
+                throw new IllegalStateException("Cold run returned " + code);
+            return code;
+        });
+
+        // indice local: indexar 1M status sinteticos y consultar el indice
+        // construido, con palabras, autor y rango de fechas
+        List<String> texts = new ArrayList<>();
+        PersistStatusIndex[] built = {null};
+        benchmarks.put("index.1m", () -> {
+            // el indice anterior se puede liberar mientras se construye el nuevo
+            built[0] = null;
+            built[0] = index(data, texts, new File(dir, "index.dat"));
+            return built[0].size();
+        });
+        String[] queries = {"java cache", "from:user42", "daemon token since:2017-09-01 until:2017-10-01", "hola mundo rapido"};
+        int[] query = {0};
+        benchmarks.put("index.1m.query", () -> {
+            if (built[0] == null)
+                built[0] = index(data, texts, new File(dir, "index.dat"));
+            return built[0].search(queries[query[0]++ % queries.length], 100).size();
+        });
+
+        // grafo de una cuenta con 10M seguidores y 10M seguidos, la mitad en
+        // comun: ordenar los IDs como llegan de la api, diferencias e
+        // interseccion, y guardar y leer la foto de los seguidores
+        Graph[] graph = {null};
+        benchmarks.put("graph.10m", () -> {
+            if (graph[0] == null)
+                graph[0] = new Graph(GRAPH_IDS);
+            SortedLongSet followerIds = SortedLongSet.of(graph[0].followers.clone(), GRAPH_IDS);
+            SortedLongSet friendIds = SortedLongSet.of(graph[0].friends.clone(), GRAPH_IDS);
+            return followerIds.intersection(friendIds).size() + friendIds.difference(followerIds).size()
+                    + followerIds.difference(friendIds).size();
+        });
+        benchmarks.put("graph.10m.snapshot", () -> {
+            if (graph[0] == null)
+                graph[0] = new Graph(GRAPH_IDS);
+            PersistIdSnapshot saved = new PersistIdSnapshot(new File(dir, "followers.dat").getPath());
+            saved.setIds(graph[0].sorted(), System.currentTimeMillis());
+            saved.saveKey();
+            PersistIdSnapshot read = new PersistIdSnapshot(saved.getFile().getPath());
+            read.readKey();
+            return read.getIds().length;
+        });
+
+        // seguidores, DMs y busqueda respondidos con una grabacion de la api
+        String replay = System.getProperty("jtwit.bench.replay");
+        if (replay != null) {
+            PersistTape tape = new PersistTape(new File(replay));
+            try {
+                tape.readKey();
+            } catch (IOException e) {
+                throw new TwitterException("Can not read " + replay, e);
+            }
+            Session replayed = session(ApiTape.replay(tape, REALTIME), new File(dir, "replay"));
+            benchmarks.put("replay.followers", () -> {
+                replayed.printFollowers(null);
+                return replayed.getUserCache().size();
+            });
+            benchmarks.put("replay.dms", () -> {
+                replayed.printDMs();
+                return replayed.getUserCache().size();
+            });
+            benchmarks.put("replay.search", () -> {
+                replayed.searchStatus(Collections.singletonList(SEARCH), 100, null, null);
+                return replayed.getUserCache().size();
+            });
+        }
+        return benchmarks;
+    }
+
+    /**
+     * lo que hace jtwit sin daemon: abrir la sesion, con verify_credentials,
+     * y ejecutar el comando
+     */
+    private static long coldRun(File dir, String command) throws TwitterException {
+        if (!command.equals("timeline"))
+            throw new IllegalArgumentException("Unknown cold run " + command);
+        Twitter twitter = StubTwitter.create(new SyntheticData(SEED, USERS, FOLLOWERS), LATENCY * 1000, 0);
+        session(twitter, dir).printTimeline();
+        return StubTwitter.calls(twitter);
+    }
+
+    /**
+     * formato de fecha de Session antes de RowRenderer, con los getters
+     * obsoletos de Date
+     */
+    @SuppressWarnings("deprecation")
+    private static String dateFormater(Date date) {
+        return String.format("%02d:%02d:%02d %02d/%02d/%04d", date.getHours(), date.getMinutes(), date.getSeconds(), date.getDate(), date.getMonth(), date.getYear());
+    }
+
+    /**
+     * indice nuevo con INDEX_DOCS status; los textos se generan una sola vez
+     * para medir solo el indexado
+     */
+    private static PersistStatusIndex index(SyntheticData data, List<String> texts, File file) {
+        for (long id = texts.size() + 1; id <= INDEX_DOCS; id++)
+            texts.add(data.text(id));
+        PersistStatusIndex index = new PersistStatusIndex(file, INDEX_DOCS);
+        index.setDefault();
+        for (int i = 0; i < INDEX_DOCS; i++) {
+            long id = i + 1;
+            long author = data.author(id);
+            index.put(id, new Date(SyntheticData.createdAt(id)), author, "user" + author, texts.get(i));
+        }
+        return index;
+    }
+
+    private static void startDaemon(Daemon daemon, File file) throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            try {
+                daemon.serve(0);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "jtwit-bench-daemon");
+        thread.setDaemon(true);
+        thread.start();
+        while (!file.exists())
+            Thread.sleep(10);
+    }
+
+    private static Session session(Twitter twitter, File dir) throws TwitterException {
+        Session session = new Session(twitter, new PersistAccessToken("token", "secret"), () -> {
+        }, () -> {
+        }, dir);
+        session.setOutput(RowRenderer.Format.TABLE, NullStream.INSTANCE);
+        return session;
+    }
+
+    /**
+     * @return - ns por operacion de cada iteracion medida
+     */
+    static double[] measure(Op op) throws Exception {
+        double[] nanos = new double[ITERATIONS];
+        for (int i = -WARMUP; i < ITERATIONS; i++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long deadline = start + TIME * 1_000_000;
+            long now;
+            do {
+                sink += op.run();
+                ops++;
+            } while ((now = System.nanoTime()) < deadline);
+            if (i >= 0)
+                nanos[i] = (double) (now - start) / ops;
+        }
+        return nanos;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values)
+            sum += value;
+        return values.length == 0 ? 0 : sum / values.length;
+    }
+
+    private static double stddev(double[] values, double mean) {
+        if (values.length < 2)
+            return 0;
+        double sum = 0;
+        for (double value : values)
+            sum += (value - mean) * (value - mean);
+        return Math.sqrt(sum / (values.length - 1));
+    }
+
+    /**
+     * añade el resultado a jtwit.bench.out si esta configurado
+     */
+    private static void append(String name, double mean, double error) throws IOException {
+        String file = System.getProperty("jtwit.bench.out");
+        if (file == null)
+            return;
+        try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+            out.printf(Locale.ROOT, "%d\t%s\t%s\t%s\t%d\t%.0f\t%.1f%n", System.currentTimeMillis(),
+                    System.getProperty("jtwit.bench.label", "-"), System.getProperty("java.version"),
+                    name, LATENCY, mean, error);
+        }
+    }
+
+    /**
+     * writer que descarta lo escrito y solo cuenta los caracteres
+     */
+    static final class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(int c) {
+            count++;
+        }
+
+        @Override
+        public void write(char[] buffer, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * stream que descarta lo escrito y solo cuenta los bytes
+     */
+    static final class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * IDs de seguidores y seguidos en el orden en que los devuelve la api,
+     * con la mitad de los seguidos tambien entre los seguidores
+     */
+    private static final class Graph {
+        final long[] followers;
+        final long[] friends;
+        private long[] sorted;
+
+        Graph(int size) {
+            SplittableRandom random = new SplittableRandom(SEED);
+            followers = new long[size];
+            friends = new long[size];
+            for (int i = 0; i < size; i++) {
+                followers[i] = random.nextLong(1, 1L << 40);
+                friends[i] = i % 2 == 0 ? followers[i] : random.nextLong(1, 1L << 40);
+            }
+        }
+
+        /**
+         * @return - seguidores ordenados y sin repetidos, como en la foto
+         */
+        long[] sorted() {
+            if (sorted == null)
+                sorted = SortedLongSet.of(followers.clone(), followers.length).array();
+            return sorted;
+        }
+    }
+
+    static final class NullStream extends OutputStream {
+        static final NullStream INSTANCE = new NullStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
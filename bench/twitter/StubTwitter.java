@@ -0,0 +1,181 @@
+package twitter;
+
+import twitter4j.DirectMessage;
+import twitter4j.DirectMessageList;
+import twitter4j.Paging;
+import twitter4j.RateLimitStatus;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+import twitter4j.User;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Twitter en memoria para los benchmarks: responde con los datos de
+ * SyntheticData, parseados con TwitterObjectFactory igual que las
+ * respuestas reales, despues de esperar una latencia fija. Solo implementa
+ * las llamadas que usa Session en los benchmarks, el resto lanzan
+ * UnsupportedOperationException.
+ * <p>
+ * Cada peticion del home timeline publica newPerCall status nuevos, asi que
+ * printTimeline siempre tiene algo que descargar
+ *
+ * @author fsancheztemprano
+ */
+final class StubTwitter implements InvocationHandler {
+    static final long AUTH_USER = 1;
+    static final int IDS_PAGE = 5000;
+
+    private final SyntheticData data;
+    private final long latencyNanos;
+    private final int newPerCall;
+    private final AtomicLong head;
+    private final AtomicLong calls = new AtomicLong();
+
+    private StubTwitter(SyntheticData data, long latencyNanos, int newPerCall) {
+        this.data = data;
+        this.latencyNanos = latencyNanos;
+        this.newPerCall = newPerCall;
+        this.head = new AtomicLong(data.getUsers() * 10L);
+    }
+
+    /**
+     * @param data         - datos a servir
+     * @param latencyNanos - espera de cada llamada
+     * @param newPerCall   - status nuevos en cada peticion del home timeline
+     * @return - instancia de twitter
+     */
+    static Twitter create(SyntheticData data, long latencyNanos, int newPerCall) {
+        return (Twitter) Proxy.newProxyInstance(Twitter.class.getClassLoader(), new Class<?>[]{Twitter.class},
+                new StubTwitter(data, latencyNanos, newPerCall));
+    }
+
+    /**
+     * @param twitter - instancia creada con create
+     * @return - llamadas atendidas
+     */
+    static long calls(Twitter twitter) {
+        return ((StubTwitter) Proxy.getInvocationHandler(twitter)).calls.get();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "toString":
+                return "StubTwitter";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+        }
+        calls.incrementAndGet();
+        if (latencyNanos > 0)
+            LockSupport.parkNanos(latencyNanos);
+        switch (method.getName()) {
+            case "verifyCredentials":
+                return user(AUTH_USER);
+            case "showUser":
+                return user(args[0] instanceof Long ? (Long) args[0] : Long.parseLong(((String) args[0]).replace("user", "")));
+            case "lookupUsers":
+                long[] ids = (long[]) args[0];
+                StubList<User> users = new StubList<>(ids.length);
+                for (long id : ids)
+                    if (id >= 1 && id <= data.getUsers())
+                        users.add(user(id));
+                return users;
+            case "getHomeTimeline": {
+                Paging paging = args == null ? new Paging() : (Paging) args[0];
+                int count = paging.getCount() > 0 ? paging.getCount() : 20;
+                long top = head.addAndGet(newPerCall);
+                return statuses(SyntheticData.homeTimeline(top, Math.max(0, paging.getSinceId()), Math.max(0, paging.getMaxId()), count));
+            }
+            case "getUserTimeline": {
+                Paging paging = args.length > 1 ? (Paging) args[1] : new Paging();
+                int count = paging.getCount() > 0 ? paging.getCount() : 20;
+                long userId = args[0] instanceof Long ? (Long) args[0] : Long.parseLong(((String) args[0]).replace("user", ""));
+                return statuses(data.userTimeline(userId, head.get(), Math.max(0, paging.getSinceId()), Math.max(0, paging.getMaxId()), count));
+            }
+            case "updateStatus":
+                // el tweet publicado pasa a ser el siguiente status del timeline
+                return TwitterObjectFactory.createStatus(data.statusJson(head.incrementAndGet()));
+            case "showFriendship":
+                return TwitterObjectFactory.createRelationship("{\"relationship\":{\"source\":"
+                        + relationship(args[0], args[1]) + ",\"target\":" + relationship(args[1], args[0]) + "}}");
+            case "getFollowersIDs":
+            case "getFriendsIDs":
+                return TwitterObjectFactory.createIDs(data.idsJson((Long) args[args.length - 1], IDS_PAGE));
+            case "getDirectMessages":
+                int count = (Integer) args[0];
+                StubDirectMessageList messages = new StubDirectMessageList(count);
+                for (int i = 0; i < count; i++) {
+                    long other = 2 + i % Math.max(1, data.getUsers() - 1);
+                    boolean received = i % 2 == 0;
+                    messages.add(TwitterObjectFactory.createDirectMessage(data.directMessageJson(1_000_000L - i,
+                            received ? other : AUTH_USER, received ? AUTH_USER : other)));
+                }
+                return messages;
+            default:
+                throw new UnsupportedOperationException("StubTwitter." + method.getName());
+        }
+    }
+
+    /**
+     * lado de una relacion de friendships/show, los usuarios pares se siguen
+     */
+    private static String relationship(Object user, Object other) {
+        long id = user instanceof Long ? (Long) user : Long.parseLong(((String) user).replace("user", ""));
+        long otherId = other instanceof Long ? (Long) other : Long.parseLong(((String) other).replace("user", ""));
+        return "{\"id\":" + id + ",\"id_str\":\"" + id + "\",\"screen_name\":\"user" + id
+                + "\",\"following\":" + (otherId % 2 == 0) + ",\"followed_by\":" + (id % 2 == 0) + "}";
+    }
+
+    private User user(long id) throws TwitterException {
+        return TwitterObjectFactory.createUser(data.userJson(id));
+    }
+
+    private ResponseList<Status> statuses(long[] ids) throws TwitterException {
+        StubList<Status> statuses = new StubList<>(ids.length);
+        for (long id : ids)
+            statuses.add(TwitterObjectFactory.createStatus(data.statusJson(id)));
+        return statuses;
+    }
+
+    private static class StubList<T> extends ArrayList<T> implements ResponseList<T> {
+        private static final long serialVersionUID = 1L;
+
+        StubList(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public RateLimitStatus getRateLimitStatus() {
+            return null;
+        }
+
+        @Override
+        public int getAccessLevel() {
+            return READ_WRITE_DIRECTMESSAGES;
+        }
+    }
+
+    private static final class StubDirectMessageList extends StubList<DirectMessage> implements DirectMessageList {
+        private static final long serialVersionUID = 1L;
+
+        StubDirectMessageList(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public String getNextCursor() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package twitter;
+
+import java.util.Random;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas del histograma de latencias con valores conocidos: cada latencia
+ * cae en un cubo cuyo limite superior la supera en menos de un 7%, y los
+ * percentiles quedan dentro de ese margen
+ *
+ * @author fsancheztemprano
+ */
+class ApiMetricsTest {
+    /**
+     * comprueba que micros cae en su cubo y que el limite superior del cubo
+     * no la supera en mas de un 7%
+     */
+    private static void assertBucket(long micros) {
+        int bucket = ApiMetrics.bucket(micros);
+        long upper = ApiMetrics.upperBound(bucket);
+        assertTrue("upper bound of " + micros + " is " + upper, upper >= micros);
+        assertTrue("error of " + micros + " is " + (upper - micros), upper - micros <= micros * 0.07);
+        if (bucket > 0)
+            assertTrue("previous bucket of " + micros + " ends before it", ApiMetrics.upperBound(bucket - 1) < micros);
+    }
+
+    private static void assertNear(String message, long expected, long actual) {
+        assertTrue(message + ": expected " + expected + " was " + actual,
+                actual >= expected && actual <= expected * 1.07);
+    }
+
+    @Test
+    void bucketsAreWithinSevenPercent() {
+        for (long micros = 0; micros <= 100_000; micros++)
+            assertBucket(micros);
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++)
+            assertBucket(random.nextLong() & ((1L << 40) - 1));
+        for (int bits = 5; bits < 40; bits++) {
+            assertBucket((1L << bits) - 1);
+            assertBucket(1L << bits);
+        }
+        assertEquals("small latencies are exact", 31L, ApiMetrics.upperBound(ApiMetrics.bucket(31)));
+        assertEquals("negative latencies in the first bucket", 0, ApiMetrics.bucket(-5));
+    }
+
+    @Test
+    void uniformLatencies() {
+        ApiMetrics.Endpoint stats = new ApiMetrics().endpoint("statuses/home_timeline");
+        assertEquals("no calls", 0L, stats.percentile(0.5));
+        // de 1 a 1000 ms
+        for (long ms = 1000; ms >= 1; ms--)
+            stats.add(ms * 1000);
+        assertNear("p50", 500_000, stats.percentile(0.5));
+        assertNear("p90", 900_000, stats.percentile(0.9));
+        assertNear("p99", 990_000, stats.percentile(0.99));
+        assertEquals("p100 is the max", 1_000_000L, stats.percentile(1));
+    }
+
+    @Test
+    void slowTail() {
+        ApiMetrics.Endpoint stats = new ApiMetrics().endpoint("users/lookup");
+        for (int i = 0; i < 990; i++)
+            stats.add(120);
+        for (int i = 0; i < 10; i++)
+            stats.add(45_000);
+        assertNear("p50", 120, stats.percentile(0.5));
+        assertNear("p99 still fast", 120, stats.percentile(0.99));
+        assertEquals("p99.5 in the tail, capped at the max", 45_000L, stats.percentile(0.995));
+    }
+}
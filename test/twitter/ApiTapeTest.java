@@ -0,0 +1,256 @@
+package twitter;
+
+import twitter.persistence.PersistConsumerKey;
+import twitter.persistence.PersistTape;
+import twitter4j.HttpClient;
+import twitter4j.HttpClientConfiguration;
+import twitter4j.HttpParameter;
+import twitter4j.HttpRequest;
+import twitter4j.HttpResponse;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterFactory;
+import twitter4j.auth.AccessToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de la grabacion y reproduccion de peticiones a la api: se graba
+ * contra un cliente HTTP falso que responde con SyntheticData, se vuelve a
+ * leer el archivo gzip y se reproduce sin el cliente, tambien con el
+ * archivo cortado a mitad de una peticion
+ *
+ * @author fsancheztemprano
+ */
+class ApiTapeTest implements AutoCloseable {
+    private static final String API = "https://api.twitter.com/1.1/";
+
+    private final SyntheticData data = new SyntheticData(1, 100, 20);
+    private final TempDir temp = new TempDir();
+    private final PersistTape tape = new PersistTape(temp.file("tape.gz"));
+
+    /**
+     * peticiones que ha atendido el cliente falso
+     */
+    private final AtomicInteger served = new AtomicInteger();
+    /**
+     * paginas del home timeline servidas, cada una con status distintos
+     */
+    private final AtomicInteger pages = new AtomicInteger();
+
+    private static Twitter twitter() {
+        PersistConsumerKey consumer = new PersistConsumerKey();
+        consumer.setDefault();
+        return new TwitterFactory(Session.configuration(consumer).build()).getInstance(new AccessToken("1-x", "y"));
+    }
+
+    /**
+     * instancia de twitter con el cliente HTTP falso en lugar de la red
+     */
+    private Twitter stubbed() throws ReflectiveOperationException {
+        Twitter twitter = twitter();
+        HttpClientConfiguration conf = twitter.getConfiguration().getHttpClientConfiguration();
+        Map<String, String> headers = new HashMap<>();
+        HttpClient client = (HttpClient) Proxy.newProxyInstance(HttpClient.class.getClassLoader(), new Class<?>[]{HttpClient.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRequestHeaders":
+                            return headers;
+                        case "addDefaultRequestHeader":
+                            return headers.put((String) args[0], (String) args[1]);
+                        case "request":
+                            return answer(conf, (HttpRequest) args[0]);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        Field http = Class.forName("twitter4j.TwitterBaseImpl").getDeclaredField("http");
+        http.setAccessible(true);
+        http.set(twitter, client);
+        return twitter;
+    }
+
+    private HttpResponse answer(HttpClientConfiguration conf, HttpRequest req) throws TwitterException {
+        served.incrementAndGet();
+        String route = ApiTape.route(req.getMethod().name(), req.getURL());
+        if (route.equals("GET /1.1/account/verify_credentials.json"))
+            return new Response(conf, data.userJson(StubTwitter.AUTH_USER));
+        if (route.equals("GET /1.1/users/show.json"))
+            return new Response(conf, data.userJson(Long.parseLong(param(req, "user_id"))));
+        if (route.equals("GET /1.1/statuses/home_timeline.json"))
+            return new Response(conf, data.statusesJson(page(pages.getAndIncrement())));
+        throw new TwitterException("not found", null, 404);
+    }
+
+    private static String param(HttpRequest req, String name) {
+        if (req.getParameters() != null)
+            for (HttpParameter parameter : req.getParameters())
+                if (parameter.getName().equals(name))
+                    return parameter.getValue();
+        String url = req.getURL();
+        int start = url.indexOf(name + '=') + name.length() + 1;
+        int end = url.indexOf('&', start);
+        return url.substring(start, end < 0 ? url.length() : end);
+    }
+
+    /**
+     * @param page - pagina del home timeline, empezando en 0
+     * @return - IDs de la pagina, del mas reciente al mas antiguo
+     */
+    private static long[] page(int page) {
+        long[] ids = new long[5];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = 100 * (page + 1) - i;
+        return ids;
+    }
+
+    private static List<Long> ids(ResponseList<Status> statuses) {
+        List<Long> ids = new ArrayList<>();
+        for (Status status : statuses)
+            ids.add(status.getId());
+        return ids;
+    }
+
+    private static List<Long> ids(long[] page) {
+        List<Long> ids = new ArrayList<>();
+        for (long id : page)
+            ids.add(id);
+        return ids;
+    }
+
+    private PersistTape replayed() throws IOException {
+        PersistTape played = new PersistTape(tape.getFile());
+        played.readKey();
+        return played;
+    }
+
+    @Test
+    void recordingReplaysWithoutTheClient() throws Exception {
+        Twitter recording = stubbed();
+        ApiTape.record(recording, tape);
+        recording.verifyCredentials();
+        recording.getHomeTimeline();
+        recording.getHomeTimeline();
+        recording.showUser(5);
+        recording.showUser(6);
+        assertThrows(TwitterException.class, recording::getMentionsTimeline);
+        tape.close();
+        assertEquals("served by the stub", 6, served.get());
+
+        PersistTape played = replayed();
+        List<PersistTape.Entry> entries = played.getEntries();
+        assertEquals("every request, the error too", 6, entries.size());
+        assertEquals("method", "GET", entries.get(0).method);
+        assertEquals("body", data.userJson(StubTwitter.AUTH_USER), entries.get(0).body);
+        assertEquals("second page", data.statusesJson(page(1)), entries.get(2).body);
+        assertEquals("error status", 404, entries.get(5).status);
+
+        Twitter replay = ApiTape.replay(played, false);
+        assertEquals("identity", StubTwitter.AUTH_USER, replay.verifyCredentials().getId());
+        // mismos parametros: las respuestas en orden y despues otra vez desde el principio
+        assertEquals("first page", ids(page(0)), ids(replay.getHomeTimeline()));
+        assertEquals("second page", ids(page(1)), ids(replay.getHomeTimeline()));
+        assertEquals("round robin", ids(page(0)), ids(replay.getHomeTimeline()));
+        // la respuesta con los mismos parametros aunque se grabo despues
+        assertEquals("by key", 6L, replay.showUser(6).getId());
+        assertEquals("by key", 5L, replay.showUser(5).getId());
+        assertEquals("by path when the parameters differ", 5L, replay.showUser(7).getId());
+        TwitterException error = assertThrows(TwitterException.class, replay::getMentionsTimeline);
+        assertEquals("recorded error", 404, error.getStatusCode());
+        TwitterException missing = assertThrows(TwitterException.class, () -> replay.getFavorites());
+        assertEquals("nothing recorded", 404, missing.getStatusCode());
+        assertEquals("replay does not reach the stub", 6, served.get());
+    }
+
+    @Test
+    void cutRecordingKeepsTheCompleteRequests() throws Exception {
+        Twitter recording = stubbed();
+        ApiTape.record(recording, tape);
+        recording.verifyCredentials();
+        recording.getHomeTimeline();
+        long complete = tape.getFile().length();
+        recording.getHomeTimeline();
+        long cut = (complete + tape.getFile().length()) / 2;
+        // proceso terminado a mitad de la ultima peticion, sin el final del gzip
+        try (RandomAccessFile raf = new RandomAccessFile(tape.getFile(), "rw")) {
+            raf.setLength(cut);
+        }
+
+        PersistTape played = replayed();
+        assertEquals("the cut request is dropped", 2, played.getEntries().size());
+        Twitter replay = ApiTape.replay(played, false);
+        assertEquals("identity", StubTwitter.AUTH_USER, replay.verifyCredentials().getId());
+        assertEquals("only the first page", ids(page(0)), ids(replay.getHomeTimeline()));
+        assertEquals("only the first page", ids(page(0)), ids(replay.getHomeTimeline()));
+    }
+
+    @Test
+    void queryInTheUrlFallsBackToThePath() throws IOException, TwitterException {
+        tape.append(entry("account/verify_credentials.json?include_email=true", data.userJson(9)));
+        tape.close();
+        assertEquals("recorded with other parameters", 9L, ApiTape.replay(replayed(), false).verifyCredentials().getId());
+    }
+
+    private PersistTape.Entry entry(String url, String body, String... params) {
+        return new PersistTape.Entry(0, 1000, "GET", API + url, params, 200, new String[0], body);
+    }
+
+    @Test
+    void replayNeedsNoToken() throws IOException, TwitterException {
+        tape.append(entry("account/verify_credentials.json?include_email=false", data.userJson(StubTwitter.AUTH_USER)));
+        tape.close();
+        PersistTape played = new PersistTape(tape.getFile());
+        played.readKey();
+        // sin token.dat: la identidad sale de la respuesta grabada
+        Session session = Session.tape(played, false, null);
+        assertEquals("identity from the recording", StubTwitter.AUTH_USER, session.getAuthUserID());
+        assertEquals("screen name", "user" + StubTwitter.AUTH_USER, session.getScreenName());
+    }
+
+    /**
+     * respuesta del cliente falso
+     */
+    private static final class Response extends HttpResponse {
+        Response(HttpClientConfiguration conf, String body) {
+            super(conf);
+            statusCode = 200;
+            responseAsString = body;
+            is = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String getResponseHeader(String name) {
+            return null;
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaderFields() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        tape.close();
+        temp.close();
+    }
+}
@@ -0,0 +1,66 @@
+package twitter;
+
+import java.util.Objects;
+
+/**
+ * comprobaciones de las pruebas, lanzan AssertionError con un mensaje que
+ * muestra el valor esperado y el obtenido
+ *
+ * @author fsancheztemprano
+ */
+final class Assert {
+    private Assert() {
+    }
+
+    static void assertTrue(String message, boolean condition) {
+        if (!condition)
+            fail(message);
+    }
+
+    static void assertFalse(String message, boolean condition) {
+        assertTrue(message, !condition);
+    }
+
+    static void assertEquals(String message, Object expected, Object actual) {
+        if (!Objects.equals(expected, actual))
+            fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+    }
+
+    static void assertEquals(String message, long expected, long actual) {
+        if (expected != actual)
+            fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+    }
+
+    static void assertNull(String message, Object actual) {
+        assertEquals(message, null, actual);
+    }
+
+    static void assertNotNull(String message, Object actual) {
+        assertTrue(message + ": was null", actual != null);
+    }
+
+    /**
+     * comprueba que la accion lanza una excepcion del tipo indicado
+     *
+     * @return - la excepcion lanzada
+     */
+    static <T extends Throwable> T assertThrows(Class<T> type, ThrowingRunnable action) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e))
+                return type.cast(e);
+            throw new AssertionError("expected " + type.getSimpleName() + " but was " + e, e);
+        }
+        throw new AssertionError("expected " + type.getSimpleName() + " but nothing was thrown");
+    }
+
+    static void fail(String message) {
+        throw new AssertionError(message);
+    }
+
+    @FunctionalInterface
+    interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+}
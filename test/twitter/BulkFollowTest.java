@@ -0,0 +1,206 @@
+package twitter;
+
+import twitter.persistence.PersistCheckpoint;
+import twitter4j.Friendship;
+import twitter4j.RateLimitStatus;
+import twitter4j.ResponseList;
+import twitter4j.TwitterException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de BulkFollow con relaciones falsas: consultas en bloques de 100,
+ * hilos limitados y un archivo de progreso que permite retomar una
+ * ejecucion interrumpida sin repetir operaciones
+ *
+ * @author fsancheztemprano
+ */
+class BulkFollowTest implements AutoCloseable {
+    private static final int USERS = 250;
+
+    private final TempDir temp = new TempDir();
+    private final String checkpoint = temp.file("users.follow.ckpt").getPath();
+    /**
+     * veces que se ha seguido a cada usuario
+     */
+    private final Map<Long, AtomicInteger> follows = new ConcurrentHashMap<>();
+    private final List<Integer> lookups = new ArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    /**
+     * seguimientos que se aceptan antes de rechazar los tokens, -1 sin limite
+     */
+    private int acceptedBeforeRejecting = -1;
+    private long failing;
+    private long lastUser = USERS;
+
+    private final BulkFollow.Friendships api = new BulkFollow.Friendships() {
+        @Override
+        public synchronized ResponseList<Friendship> lookup(long[] ids) {
+            lookups.add(ids.length);
+            Relations relations = new Relations();
+            for (long id : ids)
+                if (id <= lastUser)
+                    relations.add(relation(id, id % 2 == 0));
+            return relations;
+        }
+
+        @Override
+        public void follow(long userId) throws TwitterException {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(1);
+                if (userId == failing)
+                    throw new TwitterException("HTTP 403", null, 403);
+                synchronized (this) {
+                    if (acceptedBeforeRejecting == 0)
+                        throw new TwitterException("HTTP 401", null, 401);
+                    if (acceptedBeforeRejecting > 0)
+                        acceptedBeforeRejecting--;
+                }
+                follows.computeIfAbsent(userId, id -> new AtomicInteger()).incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void unfollow(long userId) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static SortedLongSet ids(int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++)
+            ids[i] = i + 1;
+        return SortedLongSet.wrap(ids);
+    }
+
+    private BulkFollow bulk(int threads) {
+        return new BulkFollow(api, true, new PersistCheckpoint(checkpoint), threads);
+    }
+
+    @Test
+    void relationsAreLookedUpInChunksAndOnlyChangesApplied() throws TwitterException {
+        BulkFollow bulk = bulk(3);
+        bulk.run(ids(USERS));
+        assertEquals("lookups of up to 100 IDs", "[100, 100, 50]", lookups.toString());
+        assertEquals("odd users followed", USERS / 2, bulk.getApplied());
+        assertEquals("even users already followed", USERS / 2, bulk.getSkipped());
+        assertEquals("followed once each", USERS / 2, follows.size());
+        for (Map.Entry<Long, AtomicInteger> follow : follows.entrySet()) {
+            assertTrue("only odd users", follow.getKey() % 2 == 1);
+            assertEquals("once", 1, follow.getValue().get());
+        }
+        // con la cola llena el hilo que consulta aplica el cambio el mismo
+        assertTrue("at most 3 workers and the caller, was " + maxRunning.get(), maxRunning.get() <= 4);
+        assertFalse("checkpoint removed when complete", temp.file("users.follow.ckpt").exists());
+    }
+
+    @Test
+    void missingUsersAreSkipped() throws TwitterException {
+        lastUser = 200;
+        BulkFollow bulk = bulk(2);
+        bulk.run(ids(USERS));
+        assertEquals("followed", 100, bulk.getApplied());
+        assertEquals("already followed or gone", 150, bulk.getSkipped());
+    }
+
+    @Test
+    void interruptedRunResumesWithoutRepeating() throws TwitterException {
+        acceptedBeforeRejecting = 40;
+        BulkFollow first = bulk(4);
+        TwitterException thrown = assertThrows(TwitterException.class, () -> first.run(ids(USERS)));
+        assertEquals("stopped by the rejected tokens", 401, thrown.getStatusCode());
+        assertTrue("progress kept", temp.file("users.follow.ckpt").exists());
+        int followedBefore = follows.size();
+
+        acceptedBeforeRejecting = -1;
+        lookups.clear();
+        BulkFollow second = bulk(4);
+        second.run(ids(USERS));
+        assertTrue("resumed IDs are not looked up again, resumed " + second.getResumed(),
+                second.getResumed() >= followedBefore);
+        assertEquals("every odd user followed", USERS / 2, follows.size());
+        for (AtomicInteger count : follows.values())
+            assertEquals("never twice", 1, count.get());
+        assertFalse("checkpoint removed when complete", temp.file("users.follow.ckpt").exists());
+    }
+
+    @Test
+    void failedUserStaysPending() throws TwitterException {
+        failing = 7;
+        BulkFollow first = bulk(2);
+        first.run(ids(USERS));
+        assertEquals("failed", 1, first.getFailed());
+        assertTrue("progress kept for the failed user", temp.file("users.follow.ckpt").exists());
+
+        failing = 0;
+        lookups.clear();
+        BulkFollow second = bulk(2);
+        second.run(ids(USERS));
+        assertEquals("only the failed user is looked up", "[1]", lookups.toString());
+        assertEquals("and followed", 1, second.getApplied());
+        assertEquals("once", 1, follows.get(7L).get());
+    }
+
+    private static Friendship relation(long id, boolean following) {
+        return new Friendship() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public long getId() {
+                return id;
+            }
+
+            @Override
+            public String getName() {
+                return "User " + id;
+            }
+
+            @Override
+            public String getScreenName() {
+                return "user" + id;
+            }
+
+            @Override
+            public boolean isFollowing() {
+                return following;
+            }
+
+            @Override
+            public boolean isFollowedBy() {
+                return false;
+            }
+        };
+    }
+
+    private static final class Relations extends ArrayList<Friendship> implements ResponseList<Friendship> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public RateLimitStatus getRateLimitStatus() {
+            return null;
+        }
+
+        @Override
+        public int getAccessLevel() {
+            return READ_WRITE;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        temp.close();
+    }
+}
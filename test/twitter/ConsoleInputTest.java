@@ -0,0 +1,75 @@
+package twitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas del lector de consola compartido: un script largo de comandos
+ * leido en trozos pequeños, como por una tuberia, no pierde ninguna linea
+ *
+ * @author fsancheztemprano
+ */
+class ConsoleInputTest implements AutoCloseable {
+    private static final int COMMANDS = 20_000;
+
+    /**
+     * stream que entrega como mucho unos pocos bytes en cada lectura
+     */
+    private static InputStream trickle(byte[] bytes) {
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+    }
+
+    @Test
+    void largeScriptIsReadWithoutDroppingInput() {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < COMMANDS; i++) {
+            if (i % 10 == 0)
+                script.append('\n');
+            script.append(i % 6 + 1).append('\n')
+                    .append("tweet número ").append(i).append(" con espacios\n")
+                    .append(i % 2 == 0 ? "y" : "N").append(" extra words\n");
+        }
+        ConsoleInput input = new ConsoleInput(new InputStreamReader(
+                trickle(script.toString().getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+        for (int i = 0; i < COMMANDS; i++) {
+            assertEquals("pick " + i, String.valueOf(i % 6 + 1), input.next());
+            assertEquals("text " + i, "tweet número " + i + " con espacios", input.nextLine());
+            assertEquals("answer " + i, i % 2 == 0 ? "y" : "N", input.next());
+        }
+        assertThrows(NoSuchElementException.class, input::nextLine);
+    }
+
+    @Test
+    void nextSkipsBlankLinesAndDropsTheRestOfTheLine() {
+        ConsoleInput input = new ConsoleInput(new StringReader("\n   \n  5 extra words\nnext line\n"));
+        assertEquals("first word", "5", input.next());
+        assertEquals("following line", "next line", input.nextLine());
+    }
+
+    @Test
+    void sharedInstanceKeepsWhatItAlreadyBuffered() {
+        ConsoleInput.set(new ConsoleInput(new StringReader("1\n1234567\n2\n")));
+        // como createAccessToken, que recibe el lector compartido como proveedor
+        Supplier<String> pin = ConsoleInput.get()::nextLine;
+        assertEquals("menu", "1", ConsoleInput.get().next());
+        assertEquals("pin", "1234567", pin.get());
+        assertEquals("next menu", "2", ConsoleInput.get().next());
+    }
+
+    @Override
+    public void close() {
+        ConsoleInput.set(null);
+    }
+}
@@ -0,0 +1,99 @@
+package twitter;
+
+import twitter.persistence.PersistRecordStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas del daemon con un manejador falso: un cliente que no envia nada
+ * no lo bloquea, clear lo para y daemon.dat solo lo puede leer el usuario
+ *
+ * @author fsancheztemprano
+ */
+class DaemonTest implements AutoCloseable {
+    private final TempDir temp = new TempDir();
+    private final File file = temp.file("daemon.dat");
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+    private final Daemon daemon = new Daemon((args, format, data) -> {
+        commands.add(String.join(" ", args));
+        return 0;
+    }, file);
+    private final Thread thread = new Thread(() -> {
+        try {
+            daemon.serve(0);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }, "jtwit-test-daemon");
+
+    DaemonTest() throws InterruptedException {
+        thread.setDaemon(true);
+        thread.start();
+        for (int i = 0; i < 500 && !file.exists(); i++)
+            Thread.sleep(10);
+    }
+
+    private int forward(String... args) {
+        return Daemon.forward(file, args, RowRenderer.Format.TABLE, new ByteArrayOutputStream(), new ByteArrayOutputStream());
+    }
+
+    private int port() throws IOException {
+        PersistRecordStore store = new PersistRecordStore(file);
+        store.readKey();
+        return store.get("daemon").getInt();
+    }
+
+    @Test
+    void silentClientDoesNotBlockTheDaemon() throws IOException {
+        try (Socket idle = new Socket(InetAddress.getLoopbackAddress(), port())) {
+            long start = System.nanoTime();
+            assertEquals("served after the idle client times out", 0, forward("timeline"));
+            assertTrue("within the read timeout", System.nanoTime() - start < 10_000_000_000L);
+            assertEquals("command run", "[timeline]", commands.toString());
+            assertTrue("idle client still connected", idle.isConnected());
+        }
+    }
+
+    @Test
+    void clearStopsTheDaemon() throws InterruptedException {
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        assertEquals("clear", 0, Daemon.forward(file, new String[]{"clear"}, RowRenderer.Format.TABLE,
+                new ByteArrayOutputStream(), messages));
+        assertTrue("told to authenticate again",
+                new String(messages.toByteArray(), StandardCharsets.UTF_8).startsWith("Daemon stopped"));
+        thread.join(10_000);
+        assertFalse("stopped", thread.isAlive());
+        assertFalse("daemon.dat removed", file.exists());
+        assertEquals("later commands run locally", -1, forward("timeline"));
+    }
+
+    @Test
+    void secretIsOnlyReadableByTheUser() throws IOException {
+        if (!Files.getFileStore(file.toPath()).supportsFileAttributeView("posix"))
+            return;
+        assertEquals("permissions", "rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (thread.isAlive())
+            forward("daemon", "stop");
+        try {
+            thread.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        temp.close();
+    }
+}
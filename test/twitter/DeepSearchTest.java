@@ -0,0 +1,120 @@
+package twitter;
+
+import twitter4j.Query;
+import twitter4j.QueryResult;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de la busqueda en profundidad contra un buscador falso que
+ * pagina con maxId como search/tweets
+ *
+ * @author fsancheztemprano
+ */
+class DeepSearchTest {
+    private final SyntheticData data = new SyntheticData(1, 100, 10);
+    /**
+     * resultados de cada consulta: IDs del mas reciente al mas antiguo
+     */
+    private final Map<String, long[]> index = new ConcurrentHashMap<>();
+    private final List<Integer> counts = new CopyOnWriteArrayList<>();
+    private final List<Long> delivered = new ArrayList<>();
+
+    private static long[] range(long from, long to) {
+        long[] ids = new long[(int) (to - from + 1)];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = to - i;
+        return ids;
+    }
+
+    private QueryResult search(Query query) throws TwitterException {
+        long[] ids = index.get(query.getQuery());
+        if (ids == null)
+            throw new TwitterException("HTTP 403", null, 403);
+        counts.add(query.getCount());
+        List<Status> page = new ArrayList<>();
+        for (long id : ids) {
+            if (query.getMaxId() > 0 && id > query.getMaxId())
+                continue;
+            if (page.size() == query.getCount())
+                break;
+            page.add(TwitterObjectFactory.createStatus(data.statusJson(id)));
+        }
+        boolean more = !page.isEmpty() && page.get(page.size() - 1).getId() > ids[ids.length - 1];
+        long next = page.isEmpty() ? 0 : page.get(page.size() - 1).getId() - 1;
+        return (QueryResult) Proxy.newProxyInstance(QueryResult.class.getClassLoader(), new Class<?>[]{QueryResult.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getTweets":
+                            return page;
+                        case "hasNext":
+                            return more;
+                        case "nextQuery":
+                            // como next_results, que conserva count
+                            return more ? new Query(query.getQuery()).count(query.getCount()).maxId(next) : null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private DeepSearch deepSearch(int budget) {
+        return new DeepSearch(this::search, budget, status -> delivered.add(status.getId()));
+    }
+
+    @Test
+    void pagesAreFollowedUntilTheQueryIsExhausted() throws TwitterException {
+        index.put("a", range(1, 250));
+        DeepSearch search = deepSearch(1000);
+        search.run(Arrays.asList(new Query("a")));
+        assertEquals("results", 250, search.getResults());
+        assertEquals("pages", 3, search.getPages());
+        assertEquals("page size", "[100, 100, 100]", counts.toString());
+        assertEquals("newest first", 250, delivered.get(0).longValue());
+        assertEquals("oldest last", 1, delivered.get(249).longValue());
+    }
+
+    @Test
+    void budgetStopsThePagination() throws TwitterException {
+        index.put("a", range(1, 250));
+        DeepSearch search = deepSearch(120);
+        search.run(Arrays.asList(new Query("a")));
+        assertEquals("results", 120, search.getResults());
+        assertEquals("pages", 2, search.getPages());
+    }
+
+    @Test
+    void duplicatesAcrossQueriesAreDropped() throws TwitterException {
+        index.put("a", range(1, 150));
+        index.put("b", range(100, 200));
+        DeepSearch search = deepSearch(1000);
+        search.run(Arrays.asList(new Query("a"), new Query("b")));
+        assertEquals("distinct results", 200, search.getResults());
+        assertEquals("duplicates", 51, search.getDuplicates());
+        Set<Long> unique = new HashSet<>(delivered);
+        assertEquals("each status once", delivered.size(), unique.size());
+    }
+
+    @Test
+    void failedQueryIsThrownAfterTheOthersFinish() {
+        index.put("a", range(1, 150));
+        DeepSearch search = deepSearch(1000);
+        TwitterException thrown = assertThrows(TwitterException.class,
+                () -> search.run(Arrays.asList(new Query("bad"), new Query("a"))));
+        assertEquals("status", 403, thrown.getStatusCode());
+        assertEquals("the other query is delivered", 150, delivered.size());
+    }
+}
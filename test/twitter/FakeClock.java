@@ -0,0 +1,41 @@
+package twitter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * reloj falso para RequestScheduler y Outbox: sleep no espera, solo avanza
+ * la hora y apunta la espera pedida
+ *
+ * @author fsancheztemprano
+ */
+final class FakeClock implements RequestScheduler.Clock {
+    private long now;
+    private final List<Long> sleeps = new ArrayList<>();
+
+    FakeClock(long now) {
+        this.now = now;
+    }
+
+    @Override
+    public synchronized long millis() {
+        return now;
+    }
+
+    @Override
+    public synchronized void sleep(long millis) {
+        sleeps.add(millis);
+        now += millis;
+    }
+
+    synchronized void advance(long millis) {
+        now += millis;
+    }
+
+    /**
+     * @return - esperas pedidas, en orden
+     */
+    synchronized List<Long> sleeps() {
+        return new ArrayList<>(sleeps);
+    }
+}
@@ -0,0 +1,53 @@
+package twitter;
+
+import twitter.persistence.PersistOutbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * proceso auxiliar de OutboxTest, para probar la cola con varios procesos y
+ * con procesos que mueren a mitad de un envio:
+ * <pre>
+ * append archivo n          - encola n tweets
+ * drain archivo halt pausa  - envia los pendientes; escribe "sent seq" por
+ *                             cada envio y muere con halt al enviar el
+ *                             mensaje halt (0 para ninguno)
+ * </pre>
+ *
+ * @author fsancheztemprano
+ */
+class OutboxProcess {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        PersistOutbox log = new PersistOutbox(new File(args[1]));
+        try {
+            log.readKey();
+        } catch (IOException e) {
+            log.setDefault();
+        }
+        if (args[0].equals("append")) {
+            int count = Integer.parseInt(args[2]);
+            for (int i = 0; i < count; i++)
+                log.append(PersistOutbox.TWEET, 0, "tweet " + ManagementFactory.getRuntimeMXBean().getName() + " " + i);
+            return;
+        }
+        long halt = Long.parseLong(args[2]);
+        long pause = Long.parseLong(args[3]);
+        Outbox outbox = new Outbox(log, entry -> {
+            if (entry.seq == halt)
+                Runtime.getRuntime().halt(3);
+            try {
+                TimeUnit.MILLISECONDS.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("sent " + entry.seq);
+            System.out.flush();
+        });
+        outbox.start();
+        outbox.awaitIdle(60_000);
+    }
+
+}
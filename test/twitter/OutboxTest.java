@@ -0,0 +1,264 @@
+package twitter;
+
+import twitter.persistence.PersistOutbox;
+import twitter4j.TwitterException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de la cola de salida: reintentos con un reloj falso, errores sin
+ * arreglo, tokens rechazados, y varios procesos sobre el mismo archivo,
+ * incluidos procesos que mueren a mitad de un envio o de una escritura
+ *
+ * @author fsancheztemprano
+ */
+class OutboxTest implements AutoCloseable {
+    private final TempDir temp = new TempDir();
+    private final File file = temp.file("outbox.dat");
+    private final List<Outbox> outboxes = new ArrayList<>();
+
+    private Outbox outbox(PersistOutbox log, Outbox.Sender sender, RequestScheduler.Clock clock) {
+        Outbox outbox = new Outbox(log, sender, clock);
+        outboxes.add(outbox);
+        return outbox;
+    }
+
+    private PersistOutbox open() throws IOException {
+        PersistOutbox log = new PersistOutbox(file);
+        if (file.exists())
+            log.readKey();
+        else
+            log.setDefault();
+        return log;
+    }
+
+    private static TwitterException error(int status) {
+        return new TwitterException("HTTP " + status, null, status);
+    }
+
+    @Test
+    void serverErrorsBackOffExponentially() throws IOException {
+        FakeClock clock = new FakeClock(0);
+        List<Long> sent = new CopyOnWriteArrayList<>();
+        int[] calls = {0};
+        Outbox outbox = outbox(open(), entry -> {
+            if (++calls[0] <= 3)
+                throw error(503);
+            sent.add(entry.seq);
+        }, clock);
+        PersistOutbox.Entry entry = outbox.enqueue(PersistOutbox.TWEET, 0, "hello");
+        assertEquals("sent", Boolean.TRUE, outbox.awaitSent(entry.seq, 5000));
+        assertEquals("backoff", Arrays.asList(1000L, 2000L, 4000L), clock.sleeps());
+        assertEquals("retries", 3, outbox.getRetries());
+        assertEquals("nothing left on disk", 0, open().size());
+    }
+
+    @Test
+    void rateLimitWaitsForRetryAfter() throws IOException {
+        FakeClock clock = new FakeClock(0);
+        int[] calls = {0};
+        Outbox outbox = outbox(open(), entry -> {
+            if (++calls[0] == 1)
+                throw new TwitterException("rate limited", null, 429);
+        }, clock);
+        PersistOutbox.Entry entry = outbox.enqueue(PersistOutbox.TWEET, 0, "hello");
+        assertEquals("sent", Boolean.TRUE, outbox.awaitSent(entry.seq, 5000));
+        assertEquals("one wait", 1, clock.sleeps().size());
+    }
+
+    @Test
+    void clientErrorsDropTheMessage() throws IOException {
+        List<Long> sent = new CopyOnWriteArrayList<>();
+        Outbox outbox = outbox(open(), entry -> {
+            if (entry.text.equals("duplicate"))
+                throw error(403);
+            sent.add(entry.seq);
+        }, new FakeClock(0));
+        PersistOutbox.Entry dropped = outbox.enqueue(PersistOutbox.TWEET, 0, "duplicate");
+        PersistOutbox.Entry next = outbox.enqueue(PersistOutbox.TWEET, 0, "fine");
+        assertEquals("dropped", Boolean.FALSE, outbox.awaitSent(dropped.seq, 5000));
+        assertEquals("next one is sent", Boolean.TRUE, outbox.awaitSent(next.seq, 5000));
+        assertEquals("failed", 1, outbox.getFailed());
+        assertEquals("sent", Collections.singletonList(next.seq), sent);
+        assertEquals("nothing left on disk", 0, open().size());
+    }
+
+    @Test
+    void rejectedCredentialsParkTheQueue() throws IOException {
+        FakeClock clock = new FakeClock(0);
+        int[] calls = {0};
+        Outbox outbox = outbox(open(), entry -> {
+            calls[0]++;
+            throw error(401);
+        }, clock);
+        PersistOutbox.Entry first = outbox.enqueue(PersistOutbox.TWEET, 0, "one");
+        outbox.enqueue(PersistOutbox.DM, 7, "two");
+        long start = System.nanoTime();
+        assertNull("not sent", outbox.awaitSent(first.seq, 5000));
+        assertTrue("does not wait for the timeout", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+        assertTrue("parked", outbox.isParked());
+        assertFalse("not idle", outbox.awaitIdle(100));
+        assertEquals("no backoff", Collections.emptyList(), clock.sleeps());
+        assertEquals("one call", 1, calls[0]);
+        assertEquals("both kept on disk", 2, open().size());
+    }
+
+    @Test
+    void senderKilledMidwayLeavesTheRestQueued() throws Exception {
+        PersistOutbox log = open();
+        for (int i = 1; i <= 5; i++)
+            log.append(PersistOutbox.TWEET, 0, "tweet " + i);
+        // el proceso muere dentro del envio del tercer mensaje
+        Result child = run("drain", file.getPath(), "3", "0");
+        assertEquals("halted", 3, child.exit);
+        assertEquals("sent before dying", Arrays.asList("sent 1", "sent 2"), child.lines);
+
+        PersistOutbox reopened = open();
+        assertEquals("still queued", 3, reopened.size());
+        assertEquals("oldest pending", 3L, reopened.peek().seq);
+        List<Long> sent = new CopyOnWriteArrayList<>();
+        Outbox outbox = outbox(reopened, entry -> sent.add(entry.seq), new FakeClock(0));
+        outbox.start();
+        assertTrue("drained", outbox.awaitIdle(5000));
+        assertEquals("the rest is sent once", Arrays.asList(3L, 4L, 5L), sent);
+        PersistOutbox.Entry next = outbox.enqueue(PersistOutbox.TWEET, 0, "after");
+        assertEquals("numbering continues", 6L, next.seq);
+    }
+
+    @Test
+    void tornWriteIsDiscarded() throws IOException {
+        PersistOutbox log = open();
+        log.append(PersistOutbox.TWEET, 0, "one");
+        log.append(PersistOutbox.TWEET, 0, "two");
+        // un proceso que muere a mitad de escribir un registro
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(raw.length());
+            raw.write(new byte[]{1, 0, 0, 0, 0, 0, 0, 0, 3, 1, 0});
+        }
+        PersistOutbox other = open();
+        assertEquals("complete records", 2, other.size());
+        PersistOutbox.Entry three = other.append(PersistOutbox.TWEET, 0, "three");
+        assertEquals("seq", 3L, three.seq);
+        log.markDone(1, true);
+        PersistOutbox read = open();
+        assertEquals("pending", 2, read.size());
+        assertEquals("oldest", "two", read.peek().text);
+    }
+
+    @Test
+    void processesAppendingTogetherGetDistinctSeqs() throws Exception {
+        PersistOutbox log = open();
+        log.append(PersistOutbox.TWEET, 0, "first");
+        List<Process> children = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            children.add(start("append", file.getPath(), "50"));
+        for (int i = 0; i < 50; i++)
+            log.append(PersistOutbox.TWEET, 0, "parent " + i);
+        for (Process child : children)
+            assertEquals("child exit", 0, finish(child).exit);
+
+        PersistOutbox read = open();
+        assertEquals("all messages", 151, read.size());
+        Set<Long> seqs = new HashSet<>();
+        PersistOutbox.Entry entry;
+        while ((entry = read.peek()) != null) {
+            assertTrue("unique seq " + entry.seq, seqs.add(entry.seq));
+            read.markDone(entry.seq, true);
+        }
+        assertEquals("seqs", 151, seqs.size());
+        assertTrue("seqs from 1 to 151", seqs.contains(1L) && seqs.contains(151L));
+    }
+
+    @Test
+    void processesDrainingTogetherSendEachMessageOnce() throws Exception {
+        PersistOutbox log = open();
+        for (int i = 1; i <= 20; i++)
+            log.append(PersistOutbox.TWEET, 0, "tweet " + i);
+        List<Process> children = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            children.add(start("drain", file.getPath(), "0", "20"));
+        List<Long> sent = new CopyOnWriteArrayList<>();
+        Outbox outbox = outbox(log, entry -> {
+            sent.add(entry.seq);
+            try {
+                TimeUnit.MILLISECONDS.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, RequestScheduler.SYSTEM_CLOCK);
+        outbox.start();
+        assertTrue("drained", outbox.awaitIdle(30_000));
+        List<String> lines = new ArrayList<>();
+        for (Process child : children) {
+            Result result = finish(child);
+            assertEquals("child exit", 0, result.exit);
+            lines.addAll(result.lines);
+        }
+        for (String line : lines)
+            sent.add(Long.parseLong(line.substring("sent ".length())));
+        Collections.sort(sent);
+        List<Long> expected = new ArrayList<>();
+        for (long seq = 1; seq <= 20; seq++)
+            expected.add(seq);
+        assertEquals("every message sent once", expected, sent);
+        assertEquals("nothing left on disk", 0, open().size());
+    }
+
+    private static final class Result {
+        final int exit;
+        final List<String> lines;
+
+        Result(int exit, List<String> lines) {
+            this.exit = exit;
+            this.lines = lines;
+        }
+    }
+
+    private static Process start(String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), OutboxProcess.class.getName()));
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    private static Result finish(Process process) throws IOException, InterruptedException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+        }
+        if (!process.waitFor(60, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            fail("child process did not finish");
+        }
+        return new Result(process.exitValue(), lines);
+    }
+
+    private static Result run(String... args) throws IOException, InterruptedException {
+        return finish(start(args));
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Outbox outbox : outboxes)
+            outbox.stop();
+        temp.close();
+    }
+}
@@ -0,0 +1,210 @@
+package twitter;
+
+import twitter.persistence.PersistRecordStore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas del almacen de registros con varios escritores y lectores a la
+ * vez, en hilos del mismo proceso y en procesos distintos: no se pierde
+ * ningun registro y ningun lector ve un archivo a medias
+ *
+ * @author fsancheztemprano
+ */
+class PersistRecordStoreTest implements AutoCloseable {
+    private static final int WRITERS = 4;
+    private static final int RECORDS = 50;
+
+    private final TempDir temp = new TempDir();
+    private final File file = temp.file("records.dat");
+    private final AtomicBoolean writing = new AtomicBoolean(true);
+    private final AtomicInteger reads = new AtomicInteger();
+
+    PersistRecordStoreTest() {
+        // los lectores necesitan que el archivo exista desde el principio
+        new PersistRecordStore(file).saveKey();
+    }
+
+    /**
+     * valor de un registro, derivado de su clave para poder comprobarlo
+     */
+    static byte[] value(String key) {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 200)
+            value.append(key).append('|');
+        return value.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertRecords(PersistRecordStore store) {
+        for (String key : store.keys()) {
+            ByteBuffer value = store.get(key);
+            byte[] bytes = new byte[value.remaining()];
+            value.get(bytes);
+            assertTrue("value of " + key, Arrays.equals(value(key), bytes));
+        }
+    }
+
+    private static List<String> expected(String prefix, int count) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            keys.add(prefix + "-" + i);
+        return keys;
+    }
+
+    /**
+     * escribe registros con su propia instancia del almacen, como lo haria
+     * otra sesion
+     */
+    private Void write(String prefix) {
+        PersistRecordStore store = new PersistRecordStore(file);
+        for (String key : expected(prefix, RECORDS)) {
+            store.put(key, value(key));
+            store.saveKey();
+        }
+        return null;
+    }
+
+    /**
+     * lee el archivo una y otra vez mientras haya escritores
+     */
+    private Void read() throws IOException {
+        PersistRecordStore store = new PersistRecordStore(file);
+        do {
+            store.readKey();
+            assertRecords(store);
+            reads.incrementAndGet();
+        } while (writing.get());
+        return null;
+    }
+
+    private PersistRecordStore reload() throws IOException {
+        PersistRecordStore store = new PersistRecordStore(file);
+        store.readKey();
+        assertRecords(store);
+        return store;
+    }
+
+    @Test
+    void concurrentThreadsKeepEveryRecord() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 2);
+        try {
+            List<Future<Void>> writers = new ArrayList<>();
+            for (int i = 0; i < WRITERS; i++) {
+                String prefix = "thread" + i;
+                writers.add(executor.submit(() -> write(prefix)));
+            }
+            List<Future<Void>> readers = Arrays.asList(executor.submit(this::read), executor.submit(this::read));
+            for (Future<Void> writer : writers)
+                writer.get(60, TimeUnit.SECONDS);
+            writing.set(false);
+            for (Future<Void> reader : readers)
+                reader.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        PersistRecordStore store = reload();
+        assertEquals("every record saved", WRITERS * RECORDS, store.keys().size());
+        for (int i = 0; i < WRITERS; i++)
+            assertTrue("records of writer " + i, store.keys().containsAll(expected("thread" + i, RECORDS)));
+        assertTrue("readers ran", reads.get() > 0);
+    }
+
+    @Test
+    void concurrentProcessesKeepEveryRecord() throws Exception {
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < WRITERS - 1; i++)
+            processes.add(start("write", file.getPath(), "process" + i, String.valueOf(RECORDS)));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Void> reader = executor.submit(this::read);
+            Future<Void> writer = executor.submit(() -> write("local"));
+            for (Process process : processes)
+                assertTrue("child wrote its records", finish(process).startsWith("records "));
+            writer.get(60, TimeUnit.SECONDS);
+            writing.set(false);
+            reader.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        PersistRecordStore store = reload();
+        assertEquals("every record saved", WRITERS * RECORDS, store.keys().size());
+        for (int i = 0; i < WRITERS - 1; i++)
+            assertTrue("records of process " + i, store.keys().containsAll(expected("process" + i, RECORDS)));
+        assertTrue("local records", store.keys().containsAll(expected("local", RECORDS)));
+    }
+
+    @Test
+    void changesAreMergedWithTheCurrentFile() throws IOException {
+        PersistRecordStore first = new PersistRecordStore(file);
+        first.put("a", value("a"));
+        first.put("b", value("b"));
+        first.saveKey();
+        // una instancia leida antes de los cambios de first no los pisa al guardar
+        PersistRecordStore stale = new PersistRecordStore(file);
+        stale.put("c", value("c"));
+        stale.remove("a");
+        stale.saveKey();
+        assertEquals("merged", Arrays.asList("b", "c"), reload().keys());
+    }
+
+    @Test
+    void corruptFileIsRejected() throws IOException {
+        write("x");
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(raw.length() / 2);
+            int b = raw.read();
+            raw.seek(raw.length() / 2);
+            raw.write(b ^ 0xFF);
+        }
+        IOException thrown = assertThrows(IOException.class, () -> new PersistRecordStore(file).readKey());
+        assertTrue("checksum", thrown.getMessage().startsWith("Corrupt record file"));
+    }
+
+    private static Process start(String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), RecordStoreProcess.class.getName()));
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    /**
+     * @return - la ultima linea que escribe el proceso
+     */
+    private static String finish(Process process) throws IOException, InterruptedException {
+        String last = "";
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null)
+                last = line;
+        }
+        if (!process.waitFor(60, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            fail("child process did not finish");
+        }
+        assertEquals("exit code", 0, process.exitValue());
+        return last;
+    }
+
+    @Override
+    public void close() throws IOException {
+        temp.close();
+    }
+}
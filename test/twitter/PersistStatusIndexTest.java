@@ -0,0 +1,176 @@
+package twitter;
+
+import twitter.persistence.PersistStatusIndex;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas del indice local de tweets: orden de los resultados, filtros de
+ * fecha, lectura del archivo y descarte de los documentos antiguos
+ *
+ * @author fsancheztemprano
+ */
+class PersistStatusIndexTest implements AutoCloseable {
+    private final TempDir temp = new TempDir();
+
+    private static Date day(String day, int hour) {
+        return new Date(LocalDate.parse(day).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() + hour * 3_600_000L);
+    }
+
+    private static List<Long> ids(List<PersistStatusIndex.Doc> docs) {
+        List<Long> ids = new ArrayList<>();
+        for (PersistStatusIndex.Doc doc : docs)
+            ids.add(doc.id);
+        return ids;
+    }
+
+    private PersistStatusIndex index() {
+        PersistStatusIndex index = new PersistStatusIndex(temp.file("index.dat"), 1000);
+        index.setDefault();
+        return index;
+    }
+
+    @Test
+    void resultsAreNewestFirstWhateverTheArrivalOrder() {
+        PersistStatusIndex index = index();
+        // una busqueda antigua llega despues que el timeline reciente
+        index.put(30, day("2020-03-01", 0), 1, "ana", "java news");
+        index.put(31, day("2020-03-02", 0), 1, "ana", "more java");
+        index.put(10, day("2020-01-01", 0), 2, "bob", "old java");
+        index.put(20, day("2020-02-01", 0), 2, "bob", "java again");
+        index.put(21, day("2020-02-01", 0), 2, "bob", "same time java");
+        assertEquals("all matches", listOf(31, 30, 21, 20, 10), ids(index.search("java", 10)));
+        assertEquals("limit keeps the newest", listOf(31, 30, 21), ids(index.search("java", 3)));
+        assertEquals("author filter", listOf(21, 20, 10), ids(index.search("java from:bob", 10)));
+    }
+
+    @Test
+    void sinceAndUntilFilterByDay() {
+        PersistStatusIndex index = index();
+        index.put(1, day("2020-01-01", 5), 1, "ana", "hello world");
+        index.put(2, day("2020-01-02", 5), 1, "ana", "hello again");
+        index.put(3, day("2020-01-03", 5), 1, "ana", "hello there");
+        assertEquals("since is inclusive", listOf(3, 2), ids(index.search("hello since:2020-01-02", 10)));
+        assertEquals("until is exclusive", listOf(1), ids(index.search("hello until:2020-01-02", 10)));
+        assertEquals("only dates", listOf(2), ids(index.search("since:2020-01-02 until:2020-01-03", 10)));
+    }
+
+    @Test
+    void textWithoutTermsMatchesNothing() {
+        PersistStatusIndex index = index();
+        index.put(1, day("2020-01-01", 5), 1, "ana", "a hello world");
+        assertEquals("single letter", 0, index.search("a", 10).size());
+        assertEquals("punctuation", 0, index.search("?! ...", 10).size());
+        assertEquals("with dates", 0, index.search("a since:2020-01-01", 10).size());
+        assertEquals("blank", 0, index.search("  ", 10).size());
+        assertEquals("only dates", listOf(1), ids(index.search("since:2020-01-01", 10)));
+    }
+
+    @Test
+    void invalidDatesAreRejected() {
+        PersistStatusIndex index = index();
+        index.put(1, day("2020-01-01", 0), 1, "ana", "hello");
+        assertThrows(IllegalArgumentException.class, () -> index.search("hello since:2020-13-01", 10));
+        assertThrows(IllegalArgumentException.class, () -> index.search("hello until:yesterday", 10));
+    }
+
+    @Test
+    void readsAppendsAndSearchesTheFile() throws IOException {
+        PersistStatusIndex index = index();
+        index.put(1, day("2020-01-01", 0), 1, "ana", "#java @bob first");
+        index.saveKey();
+        index.put(2, day("2020-01-02", 0), 2, "bob", "#java second");
+        index.saveKey();
+
+        PersistStatusIndex read = new PersistStatusIndex(temp.file("index.dat"), 1000);
+        read.readKey();
+        assertEquals("documents", 2, read.size());
+        read.put(3, day("2020-01-03", 0), 1, "ana", "#java third");
+        read.put(1, day("2020-01-01", 0), 1, "ana", "#java @bob first");
+        assertEquals("duplicates are ignored", 3, read.size());
+        assertEquals("hashtag", listOf(3, 2, 1), ids(read.search("#java", 10)));
+        assertEquals("mention", listOf(1), ids(read.search("@bob", 10)));
+        assertEquals("day", listOf(2), ids(read.search("day:2020-01-02", 10)));
+    }
+
+    @Test
+    void evictsTheOldestDocuments() throws IOException {
+        PersistStatusIndex index = new PersistStatusIndex(temp.file("index.dat"), 10);
+        index.setDefault();
+        for (int i = 1; i <= 11; i++)
+            index.put(i, day("2020-01-01", i), 1, "ana", "word" + i + " common");
+        assertTrue("size back under the maximum", index.size() <= 10);
+        assertEquals("oldest is gone", 0, index.search("word1", 10).size());
+        assertEquals("newest is kept", listOf(11), ids(index.search("word11", 10)));
+        index.saveKey();
+        PersistStatusIndex read = new PersistStatusIndex(temp.file("index.dat"), 10);
+        read.readKey();
+        assertEquals("rewritten file", index.size(), read.size());
+        assertEquals("search after reading", ids(index.search("common", 20)), ids(read.search("common", 20)));
+    }
+
+    @Test
+    void tornDocumentIsCutBeforeAppending() throws IOException {
+        PersistStatusIndex index = index();
+        for (int i = 1; i <= 10; i++)
+            index.put(i, day("2020-01-01", i), 1, "ana", "hello world number" + i);
+        index.saveKey();
+        // el ultimo documento quedo a medias, por ejemplo al matar el proceso
+        try (RandomAccessFile raw = new RandomAccessFile(temp.file("index.dat"), "rw")) {
+            raw.setLength(raw.length() - 5);
+        }
+
+        PersistStatusIndex torn = new PersistStatusIndex(temp.file("index.dat"), 1000);
+        torn.readKey();
+        assertEquals("complete documents", 9, torn.size());
+        for (int i = 11; i <= 20; i++)
+            torn.put(i, day("2020-01-02", i), 1, "ana", "hello world number" + i);
+        torn.saveKey();
+
+        PersistStatusIndex read = new PersistStatusIndex(temp.file("index.dat"), 1000);
+        read.readKey();
+        assertEquals("documents after the cut", 19, read.size());
+        assertEquals("text intact", listOf(20), ids(read.search("number20", 10)));
+        assertEquals("torn document gone", 0, read.search("number10", 10).size());
+    }
+
+    @Test
+    void concurrentWritersKeepEachOthersDocuments() throws IOException {
+        PersistStatusIndex index = index();
+        index.put(1, day("2020-01-01", 0), 1, "ana", "shared start");
+        index.saveKey();
+        PersistStatusIndex first = new PersistStatusIndex(temp.file("index.dat"), 1000);
+        first.readKey();
+        PersistStatusIndex second = new PersistStatusIndex(temp.file("index.dat"), 1000);
+        second.readKey();
+        first.put(2, day("2020-01-02", 0), 1, "ana", "from first");
+        first.saveKey();
+        second.put(3, day("2020-01-03", 0), 2, "bob", "from second");
+        second.saveKey();
+        assertEquals("second sees what first saved", listOf(3, 2, 1), ids(second.search("since:2020-01-01", 10)));
+
+        PersistStatusIndex read = new PersistStatusIndex(temp.file("index.dat"), 1000);
+        read.readKey();
+        assertEquals("every document", listOf(3, 2, 1), ids(read.search("since:2020-01-01", 10)));
+    }
+
+    private static List<Long> listOf(long... ids) {
+        List<Long> list = new ArrayList<>();
+        for (long id : ids)
+            list.add(id);
+        return list;
+    }
+
+    @Override
+    public void close() throws IOException {
+        temp.close();
+    }
+}
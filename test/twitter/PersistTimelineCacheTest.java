@@ -0,0 +1,99 @@
+package twitter;
+
+import twitter.persistence.PersistTimelineCache;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de la cache del timeline con dos instancias sobre el mismo
+ * archivo, como el daemon y un comando sin daemon, y con un registro final
+ * cortado a mitad
+ *
+ * @author fsancheztemprano
+ */
+class PersistTimelineCacheTest implements AutoCloseable {
+    private final SyntheticData data = new SyntheticData(1, 100, 20);
+    private final TempDir temp = new TempDir();
+    private final File file = temp.file("timeline.dat");
+
+    private Status status(long id) throws TwitterException {
+        return TwitterObjectFactory.createStatus(data.statusJson(id));
+    }
+
+    private PersistTimelineCache saved(long... ids) throws TwitterException {
+        PersistTimelineCache cache = new PersistTimelineCache(file);
+        cache.setDefault();
+        for (long id : ids)
+            cache.put(status(id));
+        cache.saveKey();
+        return cache;
+    }
+
+    private PersistTimelineCache read() throws IOException {
+        PersistTimelineCache cache = new PersistTimelineCache(file);
+        cache.readKey();
+        return cache;
+    }
+
+    @Test
+    void writersKeepEachOthersRecords() throws TwitterException, IOException {
+        PersistTimelineCache first = saved(1);
+        PersistTimelineCache second = read();
+        first.put(status(2));
+        first.saveKey();
+        // second aun tiene la longitud de antes del status 2
+        second.put(status(3));
+        second.saveKey();
+
+        PersistTimelineCache cache = read();
+        for (long id = 1; id <= 3; id++)
+            assertNotNull("status " + id, cache.getStatus(id));
+        assertEquals("second sees the other writer too", 3, second.getLatestStatuses(10).size());
+        assertEquals("first", 2, first.getLatestStatuses(10).size());
+    }
+
+    @Test
+    void tornRecordIsCutBeforeAppending() throws TwitterException, IOException {
+        saved(1, 2);
+        long complete = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(complete);
+            // cabecera de un registro de 1000 bytes que nunca se llego a escribir
+            raf.writeInt(1000);
+            raf.writeByte(1);
+            raf.writeLong(99);
+            raf.write(new byte[100]);
+        }
+        PersistTimelineCache cache = read();
+        assertEquals("torn tail cut", complete, file.length());
+        assertNull("torn status ignored", cache.getStatus(99));
+        cache.put(status(3));
+        cache.saveKey();
+
+        cache = read();
+        for (long id = 1; id <= 3; id++)
+            assertEquals("status " + id, id, cache.getStatus(id).getId());
+    }
+
+    @Test
+    void invalidFileIsReplacedOnSave() throws TwitterException, IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(0);
+        }
+        assertThrows(IOException.class, this::read);
+        saved(5);
+        assertEquals("saved over the invalid file", 5L, read().getMaxStatusId());
+    }
+
+    @Override
+    public void close() throws IOException {
+        temp.close();
+    }
+}
@@ -0,0 +1,30 @@
+package twitter;
+
+import twitter.persistence.PersistRecordStore;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * proceso auxiliar de PersistRecordStoreTest, para probar el almacen con
+ * varios procesos que escriben a la vez:
+ * <pre>
+ * write archivo prefijo n - guarda n registros prefijo-i, cada uno con su
+ *                           propio saveKey
+ * </pre>
+ *
+ * @author fsancheztemprano
+ */
+class RecordStoreProcess {
+    public static void main(String[] args) throws IOException {
+        PersistRecordStore store = new PersistRecordStore(new File(args[1]));
+        int count = Integer.parseInt(args[3]);
+        for (int i = 0; i < count; i++) {
+            String key = args[2] + "-" + i;
+            store.put(key, PersistRecordStoreTest.value(key));
+            store.saveKey();
+        }
+        store.readKey();
+        System.out.println("records " + store.keys().size());
+    }
+}
@@ -0,0 +1,138 @@
+package twitter;
+
+import twitter4j.RateLimitStatus;
+import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas del planificador con un reloj falso: espera al reinicio de una
+ * ventana agotada, reintentos de los 429 y errores que no se reintentan
+ *
+ * @author fsancheztemprano
+ */
+class RequestSchedulerTest {
+    private static final String ENDPOINT = "/statuses/home_timeline";
+
+    private final FakeClock clock = new FakeClock(0);
+    private final ApiMetrics metrics = new ApiMetrics();
+    private final List<Integer> depths = new ArrayList<>();
+    private final RequestScheduler scheduler = new RequestScheduler(new RequestScheduler.Clock() {
+        @Override
+        public long millis() {
+            return clock.millis();
+        }
+
+        @Override
+        public void sleep(long millis) {
+            depths.add(scheduler.getQueueDepth());
+            clock.sleep(millis);
+        }
+    }, metrics);
+
+    /**
+     * respuesta con las cabeceras de rate limit, el reinicio en la hora del
+     * reloj falso
+     */
+    private TwitterResponse response(int remaining, long resetAt) {
+        RateLimitStatus limit = new RateLimitStatus() {
+            @Override
+            public int getRemaining() {
+                return remaining;
+            }
+
+            @Override
+            public int getLimit() {
+                return 15;
+            }
+
+            @Override
+            public int getResetTimeInSeconds() {
+                return (int) (resetAt / 1000);
+            }
+
+            @Override
+            public int getSecondsUntilReset() {
+                return (int) ((resetAt - clock.millis()) / 1000);
+            }
+        };
+        return new TwitterResponse() {
+            @Override
+            public RateLimitStatus getRateLimitStatus() {
+                return limit;
+            }
+
+            @Override
+            public int getAccessLevel() {
+                return READ_WRITE;
+            }
+        };
+    }
+
+    private static TwitterException error(int status) {
+        return new TwitterException("HTTP " + status, null, status);
+    }
+
+    @Test
+    void exhaustedWindowWaitsForTheReset() throws TwitterException {
+        scheduler.call(ENDPOINT, () -> response(1, 10_000));
+        assertEquals("remaining from the headers", 1, scheduler.getRemaining(ENDPOINT));
+        scheduler.call(ENDPOINT, () -> response(0, 10_000));
+        assertTrue("no wait while there is quota", clock.sleeps().isEmpty());
+        scheduler.call(ENDPOINT, () -> response(14, 910_000));
+        assertEquals("waited until the reset", "[10000]", clock.sleeps().toString());
+        assertEquals("queued while waiting", "[1]", depths.toString());
+        assertEquals("queue empty afterwards", 0, scheduler.getQueueDepth());
+        assertEquals("total wait", 10_000, scheduler.getTotalWait());
+        assertEquals("new window", 14, scheduler.getRemaining(ENDPOINT));
+    }
+
+    @Test
+    void otherEndpointsDoNotWait() throws TwitterException {
+        scheduler.call(ENDPOINT, () -> response(0, 10_000));
+        scheduler.call("/followers/ids", () -> response(15, 900_000));
+        assertTrue("no wait", clock.sleeps().isEmpty());
+        assertEquals("unknown endpoint", -1, scheduler.getRemaining("/users/lookup"));
+    }
+
+    @Test
+    void rateLimitedCallsAreRetriedWithBackoff() throws TwitterException {
+        int[] calls = {0};
+        String result = scheduler.call(ENDPOINT, () -> {
+            if (++calls[0] <= 2)
+                throw error(429);
+            return "ok";
+        });
+        assertEquals("result", "ok", result);
+        assertEquals("exponential backoff", "[1000, 2000]", clock.sleeps().toString());
+        assertEquals("retries", 2, scheduler.getRetries());
+        assertEquals("every attempt is measured", 3, metrics.totalCalls());
+    }
+
+    @Test
+    void retriesAreLimited() {
+        int[] calls = {0};
+        TwitterException thrown = assertThrows(TwitterException.class, () -> scheduler.call(ENDPOINT, () -> {
+            calls[0]++;
+            throw error(429);
+        }));
+        assertEquals("status", 429, thrown.getStatusCode());
+        assertEquals("attempts", RequestScheduler.MAX_RETRIES + 1, calls[0]);
+        assertEquals("backoff", "[1000, 2000, 4000]", clock.sleeps().toString());
+    }
+
+    @Test
+    void otherErrorsAreNotRetried() {
+        int[] calls = {0};
+        assertThrows(TwitterException.class, () -> scheduler.call(ENDPOINT, () -> {
+            calls[0]++;
+            throw error(404);
+        }));
+        assertEquals("one attempt", 1, calls[0]);
+        assertTrue("no wait", clock.sleeps().isEmpty());
+    }
+}
@@ -0,0 +1,181 @@
+package twitter;
+
+import twitter.persistence.PersistAccessToken;
+import twitter4j.JSONObject;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+import twitter4j.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de los formatos NDJSON y TSV: cada fila se vuelve a leer y se
+ * compara con los datos de StubTwitter
+ *
+ * @author fsancheztemprano
+ */
+class RowRendererTest implements AutoCloseable {
+    private static final String AWKWARD = "comillas \" barra \\ tab\tsalto\nretorno\r control\u0001 ñ";
+
+    private final SyntheticData data = new SyntheticData(1, 1000, 120);
+    private final TempDir temp = new TempDir();
+    private Session session;
+
+    private Session session() throws TwitterException {
+        PersistAccessToken token = new PersistAccessToken("1-x", "y");
+        token.setIdentity(StubTwitter.AUTH_USER, "user1", System.currentTimeMillis());
+        session = new Session(StubTwitter.create(data, 0, 20), token, () -> {
+        }, () -> {
+        }, temp.dir);
+        return session;
+    }
+
+    @Test
+    void ndjsonStatusesMatchTheSource() throws TwitterException {
+        StringWriter out = new StringWriter();
+        RowRenderer rows = RowRenderer.create(RowRenderer.Format.NDJSON, out);
+        for (long id = 1; id <= 50; id++)
+            rows.status(TwitterObjectFactory.createStatus(data.statusJson(id)));
+        rows.flush();
+        String[] lines = out.toString().split("\n");
+        assertEquals("one line per status", 50, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            Status status = TwitterObjectFactory.createStatus(data.statusJson(i + 1));
+            JSONObject row = new JSONObject(lines[i]);
+            assertEquals("id", status.getId(), row.getLong("id"));
+            assertEquals("created_at", status.getCreatedAt().toInstant(), Instant.parse(row.getString("created_at")));
+            assertEquals("user_id", status.getUser().getId(), row.getLong("user_id"));
+            assertEquals("screen_name", status.getUser().getScreenName(), row.getString("screen_name"));
+            assertEquals("text", status.getText(), row.getString("text"));
+        }
+    }
+
+    @Test
+    void ndjsonEscapesEveryString() {
+        StringWriter out = new StringWriter();
+        RowRenderer rows = RowRenderer.create(RowRenderer.Format.NDJSON, out);
+        rows.status(7, 0, 3, "user3", AWKWARD);
+        rows.flush();
+        String line = out.toString();
+        assertEquals("a single line", line.length() - 1, line.indexOf('\n'));
+        assertEquals("text survives the round trip", AWKWARD, new JSONObject(line).getString("text"));
+    }
+
+    @Test
+    void tsvKeepsOneRecordPerLine() {
+        StringWriter out = new StringWriter();
+        RowRenderer rows = RowRenderer.create(RowRenderer.Format.TSV, out);
+        rows.status(7, 0, 3, "user3", AWKWARD);
+        rows.flush();
+        String line = out.toString();
+        assertEquals("a single line", line.length() - 1, line.indexOf('\n'));
+        String[] fields = line.substring(0, line.length() - 1).split("\t", -1);
+        assertEquals("fields", 4, fields.length);
+        assertEquals("id", "7", fields[0]);
+        assertEquals("date", "1970-01-01T00:00:00Z", fields[1]);
+        assertEquals("escaped text", "comillas \" barra \\\\ tab\\tsalto\\nretorno\\r control\u0001 ñ", fields[3]);
+    }
+
+    @Test
+    void accountIsTheFirstColumn() {
+        StringWriter ndjson = new StringWriter();
+        RowRenderer rows = RowRenderer.create(RowRenderer.Format.NDJSON, ndjson);
+        rows.setAccount("work");
+        rows.status(7, 0, 3, "user3", "hola");
+        rows.flush();
+        assertTrue("account first", ndjson.toString().startsWith("{\"account\":\"work\",\"id\":7,"));
+        assertEquals("account", "work", new JSONObject(ndjson.toString()).getString("account"));
+
+        StringWriter tsv = new StringWriter();
+        rows = RowRenderer.create(RowRenderer.Format.TSV, tsv);
+        rows.setAccount("work");
+        rows.status(7, 0, 3, "user3", "hola");
+        rows.flush();
+        assertEquals("tsv", "work\t7\t1970-01-01T00:00:00Z\tuser3\thola\n", tsv.toString());
+    }
+
+    @Test
+    void concurrentAccountsKeepTheirPagesWhole() throws InterruptedException {
+        ByteArrayOutputStream shared = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(shared, true);
+        int accounts = 4;
+        int pages = 20;
+        Thread[] threads = new Thread[accounts];
+        for (int a = 0; a < accounts; a++) {
+            String account = "account" + a;
+            threads[a] = new Thread(() -> {
+                RowRenderer rows = RowRenderer.create(RowRenderer.Format.NDJSON, new RowRenderer.PageStream(out));
+                rows.setAccount(account);
+                // paginas de 200 filas, mas que el bloque de 8 KiB del encoder
+                for (int page = 0; page < pages; page++) {
+                    for (long id = 1; id <= 200; id++)
+                        rows.status(id, 0, 3, "user3", AWKWARD);
+                    rows.flush();
+                }
+            });
+            threads[a].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        String[] lines = new String(shared.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals("every row", accounts * pages * 200, lines.length);
+        int[] rows = new int[accounts];
+        for (String line : lines) {
+            JSONObject row = new JSONObject(line);
+            assertEquals("text", AWKWARD, row.getString("text"));
+            rows[Integer.parseInt(row.getString("account").substring("account".length()))]++;
+        }
+        for (int count : rows)
+            assertEquals("rows per account", pages * 200, count);
+    }
+
+    @Test
+    void followersStreamAsNdjson() throws TwitterException {
+        Session session = session();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.setOutput(RowRenderer.Format.NDJSON, out);
+        session.printFollowers(null);
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals("one line per follower", 120, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            User user = TwitterObjectFactory.createUser(data.userJson(i + 1));
+            JSONObject row = new JSONObject(lines[i]);
+            assertEquals("id", user.getId(), row.getLong("id"));
+            assertEquals("screen_name", user.getScreenName(), row.getString("screen_name"));
+            assertEquals("followers_count", user.getFollowersCount(), row.getInt("followers_count"));
+        }
+    }
+
+    @Test
+    void timelineStreamsAsNdjson() throws TwitterException {
+        Session session = session();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.setOutput(RowRenderer.Format.NDJSON, out);
+        session.printTimeline();
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals("one line per status", 50, lines.length);
+        long previous = Long.MAX_VALUE;
+        for (String line : lines) {
+            JSONObject row = new JSONObject(line);
+            Status status = TwitterObjectFactory.createStatus(data.statusJson(row.getLong("id")));
+            assertEquals("text", status.getText(), row.getString("text"));
+            assertTrue("newest first", row.getLong("id") < previous);
+            previous = row.getLong("id");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (session != null)
+            session.getOutbox().stop();
+        temp.close();
+    }
+}
@@ -0,0 +1,76 @@
+package twitter;
+
+import twitter.persistence.PersistAccessToken;
+import twitter.persistence.PersistOutbox;
+import twitter.persistence.PersistStatusIndex;
+import twitter.persistence.PersistTimelineCache;
+import twitter4j.TwitterException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de los archivos de datos de una cuenta: al cerrar la sesion se
+ * borran con los tokens, para que otra cuenta no los herede
+ *
+ * @author fsancheztemprano
+ */
+class SessionDataTest implements AutoCloseable {
+    private final TempDir temp = new TempDir();
+    private Session session;
+
+    private Session open(Runnable removeToken) throws TwitterException {
+        PersistAccessToken token = new PersistAccessToken("1-x", "y");
+        token.setIdentity(StubTwitter.AUTH_USER, "user1", System.currentTimeMillis());
+        session = new Session(StubTwitter.create(new SyntheticData(1, 100, 10), 0, 5), token, () -> {
+        }, removeToken, temp.dir);
+        session.setOutput(RowRenderer.Format.TSV, new ByteArrayOutputStream());
+        return session;
+    }
+
+    @Test
+    void clearSessionDeletesTheAccountData() throws IOException, TwitterException {
+        boolean[] removed = {false};
+        Session session = open(() -> removed[0] = true);
+        session.printTimeline();
+        File timeline = temp.file(PersistTimelineCache.DEFAULT_FILE.getName());
+        File index = temp.file(PersistStatusIndex.DEFAULT_FILE.getName());
+        File outbox = temp.file(PersistOutbox.DEFAULT_FILE.getName());
+        assertTrue("timeline cache written", timeline.exists());
+        assertTrue("index written", index.exists());
+        // mensaje encolado por otro proceso de la misma cuenta
+        PersistOutbox other = new PersistOutbox(outbox);
+        other.setDefault();
+        other.append(PersistOutbox.TWEET, 0, "queued");
+        assertTrue("outbox written", outbox.exists());
+
+        session.clearSession();
+        assertTrue("token removed", removed[0]);
+        assertFalse("timeline cache deleted", timeline.exists());
+        assertFalse("index deleted", index.exists());
+        assertFalse("outbox deleted", outbox.exists());
+        assertTrue("nothing left to send", session.getOutbox().awaitIdle(0));
+        assertEquals("index emptied", 0, session.getSearchIndex().size());
+    }
+
+    @Test
+    void queuedTweetIsSentBeforeClearing() throws TwitterException {
+        Session session = open(() -> {
+        });
+        long before = StubTwitter.calls(session.getTwitter());
+        assertTrue("queued", session.updateStatus("hola"));
+        session.clearSession();
+        assertEquals("published before the outbox was deleted", 1, StubTwitter.calls(session.getTwitter()) - before);
+        assertFalse("outbox deleted", temp.file(PersistOutbox.DEFAULT_FILE.getName()).exists());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (session != null)
+            session.getOutbox().stop();
+        temp.close();
+    }
+}
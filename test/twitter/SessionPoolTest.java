@@ -0,0 +1,164 @@
+package twitter;
+
+import twitter.persistence.PersistAccessToken;
+import twitter.persistence.PersistKeystore;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas del pool de sesiones con cuentas de prueba en un almacen
+ * temporal y la api falsa: sesiones perezosas, una sola sesion por cuenta
+ * aunque la pidan varios hilos a la vez y fanOut sobre varias cuentas
+ *
+ * @author fsancheztemprano
+ */
+class SessionPoolTest implements AutoCloseable {
+    private static final List<String> ACCOUNTS = Arrays.asList("alice", "bob", "carol");
+
+    private final SyntheticData data = new SyntheticData(1, 200, 20);
+    private final TempDir temp = new TempDir();
+    private final PersistKeystore keystore = new PersistKeystore(temp.file("accounts.dat"));
+    private final AtomicInteger created = new AtomicInteger();
+    private final Set<String> rejected = ConcurrentHashMap.newKeySet();
+    private final List<Session> sessions = Collections.synchronizedList(new ArrayList<>());
+    private final SessionPool pool;
+
+    SessionPoolTest() {
+        keystore.setDefault();
+        for (String name : ACCOUNTS)
+            keystore.put(name, new PersistAccessToken("1-" + name, "secret-" + name));
+        keystore.saveKey();
+        pool = new SessionPool(keystore, token -> {
+            created.incrementAndGet();
+            if (rejected.contains(token.getToken()))
+                return rejecting();
+            return StubTwitter.create(data, 0, 20);
+        }, temp.file("accounts"));
+    }
+
+    /**
+     * api que rechaza los tokens en cualquier llamada
+     */
+    private static Twitter rejecting() {
+        return (Twitter) Proxy.newProxyInstance(Twitter.class.getClassLoader(), new Class<?>[]{Twitter.class},
+                (proxy, method, args) -> {
+                    throw new TwitterException("HTTP 401", null, 401);
+                });
+    }
+
+    private Session get(String name) throws TwitterException {
+        Session session = pool.get(name);
+        sessions.add(session);
+        return session;
+    }
+
+    @Test
+    void sessionsAreCreatedOnFirstUse() throws TwitterException, IOException {
+        assertEquals("accounts", ACCOUNTS, pool.accounts());
+        assertEquals("nothing created yet", 0, created.get());
+        Session alice = get("alice");
+        assertEquals("created on first use", 1, created.get());
+        assertTrue("same session afterwards", alice == get("alice"));
+        assertEquals("not created again", 1, created.get());
+        assertTrue("data under accounts/alice", temp.file("accounts/alice").isDirectory());
+
+        PersistKeystore saved = new PersistKeystore(keystore.getFile());
+        saved.readKey();
+        assertEquals("verified identity saved with the account",
+                StubTwitter.AUTH_USER, saved.get("alice").getUserId());
+    }
+
+    @Test
+    void concurrentRequestsShareOneSession() throws Exception {
+        int threads = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Session>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return get("bob");
+                }));
+            start.countDown();
+            Session first = futures.get(0).get();
+            for (Future<Session> future : futures)
+                assertTrue("same session", first == future.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals("created once", 1, created.get());
+    }
+
+    @Test
+    void unknownAccountIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> pool.get("nobody"));
+        assertThrows(IllegalArgumentException.class, () -> pool.add("no spaces", new PersistAccessToken("1-x", "y")));
+    }
+
+    @Test
+    void failedSessionIsNotKept() throws TwitterException {
+        rejected.add("1-carol");
+        TwitterException thrown = assertThrows(TwitterException.class, () -> pool.get("carol"));
+        assertEquals("status", 401, thrown.getStatusCode());
+        rejected.clear();
+        assertNotNull("retried on the next request", get("carol"));
+        assertEquals("created twice", 2, created.get());
+    }
+
+    @Test
+    void fanOutRunsOnEveryAccount() throws Exception {
+        rejected.add("1-carol");
+        List<String> names = new ArrayList<>(ACCOUNTS);
+        names.add("nobody");
+        Map<String, CompletableFuture<Long>> results = pool.fanOut(names, (name, session) -> {
+            sessions.add(session);
+            return session.getAuthUserID();
+        });
+        assertEquals("one result per account, in order", names, new ArrayList<>(results.keySet()));
+        for (CompletableFuture<Long> result : results.values())
+            assertTrue("all finished", result.isDone());
+        assertEquals("alice", StubTwitter.AUTH_USER, results.get("alice").get().longValue());
+        assertEquals("bob", StubTwitter.AUTH_USER, results.get("bob").get().longValue());
+        ExecutionException carol = assertThrows(ExecutionException.class, () -> results.get("carol").get());
+        assertTrue("rejected tokens", carol.getCause() instanceof TwitterException);
+        ExecutionException nobody = assertThrows(ExecutionException.class, () -> results.get("nobody").get());
+        assertTrue("unknown account", nobody.getCause() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    void removedAccountIsSaved() throws IOException {
+        assertTrue("removed", pool.remove("bob"));
+        assertFalse("already removed", pool.remove("bob"));
+        PersistKeystore saved = new PersistKeystore(keystore.getFile());
+        saved.readKey();
+        assertEquals("saved", Arrays.asList("alice", "carol"), saved.names());
+        assertThrows(IllegalArgumentException.class, () -> pool.get("bob"));
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Session session : sessions)
+            session.getOutbox().stop();
+        temp.close();
+    }
+}
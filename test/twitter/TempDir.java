@@ -0,0 +1,38 @@
+package twitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * directorio temporal de una prueba, se borra con todo su contenido al
+ * cerrarlo
+ *
+ * @author fsancheztemprano
+ */
+final class TempDir implements AutoCloseable {
+    final File dir;
+
+    TempDir() {
+        try {
+            dir = Files.createTempDirectory("jtwit-test").toFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    File file(String name) {
+        return new File(dir, name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package twitter;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * marca un metodo de prueba para TestRunner, como el @Test de JUnit. El
+ * metodo no recibe parametros y falla lanzando cualquier excepcion
+ *
+ * @author fsancheztemprano
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+@interface Test {
+}
@@ -0,0 +1,119 @@
+package twitter;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ejecuta las pruebas de test/ sin dependencias: cada metodo marcado con
+ * {@link Test} se ejecuta sobre una instancia nueva de su clase, y si la
+ * clase es AutoCloseable se cierra despues (por ejemplo para borrar sus
+ * archivos temporales).
+ * <p>
+ * test/ es, como bench/, un arbol de fuentes aparte que no entra en
+ * jtwit.jar. Se compila junto a las fuentes del programa y de bench/, que
+ * aporta StubTwitter, y se ejecuta con:
+ * <pre>
+ * javac -encoding UTF-8 -cp lib/twitter4j-core-4.0.7.jar -d out/test $(find twitter bench test -name '*.java')
+ * java -cp out/test:lib/twitter4j-core-4.0.7.jar twitter.TestRunner [clase...]
+ * </pre>
+ * El codigo de salida es 1 si falla alguna prueba
+ *
+ * @author fsancheztemprano
+ */
+class TestRunner {
+    /**
+     * clases de prueba, en el orden en que se ejecutan
+     */
+    static final Class<?>[] CLASSES = {
+            UserHydratorTest.class,
+            UserCacheTest.class,
+            TimelinePollerTest.class,
+            RequestSchedulerTest.class,
+            ConsoleInputTest.class,
+            RowRendererTest.class,
+            DeepSearchTest.class,
+            BulkFollowTest.class,
+            SessionPoolTest.class,
+            PersistRecordStoreTest.class,
+            DaemonTest.class,
+            PersistStatusIndexTest.class,
+            OutboxTest.class,
+            SessionDataTest.class,
+            TimelineMergeTest.class,
+            PersistTimelineCacheTest.class,
+            ApiTapeTest.class,
+            ApiMetricsTest.class,
+    };
+
+    public static void main(String[] args) throws Exception {
+        List<Class<?>> selected = new ArrayList<>();
+        for (Class<?> type : CLASSES)
+            if (args.length == 0 || Arrays.asList(args).contains(type.getSimpleName()))
+                selected.add(type);
+        int run = 0;
+        List<String> failures = new ArrayList<>();
+        for (Class<?> type : selected) {
+            List<Method> tests = new ArrayList<>();
+            for (Method method : type.getDeclaredMethods())
+                if (method.isAnnotationPresent(Test.class) && !Modifier.isStatic(method.getModifiers()))
+                    tests.add(method);
+            tests.sort(Comparator.comparing(Method::getName));
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            for (Method test : tests) {
+                String name = type.getSimpleName() + "." + test.getName();
+                run++;
+                long start = System.nanoTime();
+                Throwable error = run(constructor, test);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                if (error == null) {
+                    System.out.println("PASS " + name + " (" + millis + " ms)");
+                } else {
+                    System.out.println("FAIL " + name + " (" + millis + " ms)");
+                    error.printStackTrace(System.out);
+                    failures.add(name);
+                }
+            }
+        }
+        System.out.println("\n" + run + " tests, " + failures.size() + " failures" + (failures.isEmpty() ? "" : ": " + failures));
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * @return - el error de la prueba, o null si ha pasado
+     */
+    private static Throwable run(Constructor<?> constructor, Method test) {
+        Object instance;
+        try {
+            instance = constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            return e.getCause();
+        } catch (ReflectiveOperationException e) {
+            return e;
+        }
+        Throwable error = null;
+        try {
+            test.setAccessible(true);
+            test.invoke(instance);
+        } catch (InvocationTargetException e) {
+            error = e.getCause();
+        } catch (ReflectiveOperationException e) {
+            error = e;
+        }
+        if (instance instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) instance).close();
+            } catch (Exception e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        return error;
+    }
+}
@@ -0,0 +1,84 @@
+package twitter;
+
+import twitter.persistence.PersistSinceIds;
+import twitter4j.Paging;
+import twitter4j.Status;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de la mezcla de timelines contra StubTwitter: orden, tamaño de la
+ * primera pagina, usuarios que fallan y sinceId guardados
+ *
+ * @author fsancheztemprano
+ */
+class TimelineMergeTest implements AutoCloseable {
+    private final TempDir temp = new TempDir();
+    private final Twitter twitter = StubTwitter.create(new SyntheticData(1, 10, 10), 0, 0);
+    private final PersistSinceIds sinceIds = new PersistSinceIds(temp.file("users.since").getPath());
+    private final List<Paging> pagings = new CopyOnWriteArrayList<>();
+    private final List<Status> delivered = new ArrayList<>();
+
+    private TimelineMerge merge(int limit, String failing) {
+        return new TimelineMerge((screenName, paging) -> {
+            pagings.add(paging);
+            if (screenName.equals(failing))
+                throw new TwitterException("HTTP 404", null, 404);
+            return twitter.getUserTimeline(screenName, paging);
+        }, sinceIds, limit, delivered::add);
+    }
+
+    @Test
+    void firstPageAsksOnlyForTheLimit() {
+        TimelineMerge merge = merge(30, null);
+        merge.run(Arrays.asList("user1", "user2", "user3"));
+        assertEquals("one request per user", 3, merge.getRequests());
+        for (Paging paging : pagings)
+            assertEquals("count of the first page", 30, paging.getCount());
+        assertEquals("delivered up to the limit", 30, merge.getDelivered());
+        assertEquals("rows", 30, delivered.size());
+    }
+
+    @Test
+    void rowsComeNewestFirst() {
+        merge(100, null).run(Arrays.asList("user1", "user2", "user3"));
+        for (int i = 1; i < delivered.size(); i++)
+            assertTrue("row " + i + " is not newer than the previous one",
+                    TimelineMerge.NEWEST_FIRST.compare(delivered.get(i - 1), delivered.get(i)) < 0);
+    }
+
+    @Test
+    void failedUserIsSkipped() {
+        TimelineMerge merge = merge(100, "user2");
+        merge.run(Arrays.asList("user1", "user2", "user3"));
+        assertEquals("failed users", Arrays.asList("user2"), merge.getFailed());
+        assertTrue("the others are delivered", merge.getDelivered() > 0);
+        for (Status status : delivered)
+            assertTrue("no rows of the failed user", status.getUser().getId() != 2);
+    }
+
+    @Test
+    void sinceIdIsTheNewestDeliveredStatus() {
+        merge(100, null).run(Arrays.asList("user1", "user2"));
+        for (String screenName : Arrays.asList("user1", "user2")) {
+            long newest = 0;
+            for (Status status : delivered)
+                if (status.getUser().getScreenName().equals(screenName))
+                    newest = Math.max(newest, status.getId());
+            assertEquals("sinceId of " + screenName, newest, sinceIds.get(screenName));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        temp.close();
+    }
+}
@@ -0,0 +1,132 @@
+package twitter;
+
+import twitter4j.RateLimitStatus;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas del modo --follow contra un timeline sintetico: solo se entregan
+ * los status nuevos, los huecos se cubren con maxId y el intervalo se
+ * reparte con las cabeceras de rate limit
+ *
+ * @author fsancheztemprano
+ */
+class TimelinePollerTest {
+    private final SyntheticData data = new SyntheticData(1, 100, 10);
+    private final List<Long> delivered = new ArrayList<>();
+    private final List<Long> sleeps = new ArrayList<>();
+    private long head = 100;
+    private int requests;
+    private int remaining = 15;
+    private int secondsUntilReset = 900;
+
+    private TimelinePoller poller(long sinceId) {
+        return new TimelinePoller(paging -> {
+            requests++;
+            Page page = new Page(rateLimit(remaining, secondsUntilReset));
+            for (long id : SyntheticData.homeTimeline(head, Math.max(0, paging.getSinceId()), Math.max(0, paging.getMaxId()), paging.getCount()))
+                page.add(TwitterObjectFactory.createStatus(data.statusJson(id)));
+            return page;
+        }, sinceId, status -> delivered.add(status.getId()), sleeps::add, 1000);
+    }
+
+    @Test
+    void onlyNewStatusesAreDelivered() throws TwitterException {
+        TimelinePoller poller = poller(90);
+        assertEquals("statuses after sinceId", 10, poller.poll());
+        head += 5;
+        assertEquals("new statuses", 5, poller.poll());
+        assertEquals("nothing new", 0, poller.poll());
+        assertEquals("sinceId", 105, poller.getSinceId());
+        for (int i = 0; i < delivered.size(); i++)
+            assertEquals("oldest first, no repeats", 91 + i, delivered.get(i).longValue());
+    }
+
+    @Test
+    void gapLongerThanAPageIsFilledWithMaxId() throws TwitterException {
+        TimelinePoller poller = poller(100);
+        head = 550;
+        assertEquals("whole gap", 450, poller.poll());
+        assertEquals("three pages", 3, requests);
+        assertEquals("delivered", 450, delivered.size());
+        assertEquals("oldest", 101, delivered.get(0).longValue());
+        assertEquals("newest", 550, delivered.get(449).longValue());
+    }
+
+    @Test
+    void intervalSpreadsTheRemainingRequests() throws TwitterException {
+        TimelinePoller poller = poller(100);
+        poller.poll();
+        assertEquals("900 s for 15 requests", 60_000, poller.getInterval());
+        remaining = 1000;
+        poller.poll();
+        assertEquals("never below the minimum", 1000, poller.getInterval());
+        remaining = 0;
+        poller.poll();
+        assertEquals("wait for the reset", 901_000, poller.getInterval());
+    }
+
+    @Test
+    void runSleepsTheIntervalBetweenPolls() {
+        TimelinePoller poller = new TimelinePoller(paging -> {
+            if (++requests == 3)
+                Thread.currentThread().interrupt();
+            return new Page(rateLimit(remaining, secondsUntilReset));
+        }, 0, status -> {
+        }, sleeps::add, 1000);
+        poller.run();
+        assertTrue("interrupt flag kept", Thread.interrupted());
+        assertEquals("polls", 3, requests);
+        assertEquals("sleeps", "[60000, 60000, 60000]", sleeps.toString());
+    }
+
+    private static RateLimitStatus rateLimit(int remaining, int secondsUntilReset) {
+        return new RateLimitStatus() {
+            @Override
+            public int getRemaining() {
+                return remaining;
+            }
+
+            @Override
+            public int getLimit() {
+                return 15;
+            }
+
+            @Override
+            public int getResetTimeInSeconds() {
+                return (int) (System.currentTimeMillis() / 1000) + secondsUntilReset;
+            }
+
+            @Override
+            public int getSecondsUntilReset() {
+                return secondsUntilReset;
+            }
+        };
+    }
+
+    private static final class Page extends ArrayList<Status> implements ResponseList<Status> {
+        private static final long serialVersionUID = 1L;
+        private final transient RateLimitStatus rateLimit;
+
+        Page(RateLimitStatus rateLimit) {
+            this.rateLimit = rateLimit;
+        }
+
+        @Override
+        public RateLimitStatus getRateLimitStatus() {
+            return rateLimit;
+        }
+
+        @Override
+        public int getAccessLevel() {
+            return READ_WRITE_DIRECTMESSAGES;
+        }
+    }
+}
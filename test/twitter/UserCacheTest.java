@@ -0,0 +1,85 @@
+package twitter;
+
+import twitter.persistence.PersistAccessToken;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+import twitter4j.User;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de UserCache con un reloj falso y de la cache delante de showUser
+ *
+ * @author fsancheztemprano
+ */
+class UserCacheTest implements AutoCloseable {
+    private final SyntheticData data = new SyntheticData(1, 100, 10);
+    private final AtomicLong now = new AtomicLong(1000);
+    private final TempDir temp = new TempDir();
+
+    private User user(long id) throws TwitterException {
+        return TwitterObjectFactory.createUser(data.userJson(id));
+    }
+
+    @Test
+    void hitsAndMissesByIdAndScreenName() throws TwitterException {
+        UserCache cache = new UserCache(10, 100, now::get);
+        cache.put(user(1));
+        assertEquals("by id", 1L, cache.get(1).getId());
+        assertEquals("by screen name, ignoring case", 1L, cache.get("USER1").getId());
+        assertNull("unknown id", cache.get(2));
+        assertNull("unknown screen name", cache.get("user2"));
+        assertEquals("hits", 2, cache.getHits());
+        assertEquals("misses", 2, cache.getMisses());
+    }
+
+    @Test
+    void expiredEntryCountsOneMiss() throws TwitterException {
+        UserCache cache = new UserCache(10, 100, now::get);
+        cache.put(user(1));
+        cache.put(user(2));
+        now.addAndGet(101);
+        assertNull("expired by screen name", cache.get("user1"));
+        assertEquals("one miss for the expired lookup", 1, cache.getMisses());
+        assertNull("expired by id", cache.get(2));
+        assertEquals("one miss per lookup", 2, cache.getMisses());
+        assertEquals("expired entries are removed", 0, cache.size());
+        assertNull("removed from the screen name index", cache.get("user1"));
+        assertEquals("misses", 3, cache.getMisses());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws TwitterException {
+        UserCache cache = new UserCache(2, 100, now::get);
+        cache.put(user(1));
+        cache.put(user(2));
+        cache.get(1);
+        cache.put(user(3));
+        assertEquals("size", 2, cache.size());
+        assertNull("least recently used is evicted", cache.get("user2"));
+        assertNotNull("recently read survives", cache.get("user1"));
+        assertEquals("evictions", 1, cache.getEvictions());
+    }
+
+    @Test
+    void pickUserCallsTheApiOnce() throws TwitterException {
+        Twitter twitter = StubTwitter.create(data, 0, 0);
+        Session session = new Session(twitter, new PersistAccessToken("token", "secret"), () -> {
+        }, () -> {
+        }, temp.dir);
+        long before = StubTwitter.calls(twitter);
+        for (int i = 0; i < 5; i++)
+            assertEquals("picked user", 7L, session.pickUser("user7").getId());
+        assertEquals("showUser calls", 1, StubTwitter.calls(twitter) - before);
+        assertEquals("cache hits", 4, session.getUserCache().getHits());
+    }
+
+    @Override
+    public void close() throws IOException {
+        temp.close();
+    }
+}
@@ -0,0 +1,93 @@
+package twitter;
+
+import twitter.persistence.PersistAccessToken;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static twitter.Assert.*;
+
+/**
+ * pruebas de la resolucion de usuarios en bloques de 100 contra
+ * StubTwitter, contando las llamadas
+ *
+ * @author fsancheztemprano
+ */
+class UserHydratorTest implements AutoCloseable {
+    private final SyntheticData data = new SyntheticData(1, 1000, 250);
+    private final Twitter twitter = StubTwitter.create(data, 0, 0);
+    private final TempDir temp = new TempDir();
+    private final List<Integer> chunks = new ArrayList<>();
+    private final List<Long> hydrated = new ArrayList<>();
+    private Session session;
+
+    private UserHydrator hydrator(UserCache cache) {
+        return new UserHydrator(ids -> {
+            chunks.add(ids.length);
+            return twitter.lookupUsers(ids);
+        }, cache, user -> hydrated.add(user.getId()));
+    }
+
+    @Test
+    void idsAreResolvedInChunksOf100() throws TwitterException {
+        UserHydrator hydrator = hydrator(null);
+        for (long id = 1; id <= 250; id++)
+            hydrator.add(id);
+        assertEquals("full chunks are resolved as they fill", 2, hydrator.getRequests());
+        hydrator.flush();
+        assertEquals("requests", 3, hydrator.getRequests());
+        assertEquals("chunk sizes", "[100, 100, 50]", chunks.toString());
+        assertEquals("calls to twitter", 3, StubTwitter.calls(twitter));
+        assertEquals("users", 250, hydrated.size());
+    }
+
+    @Test
+    void usersComeInTheOrderOfTheIdsAndMissingOnesAreSkipped() throws TwitterException {
+        UserHydrator hydrator = hydrator(null);
+        hydrator.addAll(new long[]{30, 5000, 10, 20});
+        hydrator.flush();
+        assertEquals("order, without the unknown user", "[30, 10, 20]", hydrated.toString());
+    }
+
+    @Test
+    void cachedUsersAreNotRequested() throws TwitterException {
+        UserCache cache = new UserCache();
+        UserHydrator first = hydrator(cache);
+        for (long id = 1; id <= 100; id++)
+            first.add(id);
+        UserHydrator second = hydrator(cache);
+        for (long id = 51; id <= 150; id++)
+            second.add(id);
+        second.flush();
+        assertEquals("only the uncached half is requested", "[100, 50]", chunks.toString());
+        assertEquals("users", 200, hydrated.size());
+    }
+
+    @Test
+    void printFollowersMakesOneLookupPer100Ids() throws TwitterException {
+        PersistAccessToken token = new PersistAccessToken("1-x", "y");
+        token.setIdentity(StubTwitter.AUTH_USER, "user1", System.currentTimeMillis());
+        session = new Session(twitter, token, () -> {
+        }, () -> {
+        }, temp.dir);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.setOutput(RowRenderer.Format.TSV, out);
+        session.printFollowers(null);
+        String[] rows = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals("one row per follower", 250, rows.length);
+        assertEquals("one IDs page and three lookups", 4, StubTwitter.calls(twitter));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (session != null)
+            session.getOutbox().stop();
+        temp.close();
+    }
+}
@@ -0,0 +1,298 @@
+package twitter;
+
+import twitter4j.TwitterException;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Metricas de las llamadas a la api por endpoint: llamadas, errores,
+ * reintentos, bytes recibidos e histograma de latencias. RequestScheduler
+ * mide cada intento de cada llamada de Session y MeteredHttpClient mide
+ * las de autenticacion; los bytes los anota MeteredHttpClient en el mismo
+ * hilo de la llamada.
+ * <p>
+ * El histograma es logaritmico como los HDR: 16 subcubos por potencia de
+ * dos, con un error menor del 7%, en microsegundos y en un AtomicLongArray,
+ * asi que registrar una llamada son unos pocos incrementos sin bloqueos.
+ * El informe se muestra con jtwit stats. El daemon y el menu interactivo
+ * lo vuelcan a stats.txt cada cierto tiempo y al terminar; los comandos
+ * sueltos no, para no pisar esos volcados
+ *
+ * @author fsancheztemprano
+ */
+public final class ApiMetrics {
+    /**
+     * metricas del proceso
+     */
+    public static final ApiMetrics GLOBAL = new ApiMetrics();
+    /**
+     * archivo del ultimo volcado, junto a token.dat
+     */
+    static final File FILE = new File("stats.txt");
+    /**
+     * segundos entre volcados, configurable con -Djtwit.stats.interval
+     */
+    static final long DUMP_INTERVAL = Long.getLong("jtwit.stats.interval", 60);
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /**
+     * hasta 2^40 microsegundos, las latencias mayores van al ultimo cubo
+     */
+    private static final int BUCKETS = (40 - SUB_BITS + 1) * SUB_BUCKETS;
+    private static final ThreadLocal<long[]> BYTES = ThreadLocal.withInitial(() -> new long[1]);
+    private static final Logger LOG = Logger.getLogger(ApiMetrics.class.getName());
+
+    /**
+     * contadores de un endpoint
+     */
+    static final class Endpoint {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        /**
+         * marca el inicio de un intento
+         *
+         * @return - instante de inicio para success o failure
+         */
+        long start() {
+            BYTES.get()[0] = 0;
+            return System.nanoTime();
+        }
+
+        void success(long start) {
+            record(start);
+        }
+
+        void failure(long start) {
+            errors.increment();
+            record(start);
+        }
+
+        void retry() {
+            retries.increment();
+        }
+
+        private void record(long start) {
+            add((System.nanoTime() - start) / 1000);
+            long[] received = BYTES.get();
+            if (received[0] > 0) {
+                bytes.add(received[0]);
+                received[0] = 0;
+            }
+        }
+
+        /**
+         * anota la latencia de una llamada ya medida
+         *
+         * @param micros - latencia en microsegundos
+         */
+        void add(long micros) {
+            calls.increment();
+            max.accumulate(micros);
+            histogram.incrementAndGet(bucket(micros));
+        }
+
+        /**
+         * @param quantile - entre 0 y 1
+         * @return - latencia en microsegundos por debajo de la que quedan
+         * esa fraccion de las llamadas
+         */
+        long percentile(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                total += counts[i] = histogram.get(i);
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+    }
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final long startedAt = System.currentTimeMillis();
+    private ScheduledExecutorService dumper;
+
+    /**
+     * instala MeteredHttpClient como cliente HTTP de twitter4j para contar
+     * los bytes recibidos. Tiene que llamarse antes de crear la primera
+     * instancia de twitter; no hace nada si ya se eligio otro cliente con
+     * -Dtwitter4j.http.httpClient
+     */
+    static void install() {
+        if (System.getProperty("twitter4j.http.httpClient") == null)
+            System.setProperty("twitter4j.http.httpClient", MeteredHttpClient.class.getName());
+    }
+
+    /**
+     * anota bytes recibidos por la llamada en curso en este hilo
+     */
+    static void addBytes(long count) {
+        BYTES.get()[0] += count;
+    }
+
+    static int bucket(long micros) {
+        if (micros < 0)
+            return 0;
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS);
+        return Math.min(BUCKETS - 1, (shift << SUB_BITS) + (int) (micros >>> shift));
+    }
+
+    /**
+     * @return - mayor valor que cae en el cubo
+     */
+    static long upperBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS)
+            return bucket;
+        int shift = (bucket >> SUB_BITS) - 1;
+        return ((long) (bucket - (shift << SUB_BITS) + 1) << shift) - 1;
+    }
+
+    /**
+     * @param endpoint - recurso de la api
+     * @return - contadores del endpoint, creados la primera vez
+     */
+    Endpoint endpoint(String endpoint) {
+        Endpoint stats = endpoints.get(endpoint);
+        return stats != null ? stats : endpoints.computeIfAbsent(endpoint, key -> new Endpoint());
+    }
+
+    /**
+     * mide una llamada que no pasa por RequestScheduler
+     *
+     * @param endpoint - recurso de la api
+     * @param call     - llamada a realizar
+     * @return - resultado de la llamada
+     * @throws TwitterException - si la llamada falla
+     */
+    public <T> T time(String endpoint, TwitterCall<T> call) throws TwitterException {
+        Endpoint stats = endpoint(endpoint);
+        long start = stats.start();
+        try {
+            T result = call.call();
+            stats.success(start);
+            return result;
+        } catch (TwitterException | RuntimeException e) {
+            stats.failure(start);
+            throw e;
+        }
+    }
+
+    /**
+     * @return - llamadas registradas en todos los endpoints
+     */
+    long totalCalls() {
+        long total = 0;
+        for (Endpoint stats : endpoints.values())
+            total += stats.calls.sum();
+        return total;
+    }
+
+    /**
+     * vuelca el informe al archivo cada interval segundos y al terminar el
+     * programa, siempre que se haya hecho alguna llamada
+     *
+     * @param file     - archivo del volcado
+     * @param interval - segundos entre volcados
+     */
+    synchronized void startDump(File file, long interval) {
+        if (dumper != null)
+            return;
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jtwit-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (interval > 0)
+            dumper.scheduleWithFixedDelay(() -> dump(file), interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(file)));
+    }
+
+    /**
+     * escribe el informe en el archivo de forma atomica
+     *
+     * @param file - archivo del volcado
+     */
+    synchronized void dump(File file) {
+        if (totalCalls() == 0)
+            return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), report().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not write " + file, e);
+        }
+    }
+
+    /**
+     * @return - tabla con las metricas de cada endpoint y el estado de la
+     * JVM (recolecciones, heap e hilos) para relacionar la latencia con el GC
+     */
+    String report() {
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("jtwit stats, pid %s, since %s, at %s%n", pid(), date.format(new Date(startedAt)), date.format(new Date())));
+        out.append(String.format("%-32s %7s %6s %7s %10s %9s %9s %9s %9s%n",
+                "endpoint", "calls", "errors", "retries", "KB", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (Map.Entry<String, Endpoint> entry : new TreeMap<>(endpoints).entrySet()) {
+            Endpoint stats = entry.getValue();
+            out.append(String.format("%-32s %7d %6d %7d %10.1f %9.1f %9.1f %9.1f %9.1f%n", entry.getKey(),
+                    stats.calls.sum(), stats.errors.sum(), stats.retries.sum(), stats.bytes.sum() / 1024.0,
+                    stats.percentile(0.5) / 1000.0, stats.percentile(0.9) / 1000.0,
+                    stats.percentile(0.99) / 1000.0, stats.max.get() / 1000.0));
+        }
+        long collections = 0;
+        long collectionMillis = 0;
+        List<String> collectors = new ArrayList<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, gc.getCollectionCount());
+            collectionMillis += Math.max(0, gc.getCollectionTime());
+            collectors.add(gc.getName());
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        out.append(String.format("jvm: %d gc (%d ms, %s), heap %d/%d MB, %d threads%n", collections, collectionMillis,
+                String.join(", ", collectors), heap.getUsed() >> 20, heap.getCommitted() >> 20,
+                ManagementFactory.getThreadMXBean().getThreadCount()));
+        return out.toString();
+    }
+
+    private static String pid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        return at > 0 ? name.substring(0, at) : name;
+    }
+}
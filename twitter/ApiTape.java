@@ -0,0 +1,426 @@
+package twitter;
+
+import twitter.persistence.PersistConsumerKey;
+import twitter.persistence.PersistTape;
+import twitter4j.HttpClient;
+import twitter4j.HttpClientConfiguration;
+import twitter4j.HttpParameter;
+import twitter4j.HttpRequest;
+import twitter4j.HttpResponse;
+import twitter4j.HttpResponseListener;
+import twitter4j.JSONArray;
+import twitter4j.JSONException;
+import twitter4j.JSONObject;
+import twitter4j.RequestMethod;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterFactory;
+import twitter4j.auth.AccessToken;
+import twitter4j.auth.Authorization;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Grabacion y reproduccion de las peticiones a la api. Se sustituye el
+ * cliente HTTP de una instancia de twitter: al grabar cada peticion se
+ * guarda en un PersistTape con el JSON de la respuesta y su duracion, y al
+ * reproducir las respuestas salen de la grabacion sin tocar la red, con la
+ * duracion original o lo mas rapido posible. twitter4j sigue parseando el
+ * JSON, asi que la reproduccion mide lo mismo que una ejecucion real.
+ * <p>
+ * Al reproducir una peticion se busca una grabada con el mismo metodo, ruta
+ * y parametros; si no hay ninguna se usa una con el mismo metodo y ruta,
+ * sin tener en cuenta los parametros que twitter4j pone en la url (por
+ * ejemplo con otro since_id). Las peticiones repetidas se sirven en el
+ * orden en que se grabaron y al acabarse se vuelve a empezar
+ *
+ * @author fsancheztemprano
+ */
+final class ApiTape {
+    private static final Logger LOG = Logger.getLogger(ApiTape.class.getName());
+    private static final Field HTTP = httpField();
+
+    private ApiTape() {
+    }
+
+    /**
+     * el cliente HTTP de cada instancia esta en un campo no publico de
+     * twitter4j
+     */
+    private static Field httpField() {
+        try {
+            Field field = Class.forName("twitter4j.TwitterBaseImpl").getDeclaredField("http");
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("twitter4j.TwitterBaseImpl.http not available", e);
+        }
+    }
+
+    private static void swap(Twitter twitter, Function<HttpClient, HttpClient> client) {
+        try {
+            HTTP.set(twitter, client.apply((HttpClient) HTTP.get(twitter)));
+        } catch (IllegalAccessException | IllegalArgumentException e) {
+            throw new IllegalStateException("Can not replace the http client of " + twitter.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * graba todas las peticiones que haga la instancia a partir de ahora
+     *
+     * @param twitter - instancia de twitter
+     * @param tape    - grabacion donde se añaden las peticiones
+     */
+    static void record(Twitter twitter, PersistTape tape) {
+        swap(twitter, http -> new Recorder(http, tape));
+    }
+
+    /**
+     * la instancia deja de usar la red y responde con la grabacion
+     *
+     * @param twitter  - instancia de twitter
+     * @param tape     - grabacion ya leida con readKey
+     * @param realTime - true para tardar lo mismo que la peticion original
+     */
+    static void replay(Twitter twitter, PersistTape tape, boolean realTime) {
+        HttpClientConfiguration conf = twitter.getConfiguration().getHttpClientConfiguration();
+        swap(twitter, http -> new Player(conf, http.getRequestHeaders(), tape, realTime));
+    }
+
+    /**
+     * @param tape     - grabacion ya leida con readKey
+     * @param realTime - true para tardar lo mismo que la peticion original
+     * @return - instancia de twitter que responde con la grabacion
+     */
+    static Twitter replay(PersistTape tape, boolean realTime) {
+        PersistConsumerKey consumer = new PersistConsumerKey();
+        consumer.setDefault();
+        Twitter twitter = new TwitterFactory(Session.configuration(consumer).build())
+                .getInstance(new AccessToken("0-replay", "replay"));
+        replay(twitter, tape, realTime);
+        return twitter;
+    }
+
+    /**
+     * clave de una peticion: metodo, ruta sin el servidor y parametros
+     * ordenados
+     */
+    static String key(String method, String url, String[] params) {
+        StringBuilder key = new StringBuilder(64).append(method).append(' ').append(path(url));
+        String[] pairs = new String[params.length / 2];
+        for (int i = 0; i < pairs.length; i++)
+            pairs[i] = params[2 * i] + '=' + params[2 * i + 1];
+        Arrays.sort(pairs);
+        char separator = '?';
+        for (String pair : pairs) {
+            key.append(separator).append(pair);
+            separator = '&';
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return - la url sin el esquema ni el servidor, para reproducir
+     * grabaciones hechas contra otra url base
+     */
+    static String path(String url) {
+        int scheme = url.indexOf("://");
+        int path = scheme < 0 ? -1 : url.indexOf('/', scheme + 3);
+        return path < 0 ? url : url.substring(path);
+    }
+
+    /**
+     * @return - metodo y ruta sin los parametros, para buscar una respuesta
+     * cuando no hay ninguna grabada con los mismos parametros
+     */
+    static String route(String method, String url) {
+        int query = url.indexOf('?');
+        return method + ' ' + path(query < 0 ? url : url.substring(0, query));
+    }
+
+    private static String[] params(HttpParameter[] parameters) {
+        if (parameters == null)
+            return new String[0];
+        String[] params = new String[parameters.length * 2];
+        for (int i = 0; i < parameters.length; i++) {
+            HttpParameter parameter = parameters[i];
+            params[2 * i] = parameter.isJson() ? "json" : parameter.getName();
+            if (parameter.isJson())
+                params[2 * i + 1] = parameter.getJsonObject().toString();
+            else if (parameter.isFile())
+                params[2 * i + 1] = "@" + parameter.getFile().getName();
+            else
+                params[2 * i + 1] = String.valueOf(parameter.getValue());
+        }
+        return params;
+    }
+
+    /**
+     * cliente HTTP base: todas las peticiones acaban en request(req, listener)
+     * igual que en el cliente por defecto de twitter4j
+     */
+    private abstract static class TapeClient implements HttpClient {
+        private final Map<String, String> requestHeaders;
+
+        TapeClient(Map<String, String> requestHeaders) {
+            this.requestHeaders = requestHeaders;
+        }
+
+        @Override
+        public void addDefaultRequestHeader(String name, String value) {
+            requestHeaders.put(name, value);
+        }
+
+        @Override
+        public Map<String, String> getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public HttpResponse request(HttpRequest req) throws TwitterException {
+            return request(req, null);
+        }
+
+        private HttpResponse request(RequestMethod method, String url, HttpParameter[] params, Authorization authorization, HttpResponseListener listener) throws TwitterException {
+            return request(new HttpRequest(method, url, params, authorization, requestHeaders), listener);
+        }
+
+        @Override
+        public HttpResponse get(String url, HttpParameter[] params, Authorization authorization, HttpResponseListener listener) throws TwitterException {
+            return request(RequestMethod.GET, url, params, authorization, listener);
+        }
+
+        @Override
+        public HttpResponse get(String url) throws TwitterException {
+            return request(RequestMethod.GET, url, null, null, null);
+        }
+
+        @Override
+        public HttpResponse post(String url, HttpParameter[] params, Authorization authorization, HttpResponseListener listener) throws TwitterException {
+            return request(RequestMethod.POST, url, params, authorization, listener);
+        }
+
+        @Override
+        public HttpResponse post(String url) throws TwitterException {
+            return request(RequestMethod.POST, url, null, null, null);
+        }
+
+        @Override
+        public HttpResponse delete(String url, HttpParameter[] params, Authorization authorization, HttpResponseListener listener) throws TwitterException {
+            return request(RequestMethod.DELETE, url, params, authorization, listener);
+        }
+
+        @Override
+        public HttpResponse delete(String url) throws TwitterException {
+            return request(RequestMethod.DELETE, url, null, null, null);
+        }
+
+        @Override
+        public HttpResponse head(String url) throws TwitterException {
+            return request(RequestMethod.HEAD, url, null, null, null);
+        }
+
+        @Override
+        public HttpResponse put(String url, HttpParameter[] params, Authorization authorization, HttpResponseListener listener) throws TwitterException {
+            return request(RequestMethod.PUT, url, params, authorization, listener);
+        }
+
+        @Override
+        public HttpResponse put(String url) throws TwitterException {
+            return request(RequestMethod.PUT, url, null, null, null);
+        }
+    }
+
+    /**
+     * hace las peticiones con el cliente original y las graba
+     */
+    private static final class Recorder extends TapeClient {
+        private final HttpClient delegate;
+        private final PersistTape tape;
+        private final long start = System.nanoTime();
+
+        Recorder(HttpClient delegate, PersistTape tape) {
+            super(delegate.getRequestHeaders());
+            this.delegate = delegate;
+            this.tape = tape;
+        }
+
+        @Override
+        public void addDefaultRequestHeader(String name, String value) {
+            delegate.addDefaultRequestHeader(name, value);
+        }
+
+        @Override
+        public HttpResponse request(HttpRequest req, HttpResponseListener listener) throws TwitterException {
+            long begin = System.nanoTime();
+            HttpResponse response;
+            try {
+                response = delegate.request(req, listener);
+            } catch (TwitterException e) {
+                // los errores de la api tambien se graban, sin los de red
+                if (e.getStatusCode() > 0)
+                    save(req, begin, e.getStatusCode(), errorHeaders(e), errorBody(e));
+                throw e;
+            }
+            // twitter4j guarda el cuerpo leido y lo vuelve a usar al parsear
+            save(req, begin, response.getStatusCode(), headers(response), response.asString());
+            return response;
+        }
+
+        private void save(HttpRequest req, long begin, int status, String[] headers, String body) {
+            long end = System.nanoTime();
+            try {
+                tape.append(new PersistTape.Entry(TimeUnit.NANOSECONDS.toMillis(begin - start), TimeUnit.NANOSECONDS.toMicros(end - begin),
+                        req.getMethod().name(), req.getURL(), params(req.getParameters()), status, headers, body));
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Can not record " + req.getURL() + " in " + tape.getFile(), e);
+            }
+        }
+
+        private static String[] headers(HttpResponse response) {
+            List<String> headers = new ArrayList<>();
+            for (Map.Entry<String, List<String>> header : response.getResponseHeaderFields().entrySet()) {
+                // la clave null es la linea de estado
+                if (header.getKey() == null)
+                    continue;
+                for (String value : header.getValue()) {
+                    headers.add(header.getKey());
+                    headers.add(value);
+                }
+            }
+            return headers.toArray(new String[0]);
+        }
+
+        /**
+         * la excepcion no conserva el cuerpo ni todas las cabeceras, se guardan
+         * las que usan twitter4j y RequestScheduler
+         */
+        private static String[] errorHeaders(TwitterException e) {
+            List<String> headers = new ArrayList<>();
+            for (String name : new String[]{"x-rate-limit-limit", "x-rate-limit-remaining", "x-rate-limit-reset", "retry-after"}) {
+                String value = e.getResponseHeader(name);
+                if (value != null)
+                    Collections.addAll(headers, name, value);
+            }
+            return headers.toArray(new String[0]);
+        }
+
+        private static String errorBody(TwitterException e) {
+            if (e.getErrorCode() < 0)
+                return "";
+            try {
+                JSONObject error = new JSONObject().put("code", e.getErrorCode()).put("message", e.getErrorMessage());
+                return new JSONObject().put("errors", new JSONArray().put(error)).toString();
+            } catch (JSONException ex) {
+                return "";
+            }
+        }
+    }
+
+    /**
+     * responde con la grabacion
+     */
+    private static final class Player extends TapeClient {
+        private final HttpClientConfiguration conf;
+        private final boolean realTime;
+        private final Map<String, Replies> byKey = new HashMap<>();
+        private final Map<String, Replies> byPath = new HashMap<>();
+
+        Player(HttpClientConfiguration conf, Map<String, String> requestHeaders, PersistTape tape, boolean realTime) {
+            super(new HashMap<>(requestHeaders));
+            this.conf = conf;
+            this.realTime = realTime;
+            for (PersistTape.Entry entry : tape.getEntries()) {
+                byKey.computeIfAbsent(key(entry.method, entry.url, entry.params), k -> new Replies()).entries.add(entry);
+                byPath.computeIfAbsent(route(entry.method, entry.url), k -> new Replies()).entries.add(entry);
+            }
+        }
+
+        @Override
+        public HttpResponse request(HttpRequest req, HttpResponseListener listener) throws TwitterException {
+            String method = req.getMethod().name();
+            String key = key(method, req.getURL(), params(req.getParameters()));
+            Replies replies = byKey.get(key);
+            if (replies == null)
+                replies = byPath.get(route(method, req.getURL()));
+            if (replies == null)
+                throw new TwitterException("No recorded response for " + key, null, 404);
+            PersistTape.Entry entry = replies.next();
+            if (realTime) {
+                try {
+                    TimeUnit.MICROSECONDS.sleep(entry.micros);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TwitterException(e);
+                }
+            }
+            Reply response = new Reply(conf, entry);
+            ApiMetrics.addBytes(response.length);
+            // mismos codigos de error que el cliente por defecto de twitter4j
+            if (entry.status < 200 || (entry.status != 302 && entry.status >= 300))
+                throw new TwitterException(entry.body, response);
+            return response;
+        }
+    }
+
+    /**
+     * respuestas grabadas para una misma peticion, en orden
+     */
+    private static final class Replies {
+        final List<PersistTape.Entry> entries = new ArrayList<>();
+        final AtomicInteger next = new AtomicInteger();
+
+        PersistTape.Entry next() {
+            return entries.get(Math.floorMod(next.getAndIncrement(), entries.size()));
+        }
+    }
+
+    /**
+     * respuesta grabada, con el cuerpo ya leido
+     */
+    private static final class Reply extends HttpResponse {
+        private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final int length;
+
+        Reply(HttpClientConfiguration conf, PersistTape.Entry entry) {
+            super(conf);
+            statusCode = entry.status;
+            responseAsString = entry.body == null ? "" : entry.body;
+            byte[] bytes = responseAsString.getBytes(StandardCharsets.UTF_8);
+            length = bytes.length;
+            is = new ByteArrayInputStream(bytes);
+            for (int i = 0; i + 1 < entry.headers.length; i += 2)
+                headers.computeIfAbsent(entry.headers[i], k -> new ArrayList<>()).add(entry.headers[i + 1]);
+        }
+
+        @Override
+        public String getResponseHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaderFields() {
+            return headers;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package twitter;
+
+import twitter4j.Paging;
+import twitter4j.Relationship;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.User;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Capa asincrona sobre Session. Lanza las llamadas a twitter en un pool de
+ * hilos y devuelve CompletableFuture, de forma que varias consultas
+ * independientes se resuelven en paralelo en lugar de una detras de otra
+ *
+ * @author fsancheztemprano
+ */
+class AsyncSession {
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(8, runnable -> {
+        Thread thread = new Thread(runnable, "jtwit-async");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Session session;
+
+    /**
+     * @param session - sesion autenticada correctamente
+     */
+    AsyncSession(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * ejecuta una llamada a twitter en el pool, un TwitterException completa
+     * el future con una CompletionException que lo envuelve
+     *
+     * @param call - llamada a ejecutar
+     * @return - future con el resultado
+     */
+    <T> CompletableFuture<T> supply(TwitterCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (TwitterException e) {
+                throw new CompletionException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    CompletableFuture<User> user(String screenName) {
+        return supply(() -> session.pickUser(screenName));
+    }
+
+    CompletableFuture<Relationship> relationship(String screenName) {
+        return supply(() -> session.call("/friendships/show",
+                () -> session.getTwitter().showFriendship(session.getScreenName(), screenName)));
+    }
+
+    CompletableFuture<ResponseList<Status>> timeline(String screenName) {
+        return supply(() -> session.call("/statuses/user_timeline",
+                () -> session.getTwitter().getUserTimeline(screenName, new Paging().count(50))));
+    }
+
+    /**
+     * lanza en paralelo la carga del usuario (con sus contadores de
+     * seguidores), su relacion con el usuario autenticado y la primera pagina
+     * de su timeline
+     *
+     * @param screenName - screenName del usuario
+     * @return - vista con los datos en carga
+     */
+    UserView view(String screenName) {
+        return new UserView(screenName);
+    }
+
+    /**
+     * datos precargados de un usuario para el menu de interaccion
+     */
+    class UserView {
+        private final String screenName;
+        private final CompletableFuture<User> user;
+        private final CompletableFuture<ResponseList<Status>> timeline;
+        private CompletableFuture<Relationship> relationship;
+
+        private UserView(String screenName) {
+            this.screenName = screenName;
+            this.user = user(screenName);
+            this.relationship = relationship(screenName);
+            this.timeline = timeline(screenName);
+        }
+
+        User getUser() throws TwitterException {
+            return await(user);
+        }
+
+        Relationship getRelationship() throws TwitterException {
+            return await(relationship);
+        }
+
+        ResponseList<Status> getTimeline() throws TwitterException {
+            return await(timeline);
+        }
+
+        /**
+         * vuelve a pedir la relacion en segundo plano, por ejemplo tras
+         * seguir o dejar de seguir al usuario
+         */
+        void reloadRelationship() {
+            relationship = relationship(screenName);
+        }
+    }
+
+    /**
+     * espera el resultado de un future desenvolviendo el TwitterException
+     *
+     * @param future - future a esperar
+     * @return - resultado
+     * @throws TwitterException - si la llamada a twitter fallo
+     */
+    static <T> T await(CompletableFuture<T> future) throws TwitterException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TwitterException)
+                throw (TwitterException) e.getCause();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package twitter;
+
+import twitter.persistence.PersistCheckpoint;
+import twitter4j.Friendship;
+import twitter4j.ResponseList;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Seguir o dejar de seguir una lista de usuarios. Las relaciones se
+ * consultan en bloques de 100 con lookupFriendships, los usuarios que ya
+ * estan en el estado pedido se saltan y el resto se aplican con un numero
+ * limitado de hilos. Cada ID terminado se añade a un archivo de progreso,
+ * de forma que si la ejecucion se interrumpe la siguiente empieza donde se
+ * quedo. El archivo se borra cuando la lista se completa sin errores
+ *
+ * @author fsancheztemprano
+ */
+class BulkFollow {
+    /**
+     * operaciones de twitter que usa el proceso, para poder sustituirlas en
+     * pruebas o pasarlas por el planificador de la session
+     */
+    interface Friendships {
+        ResponseList<Friendship> lookup(long[] ids) throws TwitterException;
+
+        void follow(long userId) throws TwitterException;
+
+        void unfollow(long userId) throws TwitterException;
+    }
+
+    /**
+     * @param twitter - instancia de twitter, real o de pruebas
+     * @return - operaciones directas sobre la instancia
+     */
+    static Friendships of(Twitter twitter) {
+        return new Friendships() {
+            @Override
+            public ResponseList<Friendship> lookup(long[] ids) throws TwitterException {
+                return twitter.lookupFriendships(ids);
+            }
+
+            @Override
+            public void follow(long userId) throws TwitterException {
+                twitter.createFriendship(userId);
+            }
+
+            @Override
+            public void unfollow(long userId) throws TwitterException {
+                twitter.destroyFriendship(userId);
+            }
+        };
+    }
+
+    /**
+     * numero maximo de IDs que admite friendships/lookup por peticion
+     */
+    static final int CHUNK_SIZE = 100;
+    /**
+     * hilos que aplican los cambios, configurable con -Djtwit.bulk.threads
+     */
+    static final int DEFAULT_THREADS = Integer.getInteger("jtwit.bulk.threads", 4);
+
+    private static final Logger LOG = Logger.getLogger(BulkFollow.class.getName());
+
+    private final Friendships api;
+    private final boolean follow;
+    private final PersistCheckpoint checkpoint;
+    private final int threads;
+    private Runnable onProgress = () -> {
+    };
+    private final AtomicInteger applied = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private int resumed;
+    private int lookups;
+    private long start;
+    private long elapsed;
+
+    /**
+     * @param api        - operaciones de twitter
+     * @param follow     - true para seguir, false para dejar de seguir
+     * @param checkpoint - archivo de progreso
+     * @param threads    - numero de hilos que aplican los cambios
+     */
+    BulkFollow(Friendships api, boolean follow, PersistCheckpoint checkpoint, int threads) {
+        this.api = api;
+        this.follow = follow;
+        this.checkpoint = checkpoint;
+        this.threads = threads;
+    }
+
+    /**
+     * accion a ejecutar tras cada bloque de 100 IDs, por ejemplo imprimir el progreso
+     *
+     * @param onProgress - accion a ejecutar
+     */
+    void setOnProgress(Runnable onProgress) {
+        this.onProgress = onProgress;
+    }
+
+    /**
+     * aplica la operacion a todos los IDs que no esten ya en el archivo de
+     * progreso y espera a que terminen
+     *
+     * @param ids - IDs de usuario
+     * @throws TwitterException - si falla una consulta de relaciones, el
+     *                          progreso queda guardado para retomarlo
+     */
+    void run(SortedLongSet ids) throws TwitterException {
+        start = System.nanoTime();
+        SortedLongSet done = SortedLongSet.EMPTY;
+        if (checkpoint.getFile().exists()) {
+            try {
+                checkpoint.readKey();
+                done = SortedLongSet.wrap(checkpoint.getDone());
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Ignoring checkpoint " + checkpoint.getFile(), e);
+            }
+        }
+        SortedLongSet pending = ids.difference(done);
+        resumed = ids.size() - pending.size();
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), runnable -> {
+            Thread thread = new Thread(runnable, "jtwit-bulk");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        AtomicReference<TwitterException> fatal = new AtomicReference<>();
+        long[] chunk = new long[CHUNK_SIZE];
+        try {
+            PrimitiveIterator.OfLong it = pending.iterator();
+            while (it.hasNext() && fatal.get() == null) {
+                int size = 0;
+                while (size < CHUNK_SIZE && it.hasNext())
+                    chunk[size++] = it.nextLong();
+                long[] block = Arrays.copyOf(chunk, size);
+                ResponseList<Friendship> relations = api.lookup(block);
+                lookups++;
+                // los usuarios suspendidos o borrados no se devuelven, no hay nada que aplicar
+                for (long id : SortedLongSet.wrap(block).difference(lookedUp(relations)).array()) {
+                    skipped.incrementAndGet();
+                    markDone(id);
+                }
+                for (Friendship relation : relations) {
+                    if (relation.isFollowing() == follow) {
+                        skipped.incrementAndGet();
+                        markDone(relation.getId());
+                    } else {
+                        pool.execute(() -> apply(relation.getId(), fatal));
+                    }
+                }
+                checkpoint.saveKey();
+                onProgress.run();
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            elapsed = System.nanoTime() - start;
+            checkpoint.saveKey();
+            checkpoint.close();
+        }
+        if (fatal.get() != null)
+            throw fatal.get();
+        if (failed.get() == 0)
+            checkpoint.setDefault();
+    }
+
+    /**
+     * @return - IDs de las relaciones devueltas, ordenados
+     */
+    private static SortedLongSet lookedUp(ResponseList<Friendship> relations) {
+        long[] ids = new long[relations.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = relations.get(i).getId();
+        return SortedLongSet.of(ids, ids.length);
+    }
+
+    /**
+     * aplica la operacion a un usuario. Un 401 detiene el proceso, el resto
+     * de errores se cuentan y el ID queda pendiente para la siguiente ejecucion
+     */
+    private void apply(long userId, AtomicReference<TwitterException> fatal) {
+        if (fatal.get() != null)
+            return;
+        try {
+            if (follow)
+                api.follow(userId);
+            else
+                api.unfollow(userId);
+            applied.incrementAndGet();
+            markDone(userId);
+        } catch (TwitterException e) {
+            failed.incrementAndGet();
+            if (e.getStatusCode() == 401)
+                fatal.compareAndSet(null, e);
+            else
+                LOG.log(Level.WARNING, (follow ? "Follow " : "Unfollow ") + userId + " failed: " + e.getErrorMessage());
+        }
+    }
+
+    private void markDone(long userId) {
+        try {
+            checkpoint.append(userId);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Could not write checkpoint " + checkpoint.getFile(), e);
+        }
+    }
+
+    int getApplied() {
+        return applied.get();
+    }
+
+    int getSkipped() {
+        return skipped.get();
+    }
+
+    int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return - IDs saltados por estar terminados en una ejecucion anterior
+     */
+    int getResumed() {
+        return resumed;
+    }
+
+    int getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return - cambios aplicados por segundo
+     */
+    double getOpsPerSecond() {
+        long nanos = elapsed == 0 ? System.nanoTime() - start : elapsed;
+        return nanos <= 0 ? 0 : applied.get() * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d %s, %d skipped, %d failed, %d resumed, %d lookups, %.1f ops/s",
+                getApplied(), follow ? "followed" : "unfollowed", getSkipped(), getFailed(),
+                getResumed(), getLookups(), getOpsPerSecond());
+    }
+}
@@ -0,0 +1,88 @@
+package twitter;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Lector de consola unico y compartido. Sustituye a crear un Scanner sobre
+ * System.in en cada pregunta al usuario: un solo BufferedReader conserva lo
+ * que ya se ha leido del stream, de forma que la entrada por tuberia o
+ * script no pierde comandos entre una pregunta y la siguiente
+ *
+ * @author fsancheztemprano
+ */
+public class ConsoleInput implements Closeable {
+    private static ConsoleInput instance;
+
+    private final BufferedReader reader;
+
+    /**
+     * @param in - origen de la entrada, System.in en uso normal
+     */
+    public ConsoleInput(Reader in) {
+        this.reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+    }
+
+    /**
+     * @return - lector compartido sobre System.in
+     */
+    public static synchronized ConsoleInput get() {
+        if (instance == null)
+            instance = new ConsoleInput(new InputStreamReader(System.in));
+        return instance;
+    }
+
+    /**
+     * sustituye el lector compartido, por ejemplo para reproducir un script
+     *
+     * @param input - nuevo lector compartido
+     */
+    public static synchronized void set(ConsoleInput input) {
+        instance = input;
+    }
+
+    /**
+     * lee una linea completa
+     *
+     * @return - linea introducida por el usuario, sin el salto de linea
+     * @throws NoSuchElementException - si se ha terminado la entrada
+     */
+    public synchronized String nextLine() {
+        try {
+            String line = reader.readLine();
+            if (line == null)
+                throw new NoSuchElementException("No more console input");
+            return line;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * lee la siguiente linea no vacia y devuelve su primera palabra, el resto
+     * de la linea se descarta
+     *
+     * @return - primera palabra de la linea
+     * @throws NoSuchElementException - si se ha terminado la entrada
+     */
+    public synchronized String next() {
+        String line;
+        do {
+            line = nextLine().trim();
+        } while (line.isEmpty());
+        int end = 0;
+        while (end < line.length() && !Character.isWhitespace(line.charAt(end)))
+            end++;
+        return line.substring(0, end);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        reader.close();
+    }
+}
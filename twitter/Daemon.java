@@ -0,0 +1,366 @@
+package twitter;
+
+import twitter.persistence.PersistRecordStore;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Modo daemon: un proceso mantiene la sesion, las caches y las conexiones
+ * HTTP abiertas y atiende los comandos que le reenvian las siguientes
+ * llamadas a jtwit, que asi se ahorran el arranque de la JVM y la
+ * autenticacion.
+ * <p>
+ * Escucha en 127.0.0.1 (Java 8 no tiene sockets de dominio Unix). El
+ * puerto y un secreto aleatorio se guardan en daemon.dat, que solo puede
+ * leer el usuario; el cliente envia el secreto y despues el comando. La
+ * respuesta son tramas [tipo][longitud][bytes]: filas de los listados,
+ * mensajes y al final el codigo de salida. Los comandos se atienden de uno
+ * en uno, igual que en la consola, asi que los que no terminan (timeline
+ * --follow) no se reenvian, y un cliente que no envia nada se desconecta a
+ * los pocos segundos. Tras un clear la sesion del daemon ya no tiene
+ * tokens, asi que el daemon se para como con daemon stop.
+ * <p>
+ * Mientras escucha, System.out se sustituye una sola vez por un stream que
+ * envia lo que escribe el hilo que atiende el comando a su cliente, y lo que
+ * escriben los demas hilos (por ejemplo la cola de salida) a la consola
+ *
+ * @author fsancheztemprano
+ */
+class Daemon {
+    /**
+     * ejecuta un comando con las filas de los listados en el stream indicado
+     */
+    @FunctionalInterface
+    interface Handler {
+        int run(String[] args, RowRenderer.Format format, OutputStream data);
+    }
+
+    /**
+     * archivo con el puerto y el secreto del daemon, junto a token.dat
+     */
+    static final File FILE = new File("daemon.dat");
+    /**
+     * puerto por defecto, configurable con -Djtwit.daemon.port
+     */
+    static final int DEFAULT_PORT = Integer.getInteger("jtwit.daemon.port", 47321);
+    /**
+     * comandos que el cliente reenvia al daemon
+     */
+    static final Set<String> FORWARDED = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "timeline", "tweet", "search", "followers", "following", "dms", "users", "graph", "clear", "stats", "daemon")));
+
+    /**
+     * opciones de los comandos que no terminan, se ejecutan sin daemon
+     */
+    private static final String FOLLOW = "--follow";
+    private static final String RECORD = "daemon";
+    private static final String CLEAR = "clear";
+    private static final int CONNECT_TIMEOUT = 200;
+    /**
+     * milisegundos que se espera a que el cliente envie el comando
+     */
+    private static final int READ_TIMEOUT = 2000;
+    private static final byte DATA = 1;
+    private static final byte MESSAGE = 2;
+    private static final byte EXIT = 3;
+    private static final Logger LOG = Logger.getLogger(Daemon.class.getName());
+
+    private final Handler handler;
+    private final File file;
+    private ServerSocket server;
+    private byte[] secret;
+
+    /**
+     * @param handler - ejecucion de los comandos recibidos
+     * @param file    - archivo donde publicar el puerto y el secreto
+     */
+    Daemon(Handler handler, File file) {
+        this.handler = handler;
+        this.file = file;
+    }
+
+    /**
+     * @param args - comando y sus argumentos
+     * @return - true si el comando se puede reenviar al daemon
+     */
+    static boolean forwards(String[] args) {
+        return args.length > 0 && FORWARDED.contains(args[0]) && !Arrays.asList(args).contains(FOLLOW);
+    }
+
+    /**
+     * atiende comandos hasta recibir "daemon stop"
+     *
+     * @param port - puerto de escucha en 127.0.0.1, 0 para uno libre
+     * @throws IOException - si no se puede abrir el puerto o escribir daemon.dat
+     */
+    void serve(int port) throws IOException {
+        secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        publish(server.getLocalPort());
+        System.out.println("Daemon listening on " + server.getLocalSocketAddress());
+        PrintStream console = System.out;
+        Redirect redirect = new Redirect(console);
+        System.setOut(new PrintStream(redirect, true, "UTF-8"));
+        try {
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                    socket.setTcpNoDelay(true);
+                    handle(socket, redirect);
+                } catch (SocketTimeoutException e) {
+                    LOG.fine("Daemon client sent no command in time");
+                } catch (IOException | RuntimeException e) {
+                    if (!server.isClosed())
+                        LOG.log(Level.WARNING, "Daemon connection failed", e);
+                }
+            }
+        } finally {
+            System.setOut(console);
+            new PersistRecordStore(file).delete();
+        }
+    }
+
+    /**
+     * escribe el puerto y el secreto en daemon.dat, que se crea legible
+     * solo por el usuario antes de escribir el secreto
+     */
+    private void publish(int port) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(port);
+        out.write(secret);
+        PersistRecordStore store = new PersistRecordStore(file);
+        store.setOwnerOnly(true);
+        store.put(RECORD, bytes.toByteArray());
+        store.saveKey();
+    }
+
+    private void handle(Socket socket, Redirect redirect) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        // un cliente que conecta y no envia nada no bloquea el daemon
+        socket.setSoTimeout(READ_TIMEOUT);
+        byte[] received = new byte[secret.length];
+        in.readFully(received);
+        if (!MessageDigest.isEqual(secret, received))
+            return;
+        int ordinal = in.readByte();
+        if (ordinal < 0 || ordinal >= RowRenderer.Format.values().length)
+            return;
+        RowRenderer.Format format = RowRenderer.Format.values()[ordinal];
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++)
+            args[i] = in.readUTF();
+
+        if (args.length > 1 && args[0].equals("daemon") && args[1].equals("stop")) {
+            exit(out, 0);
+            server.close();
+            return;
+        }
+        FrameStream frames = new FrameStream(out, MESSAGE);
+        PrintStream messages = new PrintStream(frames, true, "UTF-8");
+        if (Arrays.asList(args).contains(FOLLOW)) {
+            messages.println(FOLLOW + " does not end and can not run in the daemon, use --no-daemon");
+            messages.flush();
+            exit(out, 1);
+            return;
+        }
+        FrameStream data = new FrameStream(out, DATA);
+        int code;
+        redirect.target.set(frames);
+        try {
+            code = handler.run(args, format, data);
+        } catch (RuntimeException e) {
+            e.printStackTrace(messages);
+            code = 1;
+        } finally {
+            System.out.flush();
+            redirect.target.remove();
+            messages.flush();
+        }
+        data.flush();
+        if (args[0].equals(CLEAR)) {
+            messages.println("Daemon stopped, run jtwit to authenticate again");
+            messages.flush();
+        }
+        exit(out, code);
+        if (args[0].equals(CLEAR))
+            server.close();
+    }
+
+    private static void exit(DataOutputStream out, int code) throws IOException {
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(4);
+            out.writeInt(code);
+            out.flush();
+        }
+    }
+
+    /**
+     * reenvia un comando al daemon y copia su salida
+     *
+     * @param file     - daemon.dat
+     * @param args     - comando y sus argumentos
+     * @param format   - formato de los listados
+     * @param data     - destino de las filas de los listados
+     * @param messages - destino del resto de mensajes
+     * @return - codigo de salida del comando, o -1 si no hay daemon
+     * disponible y no se ha escrito nada
+     */
+    static int forward(File file, String[] args, RowRenderer.Format format, OutputStream data, OutputStream messages) {
+        if (!file.exists())
+            return -1;
+        Socket socket = new Socket();
+        try {
+            PersistRecordStore store = new PersistRecordStore(file);
+            store.readKey();
+            ByteBuffer value = store.get(RECORD);
+            if (value == null)
+                return -1;
+            int port = value.getInt();
+            byte[] key = new byte[value.remaining()];
+            value.get(key);
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write(key);
+            out.writeByte(format.ordinal());
+            out.writeInt(args.length);
+            for (String arg : args)
+                out.writeUTF(arg);
+            out.flush();
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return -1;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            byte[] buffer = new byte[8192];
+            while (true) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (type == EXIT)
+                    return in.readInt();
+                OutputStream target = type == DATA ? data : messages;
+                while (length > 0) {
+                    int n = in.read(buffer, 0, Math.min(length, buffer.length));
+                    if (n < 0)
+                        throw new EOFException();
+                    target.write(buffer, 0, n);
+                    length -= n;
+                }
+                target.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Lost connection to daemon: " + e.getMessage());
+            return 1;
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * System.out del daemon: escribe en el stream de la peticion que atiende
+     * el hilo actual, o en la consola si el hilo no atiende ninguna
+     */
+    private static final class Redirect extends OutputStream {
+        private final OutputStream console;
+        private final ThreadLocal<OutputStream> target = new ThreadLocal<>();
+
+        Redirect(OutputStream console) {
+            this.console = console;
+        }
+
+        private OutputStream current() {
+            OutputStream out = target.get();
+            return out != null ? out : console;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            current().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            current().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            current().flush();
+        }
+    }
+
+    /**
+     * stream que envia lo escrito como tramas de un tipo, al llenarse el
+     * buffer o al volcarlo
+     */
+    private static final class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+        private final byte[] buffer = new byte[1 << 15];
+        private int size;
+
+        FrameStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (size == buffer.length)
+                flush();
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length)
+                    flush();
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (size == 0)
+                return;
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(size);
+                out.write(buffer, 0, size);
+                out.flush();
+            }
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package twitter;
+
+import twitter4j.Query;
+import twitter4j.QueryResult;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Busqueda de tweets en profundidad. Sigue las paginas de cada consulta con
+ * nextQuery() hasta agotar un presupuesto de resultados comun, ejecuta las
+ * consultas independientes en paralelo, descarta los status repetidos entre
+ * paginas y consultas y entrega los resultados segun llega cada pagina
+ *
+ * @author fsancheztemprano
+ */
+class DeepSearch {
+    /**
+     * fuente de paginas de busqueda, por ejemplo twitter::search
+     */
+    @FunctionalInterface
+    interface SearchSource {
+        QueryResult search(Query query) throws TwitterException;
+    }
+
+    /**
+     * numero de resultados por defecto
+     */
+    static final int DEFAULT_BUDGET = 100;
+    /**
+     * resultados por pagina, maximo permitido por search/tweets
+     */
+    static final int PAGE_SIZE = 100;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "jtwit-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SearchSource source;
+    private final int budget;
+    private final Consumer<Status> sink;
+    private Runnable onPage = () -> {
+    };
+    private final Set<Long> seen = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger results = new AtomicInteger();
+    private final AtomicInteger pages = new AtomicInteger();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private long elapsed;
+
+    /**
+     * @param source - fuente de paginas de busqueda
+     * @param budget - numero maximo de resultados entre todas las consultas
+     * @param sink   - consumidor de los resultados, nunca se llama desde dos hilos a la vez
+     */
+    DeepSearch(SearchSource source, int budget, Consumer<Status> sink) {
+        this.source = source;
+        this.budget = budget;
+        this.sink = sink;
+    }
+
+    /**
+     * accion a ejecutar tras entregar cada pagina, por ejemplo volcar la salida
+     *
+     * @param onPage - accion a ejecutar
+     */
+    void setOnPage(Runnable onPage) {
+        this.onPage = onPage;
+    }
+
+    /**
+     * ejecuta las consultas en paralelo y espera a que terminen
+     *
+     * @param queries - consultas independientes
+     * @throws TwitterException - el primer error de cualquiera de las consultas
+     */
+    void run(List<Query> queries) throws TwitterException {
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>(queries.size());
+        for (Query query : queries) {
+            query.setCount(PAGE_SIZE);
+            futures.add(EXECUTOR.submit(() -> {
+                follow(query);
+                return null;
+            }));
+        }
+        TwitterException error = null;
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof TwitterException))
+                        throw new IllegalStateException(e.getCause());
+                    if (error == null)
+                        error = (TwitterException) e.getCause();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+            throw new TwitterException("Interrupted while searching", e);
+        } finally {
+            elapsed = System.nanoTime() - start;
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * recorre las paginas de una consulta hasta que no haya mas o se agote
+     * el presupuesto
+     */
+    private void follow(Query query) throws TwitterException {
+        while (query != null && results.get() < budget) {
+            QueryResult result = source.search(query);
+            pages.incrementAndGet();
+            synchronized (this) {
+                for (Status status : result.getTweets()) {
+                    if (results.get() >= budget)
+                        break;
+                    if (!seen.add(status.getId())) {
+                        duplicates.incrementAndGet();
+                        continue;
+                    }
+                    results.incrementAndGet();
+                    sink.accept(status);
+                }
+                onPage.run();
+            }
+            query = result.hasNext() ? result.nextQuery() : null;
+        }
+    }
+
+    int getResults() {
+        return results.get();
+    }
+
+    int getPages() {
+        return pages.get();
+    }
+
+    int getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return - resultados por segundo de la ultima ejecucion
+     */
+    double getThroughput() {
+        return elapsed == 0 ? 0 : results.get() * 1e9 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d results, %d pages, %d duplicates dropped, %.1f results/s",
+                getResults(), getPages(), getDuplicates(), getThroughput());
+    }
+}
@@ -0,0 +1,135 @@
+package twitter;
+
+import twitter4j.IDs;
+import twitter4j.TwitterException;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterador perezoso sobre los IDs paginados por cursor que devuelven
+ * getFollowersIDs y getFriendsIDs. Solo mantiene en memoria la pagina actual
+ * y, mientras se consume, pide la siguiente pagina en segundo plano para que
+ * este lista cuando el consumidor la necesite
+ *
+ * @author fsancheztemprano
+ */
+class IDCursor implements PrimitiveIterator.OfLong {
+    /**
+     * fuente de paginas de IDs, recibe el cursor de la pagina a pedir
+     */
+    @FunctionalInterface
+    interface PageSource {
+        IDs fetch(long cursor) throws TwitterException;
+    }
+
+    /**
+     * excepcion no comprobada que envuelve el TwitterException producido al
+     * pedir una pagina, ya que Iterator no permite lanzar excepciones comprobadas
+     */
+    static class FetchException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        FetchException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * hilos daemon compartidos para la precarga de paginas
+     */
+    private static final ExecutorService PREFETCH = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "jtwit-ids-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PageSource source;
+    private long[] page = new long[0];
+    private int index;
+    private Future<IDs> pending;
+    private boolean started;
+    private int pages;
+
+    /**
+     * @param source - fuente de paginas, por ejemplo cursor -> twitter.getFollowersIDs(cursor)
+     */
+    IDCursor(PageSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!started) {
+            started = true;
+            pending = prefetch(-1);
+        }
+        while (index == page.length) {
+            if (pending == null)
+                return false;
+            IDs ids = await(pending);
+            page = ids.getIDs();
+            index = 0;
+            pages++;
+            pending = ids.hasNext() ? prefetch(ids.getNextCursor()) : null;
+        }
+        return true;
+    }
+
+    @Override
+    public long nextLong() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return page[index++];
+    }
+
+    /**
+     * @return - LongStream secuencial y perezoso sobre los IDs restantes
+     */
+    LongStream stream() {
+        return StreamSupport.longStream(Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * @return - numero de paginas consumidas hasta ahora
+     */
+    int getPages() {
+        return pages;
+    }
+
+    /**
+     * cancela la precarga pendiente si el consumidor no va a seguir leyendo
+     */
+    void close() {
+        if (pending != null)
+            pending.cancel(true);
+        pending = null;
+        started = true;
+        page = new long[0];
+        index = 0;
+    }
+
+    private Future<IDs> prefetch(long cursor) {
+        return PREFETCH.submit(() -> source.fetch(cursor));
+    }
+
+    private static IDs await(Future<IDs> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new FetchException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FetchException(e);
+        }
+    }
+}
@@ -1,10 +1,25 @@
 package twitter;
 
 import twitter.persistence.PersistAccessToken;
+import twitter.persistence.PersistConsumerKey;
+import twitter.persistence.PersistTape;
 import twitter4j.TwitterException;
 import twitter4j.User;
 
-import java.util.Scanner;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import twitter4j.Relationship;
 
 /**
@@ -16,52 +31,126 @@ import twitter4j.Relationship;
 public class Main {
     public static void main(String[] args) {
         Session session;
+        ApiMetrics.install();
         //logica del cliente sin argumentos
         if (args.length == 0) {
-            session = getSession();
-            menu(session);
+            //solo las sesiones largas vuelcan sus metricas, un comando suelto
+            //sobreescribiria las del daemon o las del menu
+            ApiMetrics.GLOBAL.startDump(ApiMetrics.FILE, ApiMetrics.DUMP_INTERVAL);
+            try {
+                session = getSession();
+                menu(session);
+            } catch (NoSuchElementException e) {
+                //fin de la entrada (script o tuberia)
+                System.out.println("\nThank You");
+            }
         } else {
             consoleLogic(args);
         }
     }
 
     /**
-     * metodo que trata el uso de este programa con argumentos
+     * metodo que trata el uso de este programa con argumentos. La opcion
+     * --output table|tsv|ndjson elige el formato de los listados; con tsv o
+     * ndjson la salida estandar solo contiene los registros y el resto de
+     * mensajes se escriben en la salida de error. Con --account nombre el
+     * comando se ejecuta sobre una cuenta de accounts.dat y con --all-accounts
+     * sobre todas ellas en paralelo. Con --record archivo se graban las
+     * peticiones a la api y con --replay archivo se responden desde una
+     * grabacion sin usar la red, lo mas rapido posible o con --realtime
+     * tardando lo mismo que las originales
      *
      * @param args - argumentos de ejecucion
      */
     private static void consoleLogic(String[] args) {
         Session session;//logica del cliente con argumentos de consola
-        if (PersistAccessToken.file.exists()) {
+        RowRenderer.Format format = RowRenderer.Format.TABLE;
+        List<String> command = new ArrayList<>();
+        String account = null;
+        boolean allAccounts = false;
+        boolean useDaemon = true;
+        String record = null;
+        String replay = null;
+        boolean realTime = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--output") && i + 1 < args.length)
+                    format = RowRenderer.Format.parse(args[++i]);
+                else if (args[i].equals("--account") && i + 1 < args.length)
+                    account = args[++i];
+                else if (args[i].equals("--all-accounts"))
+                    allAccounts = true;
+                else if (args[i].equals("--no-daemon"))
+                    useDaemon = false;
+                else if (args[i].equals("--record") && i + 1 < args.length)
+                    record = args[++i];
+                else if (args[i].equals("--replay") && i + 1 < args.length)
+                    replay = args[++i];
+                else if (args[i].equals("--realtime"))
+                    realTime = true;
+                else
+                    command.add(args[i]);
+            }
+        } catch (IllegalArgumentException e) {
+            command.clear();
+        }
+        if (command.isEmpty())
+            command.add("help");
+        args = command.toArray(new String[0]);
+        PrintStream data = System.out;
+        if (format != RowRenderer.Format.TABLE)
+            System.setOut(System.err);
+        if (record != null || replay != null)
+            useDaemon = false;
+        // el daemon puede tener otro directorio de trabajo
+        if (args.length > 2 && args[0].equals("timeline") && args[1].equals("--users"))
+            args[2] = new File(args[2]).getAbsolutePath();
+        if (useDaemon && account == null && !allAccounts && Daemon.forwards(args)
+                && !(args[0].equals("daemon") && args.length == 1)) {
+            int code = Daemon.forward(Daemon.FILE, args, format, data, System.out);
+            if (code >= 0)
+                System.exit(code);
+        }
+        if (args[0].equals("stats"))
+            System.exit(printStatsDump());
+        if (args[0].equals("mock"))
+            System.exit(runMock(args));
+        if (args[0].equals("accounts"))
+            System.exit(accounts(SessionPool.open(), args));
+        if (account != null || allAccounts) {
+            System.exit(runPooled(SessionPool.open(), account, format, data, args));
+        }
+        // una grabacion se reproduce sin tokens, por ejemplo en integracion continua
+        if (replay != null || PersistAccessToken.file.exists()) {
             try {
-                session = new Session(true);
+                if (record != null || replay != null) {
+                    session = tapeSession(record, replay, realTime);
+                    if (session == null)
+                        System.exit(1);
+                } else
+                    session = new Session(true);
+                session.setOutput(format, data);
+                int code;
                 switch (args[0]) {
                     case "auth":
                         session = getSession();
                         askSaveSession(session);
-                        System.exit(2);
-                    case "timeline":
-                        session.printTimeline();
-                        System.exit(3);
-                    case "tweet":
-                        StringBuilder tweetsb = new StringBuilder();
-                        for (int i = 1; i < args.length; i++) {
-                            tweetsb.append(args[i]);
-                            if (i != args.length - 1)
-                                tweetsb.append(" ");
-                        }
-                        String tweet = tweetsb.toString();
-                        tweet = tweet.substring(0, Math.min(139, tweet.length()));
-                        session.updateStatus(tweet);
-                        System.exit(4);
-                    case "clear":
-                        session.clearSession();
-                        System.exit(5);
-                    case "help":
+                        code = 2;
+                        break;
+                    case "batch":
+                        code = runBatch(session, args.length > 1 ? args[1] : "-");
+                        break;
+                    case "daemon":
+                        if (args.length > 1) {
+                            System.out.println("No daemon running.");
+                            code = 1;
+                        } else
+                            code = runDaemon(session);
+                        break;
                     default:
-                        System.out.println("jtwit timeline\njtwit tweet <status message>\njtwit clear\njtwit help");
-                        System.exit(6);
+                        code = runCommand(session, args);
                 }
+                System.exit(code);
             } catch (TwitterException e) {
                 System.out.println("You need an authenticated session to use this command.\nTo authenticate use only : jtwit");
             }
@@ -69,6 +158,412 @@ public class Main {
             System.out.println("You need an authenticated session to use this command.\nTo authenticate use only : jtwit");
     }
 
+    /**
+     * ejecuta un comando sobre una cuenta del pool o sobre todas en paralelo.
+     * Con todas las cuentas cada fila lleva la cuenta en la primera columna y
+     * cada pagina se copia entera a la salida, sin mezclarse con las paginas
+     * de las demas cuentas
+     *
+     * @param pool    - pool de sesiones
+     * @param account - cuenta, o null para todas
+     * @param format  - formato de los listados
+     * @param data    - destino de los listados
+     * @param args    - comando y sus argumentos
+     * @return - codigo de salida del comando, 1 si falla en alguna cuenta
+     */
+    private static int runPooled(SessionPool pool, String account, RowRenderer.Format format, PrintStream data, String[] args) {
+        List<String> names = account == null ? pool.accounts() : Collections.singletonList(account);
+        if (names.isEmpty()) {
+            System.out.println("No accounts. Add one with : jtwit accounts add <name>");
+            return 1;
+        }
+        if (args[0].equals("auth") || args[0].equals("batch")) {
+            System.out.println(args[0] + " can not be used with --account or --all-accounts");
+            return 1;
+        }
+        Map<String, CompletableFuture<Integer>> results = pool.fanOut(names, (name, session) -> {
+            if (account == null) {
+                session.setOutput(format, new RowRenderer.PageStream(data));
+                session.getRenderer().setAccount(name);
+            } else
+                session.setOutput(format, data);
+            try {
+                return runCommand(session, args);
+            } finally {
+                session.getRenderer().flush();
+            }
+        });
+        Integer code = null;
+        for (Map.Entry<String, CompletableFuture<Integer>> result : results.entrySet()) {
+            try {
+                int exit = AsyncSession.await(result.getValue());
+                code = code == null || code == exit ? exit : 1;
+            } catch (TwitterException | RuntimeException e) {
+                System.out.println(result.getKey() + ": " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+                code = 1;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * sesion aislada para --record y --replay, ver Session.tape
+     *
+     * @param record   - archivo donde grabar las peticiones, o null
+     * @param replay   - grabacion con la que responder, o null
+     * @param realTime - true para tardar lo mismo que las peticiones grabadas
+     * @return - sesion, o null si no se puede leer la grabacion
+     * @throws TwitterException - si falla la autenticacion
+     */
+    private static Session tapeSession(String record, String replay, boolean realTime) throws TwitterException {
+        PersistTape played = null;
+        if (replay != null) {
+            played = new PersistTape(new File(replay));
+            try {
+                played.readKey();
+            } catch (IOException e) {
+                System.out.println("Could not read " + played.getFile() + ": " + e.getMessage());
+                return null;
+            }
+            System.out.println("Replaying " + played.getEntries().size() + " requests from " + played.getFile());
+        }
+        try {
+            return Session.tape(played, realTime, record != null ? new PersistTape(new File(record)) : null);
+        } catch (IOException e) {
+            System.out.println("Could not open the session: " + e.getMessage());
+            return null;
+        } catch (TwitterException e) {
+            if (played == null)
+                throw e;
+            System.out.println("Could not replay the session: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * mantiene la sesion abierta y atiende los comandos que reenvian las
+     * siguientes llamadas a jtwit hasta recibir jtwit daemon stop
+     *
+     * @param session - sesion autenticada correctamente
+     * @return - codigo de salida
+     */
+    private static int runDaemon(Session session) {
+        ApiMetrics.GLOBAL.startDump(ApiMetrics.FILE, ApiMetrics.DUMP_INTERVAL);
+        Daemon daemon = new Daemon((args, format, data) -> {
+            session.setOutput(format, data);
+            return runCommand(session, args);
+        }, Daemon.FILE);
+        try {
+            daemon.serve(Daemon.DEFAULT_PORT);
+        } catch (IOException e) {
+            System.out.println("Could not start daemon: " + e.getMessage());
+            return 1;
+        }
+        return 16;
+    }
+
+    /**
+     * arranca MockServer y atiende peticiones hasta que se interrumpa el
+     * programa
+     *
+     * @param args - mock y opcionalmente el puerto
+     * @return - codigo de salida si no se puede arrancar
+     */
+    private static int runMock(String[] args) {
+        MockServer server = MockServer.create();
+        try {
+            server.start(args.length > 1 ? Integer.parseInt(args[1]) : MockServer.DEFAULT_PORT, MockServer.DEFAULT_THREADS);
+            System.out.println("Mock API listening, use -D" + Session.API_URL + "=" + server.url());
+            new CountDownLatch(1).await();
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Could not start mock server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 1;
+    }
+
+    /**
+     * jtwit stats sin daemon: muestra el ultimo volcado de metricas del
+     * daemon o del menu, las de este proceso estarian vacias
+     *
+     * @return - codigo de salida
+     */
+    private static int printStatsDump() {
+        try {
+            System.out.print(new String(Files.readAllBytes(ApiMetrics.FILE.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.out.println("No stats yet. Start the daemon or the interactive menu first.");
+            return 1;
+        }
+        return 17;
+    }
+
+    /**
+     * gestion del almacen de cuentas: jtwit accounts [add|remove <nombre>]
+     *
+     * @param pool - pool de sesiones
+     * @param args - comando y sus argumentos
+     * @return - codigo de salida del comando
+     */
+    private static int accounts(SessionPool pool, String[] args) {
+        if (args.length > 2 && args[1].equals("add")) {
+            PersistConsumerKey consumer = new PersistConsumerKey();
+            try {
+                consumer.readKey();
+            } catch (IOException e) {
+                consumer.setDefault();
+            }
+            PersistAccessToken token = new PersistAccessToken();
+            try {
+                token.createAccessToken(consumer, ConsoleInput.get()::nextLine);
+                pool.add(args[2], token);
+                pool.get(args[2]);
+            } catch (IOException | TwitterException | IllegalArgumentException e) {
+                System.out.println("Could not add account " + args[2] + ": " + e.getMessage());
+                return 1;
+            }
+            System.out.println("Account " + args[2] + " added.");
+        } else if (args.length > 2 && args[1].equals("remove")) {
+            if (!pool.remove(args[2])) {
+                System.out.println("Unknown account: " + args[2]);
+                return 1;
+            }
+            System.out.println("Account " + args[2] + " removed.");
+        } else {
+            for (String name : pool.accounts())
+                System.out.println(name);
+        }
+        return 15;
+    }
+
+    /**
+     * ejecuta un comando de consola sobre una sesion ya autenticada
+     *
+     * @param session - sesion autenticada correctamente
+     * @param args    - comando y sus argumentos
+     * @return - codigo de salida del comando
+     */
+    private static int runCommand(Session session, String[] args) {
+        switch (args[0]) {
+            case "timeline":
+                if (args.length > 1 && args[1].equals("--users"))
+                    return timelines(session, args) ? 3 : 1;
+                if (args.length > 1 && args[1].equals("--follow"))
+                    session.followTimeline();
+                else if (args.length > 1)
+                    session.printTimeline(screenName(args[1]));
+                else
+                    session.printTimeline();
+                return 3;
+            case "tweet":
+                String tweet = joinArgs(args);
+                tweet = tweet.substring(0, Math.min(139, tweet.length()));
+                return session.updateStatus(tweet) && session.flushOutbox() ? 4 : 1;
+            case "clear":
+                session.clearSession();
+                return 5;
+            case "search":
+                return search(session, args) ? 8 : 1;
+            case "followers":
+            case "following":
+                Long userId = null;
+                if (args.length > 1) {
+                    try {
+                        userId = session.pickUser(screenName(args[1])).getId();
+                    } catch (TwitterException e) {
+                        System.out.println("User not found: " + args[1]);
+                        return 1;
+                    }
+                }
+                if (args[0].equals("followers"))
+                    session.printFollowers(userId);
+                else
+                    session.printFollowing(userId);
+                return args[0].equals("followers") ? 9 : 10;
+            case "dms":
+                session.printDMs();
+                return 11;
+            case "users":
+                session.searchUser(joinArgs(args));
+                return 12;
+            case "graph":
+                session.printGraph();
+                return 13;
+            case "stats":
+                System.out.print(ApiMetrics.GLOBAL.report());
+                return 17;
+            case "bulk":
+                if (args.length < 3 || !(args[1].equals("follow") || args[1].equals("unfollow"))) {
+                    System.out.println("jtwit bulk follow|unfollow <file>");
+                    return 1;
+                }
+                return session.bulkFollow(args[2], args[1].equals("follow")) ? 14 : 1;
+            case "help":
+            default:
+                System.out.println("jtwit timeline [--follow | <user> | --users <file> [--limit <n>]]\njtwit tweet <status message>\njtwit search [--local] [--limit <n>] [--since <yyyy-mm-dd>] [--until <yyyy-mm-dd>] <terms> | -q <terms> -q <terms>..."
+                        + "\njtwit followers [<user>]\njtwit following [<user>]\njtwit dms\njtwit users <query>\njtwit graph\njtwit bulk follow|unfollow <file>\njtwit accounts [add|remove <name>]\njtwit daemon [stop]\njtwit stats\njtwit mock [<port>]"
+                        + "\njtwit batch <file|->\njtwit clear\njtwit help"
+                        + "\nListings accept --output table|tsv|ndjson"
+                        + "\nAny command accepts --account <name> or --all-accounts"
+                        + "\nCommands go through a running daemon unless --no-daemon is given"
+                        + "\n--record <file> records the API calls, --replay <file> [--realtime] answers them from a recording");
+                return 6;
+        }
+    }
+
+    /**
+     * comando timeline --users archivo [--limit n]: timeline conjunto de los
+     * usuarios del archivo
+     *
+     * @param session - sesion autenticada correctamente
+     * @param args    - comando y sus argumentos
+     * @return - false si los argumentos no son validos o falla algun usuario
+     */
+    private static boolean timelines(Session session, String[] args) {
+        int limit = TimelineMerge.DEFAULT_LIMIT;
+        if (args.length == 5 && args[3].equals("--limit")) {
+            try {
+                limit = Integer.parseInt(args[4]);
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+        }
+        if (args.length < 3 || (args.length != 3 && args.length != 5) || limit <= 0) {
+            System.out.println("jtwit timeline --users <file> [--limit <n>]");
+            return false;
+        }
+        return session.printTimelines(args[2], limit);
+    }
+
+    /**
+     * comando search: sin -q todos los argumentos forman una consulta, con
+     * -q cada valor es una consulta independiente y se ejecutan en paralelo.
+     * Con --local se busca en el indice local en lugar de en twitter
+     *
+     * @param session - sesion autenticada correctamente
+     * @param args    - comando y sus argumentos
+     * @return - false si los argumentos no son validos
+     */
+    private static boolean search(Session session, String[] args) {
+        List<String> queries = new ArrayList<>();
+        StringBuilder terms = new StringBuilder();
+        int limit = DeepSearch.DEFAULT_BUDGET;
+        String since = null;
+        String until = null;
+        boolean local = false;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--limit":
+                        limit = Integer.parseInt(args[++i]);
+                        break;
+                    case "--since":
+                        since = args[++i];
+                        break;
+                    case "--until":
+                        until = args[++i];
+                        break;
+                    case "-q":
+                        queries.add(args[++i]);
+                        break;
+                    case "--local":
+                        local = true;
+                        break;
+                    default:
+                        terms.append(terms.length() == 0 ? "" : " ").append(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.out.println("Invalid search arguments.");
+            return false;
+        }
+        if (terms.length() > 0)
+            queries.add(terms.toString());
+        if (queries.isEmpty()) {
+            System.out.println("Nothing to search.");
+            return false;
+        }
+        if (local) {
+            boolean valid = true;
+            for (String query : queries)
+                valid &= session.searchLocal(query + (since != null ? " since:" + since : "") + (until != null ? " until:" + until : ""), limit);
+            return valid;
+        }
+        session.searchStatus(queries, limit, since, until);
+        return true;
+    }
+
+    /**
+     * une los argumentos de un comando (sin el propio comando) con espacios
+     *
+     * @param args - comando y sus argumentos
+     * @return - argumentos unidos
+     */
+    private static String joinArgs(String[] args) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < args.length; i++) {
+            sb.append(args[i]);
+            if (i != args.length - 1)
+                sb.append(" ");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param arg - screenName con o sin @ inicial
+     * @return - screenName sin @
+     */
+    private static String screenName(String arg) {
+        return arg.startsWith("@") ? arg.substring(1) : arg;
+    }
+
+    /**
+     * ejecuta sobre una misma sesion los comandos de un archivo (o de la
+     * entrada estandar si es "-"), uno por linea. Las lineas vacias y las que
+     * empiezan por # se ignoran. Tras cada comando imprime su codigo de salida
+     *
+     * @param session - sesion autenticada correctamente
+     * @param source  - ruta del archivo de comandos o "-"
+     * @return - codigo de salida del modo batch, 7 si todos los comandos
+     * terminaron bien, 1 si alguno fallo
+     */
+    private static int runBatch(Session session, String source) {
+        ConsoleInput input;
+        try {
+            input = source.equals("-") ? ConsoleInput.get() : new ConsoleInput(new FileReader(source));
+        } catch (FileNotFoundException e) {
+            System.out.println("Batch file not found: " + source);
+            return 1;
+        }
+        int failed = 0;
+        while (true) {
+            String line;
+            try {
+                line = input.nextLine().trim();
+            } catch (NoSuchElementException e) {
+                break;
+            }
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] command = line.split("\\s+");
+            int status = command[0].equals("auth") || command[0].equals("batch")
+                    ? 6
+                    : runCommand(session, command);
+            if (status == 1 || status == 6)
+                failed++;
+            System.out.println("[" + status + "] " + line);
+        }
+        if (input != ConsoleInput.get()) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return failed == 0 ? 7 : 1;
+    }
+
     /**
      * muestra un simple menu de opciones y acciones para realizar 
      * cuando la sesion
@@ -109,6 +604,7 @@ public class Main {
                     askSaveSession(session);
                     System.out.println("\nThank You");
                     System.exit(1);
+                    return;
                 default:
                     System.out.println("Invalid Option.");
 
@@ -128,6 +624,20 @@ public class Main {
         do {
             answer = consoleAssert();
         } while (answer == null);
+        if (!answer) {
+            // los tweets y DMs del menu solo se encolan: se envian antes de
+            // borrar la cola, y si no se puede se pregunta antes de perderlos
+            int unsent = session.drainOutbox();
+            if (unsent > 0) {
+                System.out.println(unsent + " message" + (unsent == 1 ? " has" : "s have")
+                        + " not been sent yet and would be lost. Clear the session anyway? (Y/N) : ");
+                Boolean discard;
+                do {
+                    discard = consoleAssert();
+                } while (discard == null);
+                answer = !discard;
+            }
+        }
         if (answer)
             session.saveSession();
         else
@@ -162,46 +672,70 @@ public class Main {
     }
 
     /**
-     * menu de opciones para interactuar con otro usuario de twitter
+     * menu de opciones para interactuar con otro usuario de twitter. El
+     * usuario, su relacion con nosotros y su timeline se cargan en paralelo
+     * al elegirlo, de forma que el menu se dibuja con datos ya cargados
      *
      * @param session - sesion autenticada correctamente
      */
     private static void interactionMenu(Session session) {
         String query = scanString("Enter user screen name: ");
+        AsyncSession.UserView view = new AsyncSession(session).view(query);
+        User user;
         try {
-            User user = session.pickUser(query);
+            user = view.getUser();
+        } catch (TwitterException e) {
+            e.printStackTrace();
+            return;
+        }
+        String[] options = {"View Timeline", "Send DM", "Follow/UnFollow","Show Followers","Show Following", "Back"};
+        while (true) {
+            //si la relacion no ha cargado el menu sigue, y se vuelve a pedir
             Relationship relationship;
-            String[] options = {"View Timeline", "Send DM", "Follow/UnFollow","Show Followers","Show Following", "Back"};
-            while (true) {
-                relationship = session.getTwitter().showFriendship(session.getAuthUserID(), user.getId());
+            try {
+                relationship = view.getRelationship();
                 options[2] = (relationship.isSourceFollowingTarget()) ? "Unfollow" : "Follow";
-                int n = getPick(options, "@" + user.getScreenName());
-                switch (n) {
-                    case 1://View Timeline
+            } catch (TwitterException e) {
+                System.out.println("Could not load the relationship with @" + user.getScreenName() + ": "
+                        + (e.getErrorMessage() != null ? e.getErrorMessage() : "HTTP " + e.getStatusCode()));
+                relationship = null;
+                options[2] = "Follow/UnFollow";
+                view.reloadRelationship();
+            }
+            int n = getPick(options, "@" + user.getScreenName() + " | Followers: " + user.getFollowersCount() + " | Following: " + user.getFriendsCount());
+            switch (n) {
+                case 1://View Timeline
+                    try {
+                        session.printStatuses(view.getTimeline());
+                    } catch (TwitterException e) {
+                        //la precarga fallo, se pide de nuevo
                         session.printTimeline(user.getScreenName());
+                    }
+                    break;
+                case 2://DM
+                    String dm = scanString("Enter message to send directly to @" + user.getScreenName() + " :\n");
+                    session.sendDM(user.getId(), dm);
+                    break;
+                case 3://Follow/UnFollow
+                    if (relationship == null) {
+                        System.out.println("Relationship with @" + user.getScreenName() + " not loaded yet, try again.");
                         break;
-                    case 2://DM
-                        String dm = scanString("Enter message to send directly to @" + user.getScreenName() + " :\n");
-                        session.sendDM(user.getId(), dm);
-                        break;
-                    case 3://Follow/UnFollow
-                        session.toggleFollowUser(relationship);//follow pendig accept
-                        System.out.println(((relationship.isSourceFollowingTarget()) ? "Unfollowed" : "Following" ) + ": @" +relationship.getTargetUserScreenName());
-                        break;
-                    case 4://Show Followers
-                        session.printFollowers(user.getId());
-                        break;
-                    case 5://Show Following
-                        session.printFollowing(user.getId());                        
-                        break;
-                    case 6:
-                        return;
-                    default:
-                        break;
-                }
+                    }
+                    session.toggleFollowUser(relationship);//follow pendig accept
+                    System.out.println(((relationship.isSourceFollowingTarget()) ? "Unfollowed" : "Following" ) + ": @" +relationship.getTargetUserScreenName());
+                    view.reloadRelationship();
+                    break;
+                case 4://Show Followers
+                    session.printFollowers(user.getId());
+                    break;
+                case 5://Show Following
+                    session.printFollowing(user.getId());                        
+                    break;
+                case 6:
+                    return;
+                default:
+                    break;
             }
-        } catch (TwitterException e) {
-            e.printStackTrace();
         }
     }
 
@@ -261,7 +795,7 @@ public class Main {
         int n = 0;
         do {
             do {
-                opt = new Scanner(System.in).next();
+                opt = ConsoleInput.get().next();
             } while (!isInteger(opt));
             n = Integer.parseInt(opt);
         } while (n < 1 || n > options.length);
@@ -315,21 +849,21 @@ public class Main {
     }
 
     /**
-     * generamos un scanner para recibir el char introducido por el usuario
+     * lee del lector de consola compartido el char introducido por el usuario
      *
      * @return - char introducido por el usuario
      */
     private static char scanChar() {
-        return new Scanner(System.in).next().charAt(0);
+        return ConsoleInput.get().next().charAt(0);
     }
 
     /**
-     * crea un scanner y retorna el string introducido por el usuario
+     * retorna del lector de consola compartido el string introducido por el usuario
      *
      * @return - string introducido por el usuario
      */
     private static String scanString() {
-        return new Scanner(System.in).nextLine();
+        return ConsoleInput.get().nextLine();
     }
 
     /**
@@ -0,0 +1,140 @@
+package twitter;
+
+import twitter4j.HttpClient;
+import twitter4j.HttpClientConfiguration;
+import twitter4j.HttpParameter;
+import twitter4j.HttpRequest;
+import twitter4j.HttpResponse;
+import twitter4j.HttpResponseListener;
+import twitter4j.TwitterException;
+import twitter4j.auth.Authorization;
+
+import java.lang.reflect.Constructor;
+import java.util.Map;
+
+/**
+ * Cliente HTTP de twitter4j que anota en ApiMetrics los bytes de cada
+ * respuesta (su Content-Length) y delega todo lo demas en el cliente por
+ * defecto de twitter4j. Tambien mide las peticiones de autorizacion OAuth,
+ * que no pasan por RequestScheduler. Se instala con ApiMetrics.install; twitter4j lo
+ * crea por reflexion, por eso es publico y tiene ese constructor
+ *
+ * @author fsancheztemprano
+ */
+public class MeteredHttpClient implements HttpClient {
+    private final HttpClient delegate;
+
+    public MeteredHttpClient(HttpClientConfiguration conf) {
+        this.delegate = createDefault(conf);
+    }
+
+    /**
+     * el cliente por defecto de twitter4j no es publico, se crea igual que lo
+     * haria HttpClientFactory
+     */
+    private static HttpClient createDefault(HttpClientConfiguration conf) {
+        try {
+            Constructor<?> constructor = Class.forName("twitter4j.HttpClientImpl").getConstructor(HttpClientConfiguration.class);
+            constructor.setAccessible(true);
+            return (HttpClient) constructor.newInstance(conf);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("twitter4j.HttpClientImpl not available", e);
+        }
+    }
+
+    private static HttpResponse count(HttpResponse response) {
+        if (response != null) {
+            String length = response.getResponseHeader("Content-Length");
+            if (length != null) {
+                try {
+                    ApiMetrics.addBytes(Long.parseLong(length.trim()));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * las peticiones de la autorizacion OAuth no pasan por RequestScheduler,
+     * asi que se miden aqui
+     *
+     * @param url - url de la peticion
+     * @return - recurso /oauth/..., o null si no es una peticion OAuth
+     */
+    static String oauthEndpoint(String url) {
+        int start = url.indexOf("/oauth/");
+        if (start < 0)
+            return null;
+        int query = url.indexOf('?', start);
+        return url.substring(start, query < 0 ? url.length() : query);
+    }
+
+    @Override
+    public void addDefaultRequestHeader(String name, String value) {
+        delegate.addDefaultRequestHeader(name, value);
+    }
+
+    @Override
+    public Map<String, String> getRequestHeaders() {
+        return delegate.getRequestHeaders();
+    }
+
+    @Override
+    public HttpResponse request(HttpRequest req) throws TwitterException {
+        return count(delegate.request(req));
+    }
+
+    @Override
+    public HttpResponse request(HttpRequest req, HttpResponseListener listener) throws TwitterException {
+        return count(delegate.request(req, listener));
+    }
+
+    @Override
+    public HttpResponse get(String url, HttpParameter[] params, Authorization authorization, HttpResponseListener listener) throws TwitterException {
+        return count(delegate.get(url, params, authorization, listener));
+    }
+
+    @Override
+    public HttpResponse get(String url) throws TwitterException {
+        return count(delegate.get(url));
+    }
+
+    @Override
+    public HttpResponse post(String url, HttpParameter[] params, Authorization authorization, HttpResponseListener listener) throws TwitterException {
+        String endpoint = oauthEndpoint(url);
+        if (endpoint != null)
+            return ApiMetrics.GLOBAL.time(endpoint, () -> count(delegate.post(url, params, authorization, listener)));
+        return count(delegate.post(url, params, authorization, listener));
+    }
+
+    @Override
+    public HttpResponse post(String url) throws TwitterException {
+        return count(delegate.post(url));
+    }
+
+    @Override
+    public HttpResponse delete(String url, HttpParameter[] params, Authorization authorization, HttpResponseListener listener) throws TwitterException {
+        return count(delegate.delete(url, params, authorization, listener));
+    }
+
+    @Override
+    public HttpResponse delete(String url) throws TwitterException {
+        return count(delegate.delete(url));
+    }
+
+    @Override
+    public HttpResponse head(String url) throws TwitterException {
+        return count(delegate.head(url));
+    }
+
+    @Override
+    public HttpResponse put(String url, HttpParameter[] params, Authorization authorization, HttpResponseListener listener) throws TwitterException {
+        return count(delegate.put(url, params, authorization, listener));
+    }
+
+    @Override
+    public HttpResponse put(String url) throws TwitterException {
+        return count(delegate.put(url));
+    }
+}
@@ -0,0 +1,370 @@
+package twitter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Servidor HTTP local que imita la api REST de twitter con los datos de
+ * SyntheticData, para medir el camino completo HTTP/JSON sin tocar el
+ * servicio real. Implementa los endpoints que usa Session: timelines,
+ * busqueda, IDs de seguidores y seguidos, users/show, lookup y search, DMs,
+ * amistades y statuses/update. No comprueba la firma OAuth.
+ * <p>
+ * Cada respuesta puede retrasarse una latencia fija y una de cada
+ * rateLimitEvery peticiones se responde con un 429 y la ventana agotada
+ * durante un segundo, para probar RequestScheduler. Se arranca con
+ * jtwit mock [puerto] y se usa con -Djtwit.api.url=http://127.0.0.1:puerto/1.1/
+ *
+ * @author fsancheztemprano
+ */
+class MockServer {
+    /**
+     * respuesta de un endpoint a partir de los parametros de la peticion
+     */
+    @FunctionalInterface
+    interface Route {
+        String handle(Map<String, String> params);
+    }
+
+    /**
+     * puerto por defecto, configurable con -Djtwit.mock.port
+     */
+    static final int DEFAULT_PORT = Integer.getInteger("jtwit.mock.port", 8080);
+    /**
+     * milisegundos de espera de cada respuesta, configurable con -Djtwit.mock.latency
+     */
+    static final long DEFAULT_LATENCY = Long.getLong("jtwit.mock.latency", 0);
+    /**
+     * una de cada tantas peticiones es un 429, 0 para ninguna; configurable
+     * con -Djtwit.mock.rateLimitEvery
+     */
+    static final int DEFAULT_RATE_LIMIT_EVERY = Integer.getInteger("jtwit.mock.rateLimitEvery", 0);
+    /**
+     * hilos que atienden peticiones, configurable con -Djtwit.mock.threads
+     */
+    static final int DEFAULT_THREADS = Integer.getInteger("jtwit.mock.threads", 64);
+    /**
+     * status nuevos que aparecen en cada peticion del home timeline
+     */
+    static final int NEW_PER_CALL = Integer.getInteger("jtwit.mock.newPerCall", 20);
+    /**
+     * usuarios y seguidores de los datos sinteticos, configurables con
+     * -Djtwit.mock.users y -Djtwit.mock.followers
+     */
+    static final int DEFAULT_USERS = Integer.getInteger("jtwit.mock.users", 10_000);
+    static final int DEFAULT_FOLLOWERS = Integer.getInteger("jtwit.mock.followers", 2000);
+    static final long SEED = 42;
+    /**
+     * ID del usuario autenticado
+     */
+    static final long AUTH_USER = 1;
+    static final int IDS_PAGE = 5000;
+    static final int SEARCH_RESULTS = 1000;
+
+    private static final String PREFIX = "/1.1/";
+    private static final Pattern JSON_FIELD = Pattern.compile("\"(recipient_id|text)\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final Logger LOG = Logger.getLogger(MockServer.class.getName());
+
+    private final SyntheticData data;
+    private final long latency;
+    private final int rateLimitEvery;
+    private final Map<String, Route> routes = new HashMap<>();
+    private final AtomicLong head;
+    private final AtomicLong nextId = new AtomicLong(1L << 40);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong limited = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param data           - datos a servir
+     * @param latency        - milisegundos de espera de cada respuesta
+     * @param rateLimitEvery - una de cada tantas peticiones es un 429, 0 para ninguna
+     */
+    MockServer(SyntheticData data, long latency, int rateLimitEvery) {
+        this.data = data;
+        this.latency = latency;
+        this.rateLimitEvery = rateLimitEvery;
+        this.head = new AtomicLong(data.getUsers() * 10L);
+        routes();
+    }
+
+    /**
+     * @return - servidor con la configuracion de las propiedades jtwit.mock.*
+     */
+    static MockServer create() {
+        return new MockServer(new SyntheticData(SEED, DEFAULT_USERS, DEFAULT_FOLLOWERS), DEFAULT_LATENCY, DEFAULT_RATE_LIMIT_EVERY);
+    }
+
+    private void routes() {
+        routes.put("account/verify_credentials.json", params -> data.userJson(AUTH_USER));
+        routes.put("statuses/home_timeline.json", params -> data.statusesJson(SyntheticData.homeTimeline(
+                head.addAndGet(NEW_PER_CALL), number(params, "since_id", 0), number(params, "max_id", 0), (int) number(params, "count", 20))));
+        routes.put("statuses/user_timeline.json", params -> data.statusesJson(data.userTimeline(userId(params), head.get(),
+                number(params, "since_id", 0), number(params, "max_id", 0), (int) number(params, "count", 20))));
+        routes.put("statuses/update.json", params -> {
+            long id = head.incrementAndGet();
+            return data.statusJson(id);
+        });
+        routes.put("search/tweets.json", this::search);
+        routes.put("followers/ids.json", params -> data.idsJson(number(params, "cursor", -1), IDS_PAGE));
+        routes.put("friends/ids.json", params -> data.idsJson(number(params, "cursor", -1), IDS_PAGE));
+        routes.put("users/show.json", params -> data.userJson(userId(params)));
+        routes.put("users/lookup.json", params -> data.usersJson(ids(params.get("user_id"))));
+        routes.put("users/search.json", params -> {
+            int page = (int) Math.max(1, number(params, "page", 1));
+            int perPage = (int) number(params, "per_page", 20);
+            long[] ids = new long[Math.max(0, Math.min(perPage, data.getUsers() - (page - 1) * perPage))];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = (long) (page - 1) * perPage + i + 1;
+            return data.usersJson(ids);
+        });
+        routes.put("direct_messages/events/list.json", params -> {
+            int count = (int) number(params, "count", 20);
+            StringBuilder json = new StringBuilder(count * 512).append("{\"events\":[");
+            for (int i = 0; i < count; i++) {
+                long other = 2 + i % Math.max(1, data.getUsers() - 1);
+                boolean received = i % 2 == 0;
+                if (i > 0)
+                    json.append(',');
+                json.append(data.directMessageJson(1_000_000L - i, received ? other : AUTH_USER, received ? AUTH_USER : other));
+            }
+            return json.append("]}").toString();
+        });
+        routes.put("direct_messages/events/new.json", params ->
+                "{\"event\":" + data.directMessageJson(nextId.incrementAndGet(), AUTH_USER, number(params, "recipient_id", 2)) + "}");
+        routes.put("friendships/create.json", params -> data.userJson(userId(params)));
+        routes.put("friendships/destroy.json", params -> data.userJson(userId(params)));
+        routes.put("friendships/lookup.json", params -> {
+            StringBuilder json = new StringBuilder("[");
+            for (long id : ids(params.get("user_id"))) {
+                if (json.length() > 1)
+                    json.append(',');
+                json.append("{\"name\":\"User ").append(id).append("\",\"screen_name\":\"user").append(id)
+                        .append("\",\"id\":").append(id).append(",\"id_str\":\"").append(id)
+                        .append("\",\"connections\":[\"").append(following(id) ? "following" : "none").append("\"]}");
+            }
+            return json.append(']').toString();
+        });
+        routes.put("friendships/show.json", params -> {
+            long source = number(params, "source_id", AUTH_USER);
+            long target = number(params, "target_id", 2);
+            return "{\"relationship\":{\"source\":" + relationship(source, target) + ",\"target\":" + relationship(target, source) + "}}";
+        });
+    }
+
+    /**
+     * los usuarios pares son seguidos por el usuario autenticado
+     */
+    private static boolean following(long id) {
+        return id % 2 == 0;
+    }
+
+    private static String relationship(long id, long other) {
+        return "{\"id\":" + id + ",\"id_str\":\"" + id + "\",\"screen_name\":\"user" + id
+                + "\",\"following\":" + following(other) + ",\"followed_by\":" + following(id)
+                + ",\"notifications_enabled\":false,\"can_dm\":true,\"blocking\":false,\"muting\":false,\"want_retweets\":true,\"marked_spam\":false,\"all_replies\":false}";
+    }
+
+    /**
+     * busqueda: SEARCH_RESULTS resultados por consulta, de los mas recientes
+     * hacia atras, paginados con max_id
+     */
+    private String search(Map<String, String> params) {
+        int count = (int) number(params, "count", 15);
+        long top = head.get();
+        long maxId = number(params, "max_id", 0);
+        long bottom = top - SEARCH_RESULTS;
+        long[] ids = SyntheticData.homeTimeline(maxId > 0 ? Math.min(maxId, top) : top, bottom, 0, count);
+        String query = params.getOrDefault("q", "").replace("\\", "\\\\").replace("\"", "\\\"");
+        StringBuilder json = new StringBuilder(data.statusesJson(ids).length() + 256);
+        json.append("{\"statuses\":").append(data.statusesJson(ids))
+                .append(",\"search_metadata\":{\"completed_in\":0.01,\"count\":").append(count)
+                .append(",\"query\":\"").append(query).append("\",\"max_id\":").append(top)
+                .append(",\"max_id_str\":\"").append(top).append("\",\"since_id\":0,\"since_id_str\":\"0\"");
+        if (ids.length == count && ids[ids.length - 1] - 1 > bottom)
+            json.append(",\"next_results\":\"?max_id=").append(ids[ids.length - 1] - 1).append("&count=").append(count).append("\"");
+        return json.append(",\"refresh_url\":\"?since_id=").append(top).append("\"}}").toString();
+    }
+
+    private long userId(Map<String, String> params) {
+        if (params.containsKey("user_id"))
+            return number(params, "user_id", AUTH_USER);
+        String screenName = params.get("screen_name");
+        if (screenName != null && screenName.startsWith("user")) {
+            try {
+                return Long.parseLong(screenName.substring(4));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return AUTH_USER;
+    }
+
+    private static long number(Map<String, String> params, String name, long otherwise) {
+        try {
+            String value = params.get(name);
+            return value == null ? otherwise : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return otherwise;
+        }
+    }
+
+    private static long[] ids(String list) {
+        if (list == null || list.isEmpty())
+            return new long[0];
+        String[] parts = list.split(",");
+        long[] ids = new long[parts.length];
+        int size = 0;
+        for (String part : parts) {
+            try {
+                ids[size++] = Long.parseLong(part.trim());
+            } catch (NumberFormatException e) {
+                size--;
+            }
+        }
+        return size == ids.length ? ids : Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * arranca el servidor en 127.0.0.1
+     *
+     * @param port    - puerto, 0 para uno libre
+     * @param threads - hilos que atienden peticiones
+     * @return - puerto de escucha
+     * @throws IOException - si no se puede abrir el puerto
+     */
+    synchronized int start(int port, int threads) throws IOException {
+        // sin TCP_NODELAY las cabeceras y el cuerpo van en segmentos separados y
+        // el ACK retrasado añade ~40 ms a cada respuesta
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 256);
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "jtwit-mock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return - url base para -Djtwit.api.url
+     */
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PREFIX;
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getRateLimited() {
+        return limited.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            long count = requests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> params = new HashMap<>();
+            parse(exchange.getRequestURI().getRawQuery(), params);
+            byte[] body = read(exchange.getRequestBody());
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType != null && contentType.startsWith("application/json"))
+                parseJson(new String(body, StandardCharsets.UTF_8), params);
+            else
+                parse(new String(body, StandardCharsets.ISO_8859_1), params);
+            if (latency > 0)
+                Thread.sleep(latency);
+
+            Route route = path.startsWith(PREFIX) ? routes.get(path.substring(PREFIX.length())) : null;
+            if (route == null) {
+                send(exchange, 404, "{\"errors\":[{\"code\":34,\"message\":\"Sorry, that page does not exist.\"}]}");
+            } else if (rateLimitEvery > 0 && count % rateLimitEvery == 0) {
+                limited.incrementAndGet();
+                long reset = System.currentTimeMillis() / 1000 + 1;
+                exchange.getResponseHeaders().add("x-rate-limit-limit", "900");
+                exchange.getResponseHeaders().add("x-rate-limit-remaining", "0");
+                exchange.getResponseHeaders().add("x-rate-limit-reset", Long.toString(reset));
+                send(exchange, 429, "{\"errors\":[{\"code\":88,\"message\":\"Rate limit exceeded\"}]}");
+            } else {
+                send(exchange, 200, route.handle(params));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Mock request failed", e);
+            send(exchange, 500, "{\"errors\":[{\"code\":131,\"message\":\"Internal error\"}]}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json;charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            bytes.write(buffer, 0, n);
+        return bytes.toByteArray();
+    }
+
+    private static void parse(String query, Map<String, String> params) throws UnsupportedEncodingException {
+        if (query == null || query.isEmpty())
+            return;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+    }
+
+    /**
+     * solo los campos que usa direct_messages/events/new
+     */
+    private static void parseJson(String json, Map<String, String> params) {
+        Matcher matcher = JSON_FIELD.matcher(json);
+        while (matcher.find())
+            params.put(matcher.group(1), matcher.group(2));
+    }
+}
@@ -0,0 +1,350 @@
+package twitter;
+
+import twitter.persistence.PersistOutbox;
+import twitter4j.TwitterException;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cola de salida de tweets y DMs. Encolar un mensaje solo lo escribe en el
+ * registro en disco (PersistOutbox) y devuelve; un hilo en segundo plano
+ * los envia en orden. Los errores de rate limit esperan lo que indica
+ * twitter, los de red y del servidor se reintentan con espera exponencial y
+ * los que no tienen arreglo (tweet duplicado, destinatario que no admite
+ * DMs...) se descartan. Un 401 significa que los tokens ya no valen: la cola
+ * se detiene y los mensajes se quedan en disco hasta que se vuelva a
+ * iniciar sesion. Los mensajes pendientes se envian en la siguiente
+ * ejecucion si el programa termina antes.
+ * <p>
+ * Cada envio se hace con el envio del archivo bloqueado, asi que si otro
+ * proceso usa la misma cola un mensaje no se envia dos veces
+ *
+ * @author fsancheztemprano
+ */
+class Outbox {
+    /**
+     * envio de un mensaje, por ejemplo a traves de Session.call
+     */
+    @FunctionalInterface
+    interface Sender {
+        void send(PersistOutbox.Entry entry) throws TwitterException;
+    }
+
+    static final long BASE_BACKOFF = 1000;
+    static final long MAX_BACKOFF = 5 * 60_000;
+    /**
+     * intentos de un mensaje con errores del servidor antes de descartarlo,
+     * los errores de conexion se reintentan siempre
+     */
+    static final int MAX_ATTEMPTS = 8;
+    /**
+     * milisegundos entre comprobaciones de awaitSent, otro proceso puede
+     * terminar el mensaje sin avisar a este
+     */
+    static final long POLL = 200;
+
+    private static final Logger LOG = Logger.getLogger(Outbox.class.getName());
+
+    private final PersistOutbox log;
+    private final Sender sender;
+    private final RequestScheduler.Clock clock;
+    private Thread thread;
+    private boolean sending;
+    /**
+     * true si twitter ha rechazado los tokens, la cola no envia nada mas
+     */
+    private volatile boolean parked;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong sendNanos = new AtomicLong();
+    private final AtomicLong queuedMillis = new AtomicLong();
+    private volatile long maxQueuedMillis;
+
+    /**
+     * @param log    - registro de mensajes pendientes, ya leido
+     * @param sender - envio de cada mensaje
+     */
+    Outbox(PersistOutbox log, Sender sender) {
+        this(log, sender, RequestScheduler.SYSTEM_CLOCK);
+    }
+
+    Outbox(PersistOutbox log, Sender sender, RequestScheduler.Clock clock) {
+        this.log = log;
+        this.sender = sender;
+        this.clock = clock;
+    }
+
+    /**
+     * arranca el hilo de envio si hay mensajes pendientes
+     */
+    synchronized void start() {
+        if (thread != null || parked || log.size() == 0)
+            return;
+        thread = new Thread(this::drain, "jtwit-outbox");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * detiene el hilo de envio, los mensajes pendientes se quedan en disco
+     */
+    void stop() {
+        Thread running;
+        synchronized (this) {
+            running = thread;
+            thread = null;
+        }
+        if (running == null)
+            return;
+        running.interrupt();
+        try {
+            running.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * encola un mensaje, devuelve en cuanto esta guardado en disco
+     *
+     * @param kind        - PersistOutbox.TWEET o PersistOutbox.DM
+     * @param recipientId - destinatario del DM, 0 en un tweet
+     * @param text        - texto del mensaje
+     * @return - mensaje encolado
+     * @throws IOException - si no se ha podido guardar
+     */
+    PersistOutbox.Entry enqueue(byte kind, long recipientId, String text) throws IOException {
+        PersistOutbox.Entry entry = log.append(kind, recipientId, text);
+        synchronized (this) {
+            notifyAll();
+        }
+        start();
+        return entry;
+    }
+
+    /**
+     * espera a que la cola quede vacia
+     *
+     * @param timeout - milisegundos maximos de espera
+     * @return - true si no queda nada pendiente
+     */
+    synchronized boolean awaitIdle(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while ((log.size() > 0 || sending) && !parked) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    break;
+                wait(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return log.size() == 0;
+    }
+
+    /**
+     * espera a que un mensaje termine, lo envie este proceso u otro
+     *
+     * @param seq     - numero del mensaje
+     * @param timeout - milisegundos maximos de espera
+     * @return - true si se ha enviado, false si se ha descartado, o null si
+     * sigue pendiente al terminar la espera o la cola esta detenida
+     */
+    synchronized Boolean awaitSent(long seq, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (true) {
+                Boolean outcome = log.outcome(seq);
+                long left = deadline - System.currentTimeMillis();
+                if (outcome != null || parked || left <= 0)
+                    return outcome;
+                wait(Math.min(left, POLL));
+            }
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Could not read " + log.getFile(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * detiene el hilo de envio y borra los mensajes pendientes, por ejemplo
+     * al cerrar la sesion para que no se envien luego con otra cuenta
+     */
+    void discard() {
+        stop();
+        synchronized (this) {
+            log.delete();
+            sending = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return - true si la cola se ha detenido porque twitter ha rechazado los tokens
+     */
+    boolean isParked() {
+        return parked;
+    }
+
+    /**
+     * bucle del hilo de envio
+     */
+    private void drain() {
+        int attempt = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            long delay;
+            try {
+                PersistOutbox.Entry entry;
+                synchronized (this) {
+                    while ((entry = log.peek()) == null) {
+                        sending = false;
+                        notifyAll();
+                        wait();
+                    }
+                    sending = true;
+                }
+                delay = attempt(entry, attempt);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // detenida con stop mientras esperaba un bloqueo
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                LOG.log(Level.SEVERE, "Could not update " + log.getFile(), e);
+                delay = backoff(attempt);
+            }
+            if (parked) {
+                synchronized (this) {
+                    sending = false;
+                    thread = null;
+                    notifyAll();
+                }
+                return;
+            }
+            if (delay < 0) {
+                attempt = 0;
+                synchronized (this) {
+                    notifyAll();
+                }
+                continue;
+            }
+            attempt++;
+            retries.incrementAndGet();
+            try {
+                clock.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * envia un mensaje con el envio bloqueado para los demas procesos
+     *
+     * @param entry   - mensaje a enviar
+     * @param attempt - intentos fallidos anteriores
+     * @return - -1 si el mensaje ha terminado (enviado, descartado o ya
+     * terminado por otro proceso), o los milisegundos a esperar antes de
+     * reintentarlo
+     * @throws IOException - si no se puede leer o actualizar el registro
+     */
+    private long attempt(PersistOutbox.Entry entry, int attempt) throws IOException {
+        log.lockSend();
+        try {
+            if (!log.isPending(entry.seq))
+                return -1;
+            long start = System.nanoTime();
+            try {
+                sender.send(entry);
+            } catch (TwitterException e) {
+                if (e.exceededRateLimitation())
+                    return e.getRetryAfter() > 0 ? e.getRetryAfter() * 1000L : backoff(attempt);
+                if (e.getStatusCode() == 401) {
+                    parked = true;
+                    LOG.log(Level.SEVERE, "Credentials rejected, keeping " + log.size() + " queued messages until the next sign in");
+                    return 0;
+                }
+                if (e.getStatusCode() >= 400 && e.getStatusCode() < 500) {
+                    failed.incrementAndGet();
+                    LOG.log(Level.WARNING, "Dropping queued message " + entry.seq + ": "
+                            + (e.getErrorMessage() != null ? e.getErrorMessage() : "HTTP " + e.getStatusCode()));
+                    log.markDone(entry.seq, false);
+                    return -1;
+                }
+                if (e.getStatusCode() >= 500 && attempt + 1 >= MAX_ATTEMPTS) {
+                    failed.incrementAndGet();
+                    LOG.log(Level.WARNING, "Dropping queued message " + entry.seq + " after " + MAX_ATTEMPTS + " attempts", e);
+                    log.markDone(entry.seq, false);
+                    return -1;
+                }
+                return backoff(attempt);
+            }
+            sendNanos.addAndGet(System.nanoTime() - start);
+            long queued = clock.millis() - entry.queuedAt;
+            queuedMillis.addAndGet(queued);
+            maxQueuedMillis = Math.max(maxQueuedMillis, queued);
+            sent.incrementAndGet();
+            log.markDone(entry.seq, true);
+            return -1;
+        } finally {
+            log.unlockSend();
+        }
+    }
+
+    private static long backoff(int attempt) {
+        return Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(attempt, 20));
+    }
+
+    /**
+     * @return - mensajes pendientes de enviar
+     */
+    int getQueueDepth() {
+        return log.size();
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return - milisegundos medios de cada llamada de envio correcta
+     */
+    double getAverageSendMillis() {
+        long n = sent.get();
+        return n == 0 ? 0 : sendNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * @return - milisegundos medios desde que se encola un mensaje hasta que se envia
+     */
+    double getAverageQueuedMillis() {
+        long n = sent.get();
+        return n == 0 ? 0 : (double) queuedMillis.get() / n;
+    }
+
+    long getMaxQueuedMillis() {
+        return maxQueuedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Outbox{queueDepth=%d, sent=%d, failed=%d, retries=%d, avgSend=%.1fms, avgQueued=%.1fms, maxQueued=%dms}",
+                getQueueDepth(), getSent(), getFailed(), getRetries(), getAverageSendMillis(),
+                getAverageQueuedMillis(), getMaxQueuedMillis());
+    }
+}
@@ -0,0 +1,192 @@
+package twitter;
+
+import twitter4j.RateLimitStatus;
+import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Planificador por el que pasan todas las llamadas de Session a twitter.
+ * Guarda por endpoint las peticiones restantes y el reinicio de la ventana
+ * que indica twitter en cada respuesta; si la ventana esta agotada la llamada
+ * espera a su reinicio en lugar de fallar. Las respuestas 429 se reintentan
+ * respetando retry-after o con espera exponencial. Cada intento se mide en
+ * ApiMetrics
+ *
+ * @author fsancheztemprano
+ */
+class RequestScheduler {
+    /**
+     * reloj del planificador, permite sustituir el tiempo real en pruebas
+     */
+    interface Clock {
+        long millis();
+
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    static final int MAX_RETRIES = 3;
+    static final long BASE_BACKOFF = 1000;
+    static final long MAX_BACKOFF = 60_000;
+
+    /**
+     * ventana de rate limit de un endpoint
+     */
+    private static final class Window {
+        /**
+         * peticiones restantes, -1 mientras no se conozca
+         */
+        int remaining = -1;
+        long resetAt;
+    }
+
+    private final Clock clock;
+    private final ApiMetrics metrics;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    RequestScheduler() {
+        this(SYSTEM_CLOCK);
+    }
+
+    RequestScheduler(Clock clock) {
+        this(clock, ApiMetrics.GLOBAL);
+    }
+
+    RequestScheduler(Clock clock, ApiMetrics metrics) {
+        this.clock = clock;
+        this.metrics = metrics;
+    }
+
+    /**
+     * ejecuta una llamada respetando el rate limit de su endpoint
+     *
+     * @param endpoint - recurso de la api, por ejemplo /statuses/home_timeline
+     * @param call     - llamada a realizar
+     * @return - resultado de la llamada
+     * @throws TwitterException - si la llamada falla por otro motivo o se agotan los reintentos
+     */
+    <T> T call(String endpoint, TwitterCall<T> call) throws TwitterException {
+        Window window = windows.computeIfAbsent(endpoint, key -> new Window());
+        ApiMetrics.Endpoint stats = metrics.endpoint(endpoint);
+        for (int attempt = 0; ; attempt++) {
+            awaitQuota(window);
+            long start = stats.start();
+            try {
+                T result = call.call();
+                stats.success(start);
+                if (result instanceof TwitterResponse)
+                    update(window, ((TwitterResponse) result).getRateLimitStatus());
+                return result;
+            } catch (TwitterException e) {
+                stats.failure(start);
+                update(window, e.getRateLimitStatus());
+                if (!e.exceededRateLimitation() || attempt >= MAX_RETRIES)
+                    throw e;
+                retries.incrementAndGet();
+                stats.retry();
+                long delay = e.getRetryAfter() > 0
+                        ? e.getRetryAfter() * 1000L
+                        : Math.min(MAX_BACKOFF, BASE_BACKOFF << attempt);
+                await(delay);
+            }
+        }
+    }
+
+    /**
+     * espera al reinicio de la ventana si esta agotada y reserva una peticion
+     */
+    private void awaitQuota(Window window) throws TwitterException {
+        long delay;
+        synchronized (window) {
+            long now = clock.millis();
+            if (window.remaining == 0 && window.resetAt > now) {
+                delay = window.resetAt - now;
+            } else {
+                delay = 0;
+                if (window.remaining > 0)
+                    window.remaining--;
+            }
+        }
+        if (delay > 0) {
+            await(delay);
+            awaitQuota(window);
+        }
+    }
+
+    private void await(long delay) throws TwitterException {
+        queueDepth.incrementAndGet();
+        try {
+            clock.sleep(delay);
+            totalWait.addAndGet(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TwitterException("Interrupted while waiting for rate limit", e);
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+    }
+
+    private void update(Window window, RateLimitStatus status) {
+        if (status == null)
+            return;
+        synchronized (window) {
+            window.remaining = status.getRemaining();
+            window.resetAt = status.getResetTimeInSeconds() * 1000L;
+        }
+    }
+
+    /**
+     * @return - numero de llamadas esperando ahora mismo por el rate limit
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return - milisegundos totales esperados por el rate limit
+     */
+    long getTotalWait() {
+        return totalWait.get();
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @param endpoint - recurso de la api
+     * @return - peticiones restantes conocidas del endpoint, -1 si no se conocen
+     */
+    int getRemaining(String endpoint) {
+        Window window = windows.get(endpoint);
+        if (window == null)
+            return -1;
+        synchronized (window) {
+            return window.remaining;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RequestScheduler{queueDepth=" + queueDepth.get() + ", totalWait=" + totalWait.get() + "ms, retries=" + retries.get() + "}";
+    }
+}
@@ -0,0 +1,527 @@
+package twitter;
+
+import twitter4j.DirectMessage;
+import twitter4j.Status;
+import twitter4j.User;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Renderizador de las filas de los listados (timelines, busquedas, DMs y
+ * listas de usuarios).
+ * Todas las filas se escriben en un unico writer con buffer que se vuelca una
+ * vez por pagina, con formateadores reutilizables y anchos de columna fijos
+ * en lugar de un printf por fila. Hay un formato de tabla para la consola y
+ * los formatos TSV y NDJSON para procesar la salida con otros programas.
+ * Con varias cuentas a la vez cada fila puede llevar la cuenta en la primera
+ * columna, y PageStream evita que se mezclen las paginas de distintas cuentas
+ *
+ * @author fsancheztemprano
+ */
+abstract class RowRenderer {
+    /**
+     * formatos de salida disponibles
+     */
+    enum Format {
+        TABLE, TSV, NDJSON;
+
+        /**
+         * @param name - nombre del formato sin distinguir mayusculas
+         * @return - formato correspondiente
+         * @throws IllegalArgumentException - si el formato no existe
+         */
+        static Format parse(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * formato de fecha de la tabla, HH:mm:ss dd/MM/yyyy en la zona local
+     */
+    static final DateTimeFormatter TABLE_DATE = DateTimeFormatter.ofPattern("HH:mm:ss dd/MM/yyyy").withZone(ZoneId.systemDefault());
+    /**
+     * formato de fecha de TSV y NDJSON, ISO-8601 en UTC
+     */
+    static final DateTimeFormatter ISO_DATE = DateTimeFormatter.ISO_INSTANT;
+
+    protected final Writer out;
+    /**
+     * cuenta que se escribe en cada fila, null para no escribirla
+     */
+    protected String account;
+
+    protected RowRenderer(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * @param account - cuenta a escribir como primera columna de cada fila,
+     *                null para no escribirla
+     */
+    void setAccount(String account) {
+        this.account = account;
+    }
+
+    /**
+     * @param format - formato de salida
+     * @param out    - destino de las filas
+     * @return - renderizador del formato indicado
+     */
+    static RowRenderer create(Format format, Writer out) {
+        switch (format) {
+            case TSV:
+                return new Tsv(out);
+            case NDJSON:
+                return new NdJson(out);
+            case TABLE:
+            default:
+                return new Table(out);
+        }
+    }
+
+    /**
+     * @param format - formato de salida
+     * @param out    - stream de destino
+     * @return - renderizador con un writer UTF-8 con buffer sobre el stream
+     */
+    static RowRenderer create(Format format, OutputStream out) {
+        return create(format, new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16));
+    }
+
+    /**
+     * @param format - formato de salida
+     * @return - renderizador que escribe en la salida estandar, a traves de
+     * System.out para no desordenarse con el resto de mensajes
+     */
+    static RowRenderer stdout(Format format) {
+        return create(format, System.out);
+    }
+
+    /**
+     * escribe la fila de un status
+     *
+     * @param status - status a escribir
+     */
+    void status(Status status) {
+        status(status.getId(), status.getCreatedAt().getTime(), status.getUser().getId(),
+                status.getUser().getScreenName(), status.getText());
+    }
+
+    /**
+     * escribe la fila de un status a partir de sus campos, por ejemplo de un
+     * status guardado en el indice local
+     *
+     * @param id         - ID del status
+     * @param createdAt  - fecha de publicacion en milisegundos
+     * @param userId     - ID del autor
+     * @param screenName - screenName del autor
+     * @param text       - texto del status
+     */
+    abstract void status(long id, long createdAt, long userId, String screenName, String text);
+
+    /**
+     * escribe la fila de un mensaje directo
+     *
+     * @param message   - mensaje a escribir
+     * @param sender    - screenName del remitente
+     * @param recipient - screenName del destinatario
+     */
+    abstract void directMessage(DirectMessage message, String sender, String recipient);
+
+    /**
+     * escribe la fila de un usuario (seguidores, seguidos y busqueda de usuarios)
+     *
+     * @param user - usuario a escribir
+     */
+    abstract void user(User user);
+
+    /**
+     * vuelca lo escrito, se llama una vez por pagina
+     */
+    void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * formato de tabla de ancho fijo, el mismo que mostraba la consola
+     */
+    static class Table extends RowRenderer {
+        private static final String SPACES = new String(new char[128]).replace('\0', ' ');
+        private final StringBuilder date = new StringBuilder(19);
+
+        Table(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void status(long id, long createdAt, long userId, String screenName, String text) {
+            try {
+                account();
+                CharSequence created = formatDate(Instant.ofEpochMilli(createdAt));
+                padLeft(created, 20);
+                out.append(created);
+                out.write(" | ");
+                padLeft(screenName, 14);
+                out.write('@');
+                out.write(screenName);
+                out.write(" | ");
+                padLeft(text, 100);
+                out.write(text);
+                out.write(" \n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        void directMessage(DirectMessage message, String sender, String recipient) {
+            try {
+                account();
+                CharSequence created = formatDate(message.getCreatedAt().toInstant());
+                padLeft(created, 10);
+                out.append(created);
+                out.write(" | ");
+                padLeft(sender, 15);
+                out.write(sender);
+                out.write(" | ");
+                padLeft(recipient, 15);
+                out.write(recipient);
+                out.write(" | ");
+                padLeft(message.getText(), 100);
+                out.write(message.getText());
+                out.write(" \n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        void user(User user) {
+            try {
+                account();
+                out.write('@');
+                padLeft(user.getScreenName(), 15);
+                out.write(user.getScreenName());
+                out.write(" | ");
+                padLeft(user.getName(), 15);
+                out.write(user.getName());
+                out.write(" | ");
+                String id = Long.toString(user.getId());
+                padLeft(id, 20);
+                out.write(id);
+                out.write(" \n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void account() throws IOException {
+            if (account == null)
+                return;
+            padLeft(account, 15);
+            out.write(account);
+            out.write(" | ");
+        }
+
+        private CharSequence formatDate(Instant createdAt) {
+            date.setLength(0);
+            TABLE_DATE.formatTo(createdAt, date);
+            return date;
+        }
+
+        /**
+         * escribe los espacios que faltan para alinear a la derecha un valor
+         * en una columna del ancho indicado
+         */
+        private void padLeft(CharSequence value, int width) throws IOException {
+            int pad = width - value.length();
+            while (pad > 0) {
+                int n = Math.min(pad, SPACES.length());
+                out.write(SPACES, 0, n);
+                pad -= n;
+            }
+        }
+    }
+
+    /**
+     * valores separados por tabuladores, una fila por linea
+     */
+    static class Tsv extends RowRenderer {
+        Tsv(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void status(long id, long createdAt, long userId, String screenName, String text) {
+            try {
+                account();
+                out.write(Long.toString(id));
+                out.write('\t');
+                ISO_DATE.formatTo(Instant.ofEpochMilli(createdAt), out);
+                out.write('\t');
+                field(screenName);
+                out.write('\t');
+                field(text);
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        void directMessage(DirectMessage message, String sender, String recipient) {
+            try {
+                account();
+                out.write(Long.toString(message.getId()));
+                out.write('\t');
+                ISO_DATE.formatTo(message.getCreatedAt().toInstant(), out);
+                out.write('\t');
+                field(sender);
+                out.write('\t');
+                field(recipient);
+                out.write('\t');
+                field(message.getText());
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        void user(User user) {
+            try {
+                account();
+                out.write(Long.toString(user.getId()));
+                out.write('\t');
+                field(user.getScreenName());
+                out.write('\t');
+                field(user.getName());
+                out.write('\t');
+                out.write(Integer.toString(user.getFollowersCount()));
+                out.write('\t');
+                out.write(Integer.toString(user.getFriendsCount()));
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void account() throws IOException {
+            if (account == null)
+                return;
+            field(account);
+            out.write('\t');
+        }
+
+        /**
+         * escribe un campo escapando tabuladores, saltos de linea y barras
+         */
+        void field(String value) throws IOException {
+            if (value == null)
+                return;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    case '\r':
+                        out.write("\\r");
+                        break;
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    default:
+                        out.write(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * un objeto JSON por linea
+     */
+    static class NdJson extends RowRenderer {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        NdJson(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void status(long id, long createdAt, long userId, String screenName, String text) {
+            try {
+                open();
+                out.write("\"id\":");
+                out.write(Long.toString(id));
+                out.write(",\"created_at\":\"");
+                ISO_DATE.formatTo(Instant.ofEpochMilli(createdAt), out);
+                out.write("\",\"user_id\":");
+                out.write(Long.toString(userId));
+                out.write(",\"screen_name\":");
+                string(screenName);
+                out.write(",\"text\":");
+                string(text);
+                out.write("}\n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        void directMessage(DirectMessage message, String sender, String recipient) {
+            try {
+                open();
+                out.write("\"id\":");
+                out.write(Long.toString(message.getId()));
+                out.write(",\"created_at\":\"");
+                ISO_DATE.formatTo(message.getCreatedAt().toInstant(), out);
+                out.write("\",\"sender_id\":");
+                out.write(Long.toString(message.getSenderId()));
+                out.write(",\"sender\":");
+                string(sender);
+                out.write(",\"recipient_id\":");
+                out.write(Long.toString(message.getRecipientId()));
+                out.write(",\"recipient\":");
+                string(recipient);
+                out.write(",\"text\":");
+                string(message.getText());
+                out.write("}\n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        void user(User user) {
+            try {
+                open();
+                out.write("\"id\":");
+                out.write(Long.toString(user.getId()));
+                out.write(",\"screen_name\":");
+                string(user.getScreenName());
+                out.write(",\"name\":");
+                string(user.getName());
+                out.write(",\"followers_count\":");
+                out.write(Integer.toString(user.getFollowersCount()));
+                out.write(",\"friends_count\":");
+                out.write(Integer.toString(user.getFriendsCount()));
+                out.write(",\"protected\":");
+                out.write(user.isProtected() ? "true" : "false");
+                if (user.getStatus() != null) {
+                    out.write(",\"status\":");
+                    string(user.getStatus().getText());
+                }
+                out.write("}\n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * abre el objeto de una fila, con la cuenta como primer campo
+         */
+        private void open() throws IOException {
+            out.write('{');
+            if (account == null)
+                return;
+            out.write("\"account\":");
+            string(account);
+            out.write(',');
+        }
+
+        /**
+         * escribe un string JSON entre comillas con los caracteres escapados
+         */
+        void string(String value) throws IOException {
+            if (value == null) {
+                out.write("null");
+                return;
+            }
+            out.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        out.write("\\\"");
+                        break;
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    case '\r':
+                        out.write("\\r");
+                        break;
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            out.write("\\u00");
+                            out.write(HEX[c >> 4]);
+                            out.write(HEX[c & 0xF]);
+                        } else {
+                            out.write(c);
+                        }
+                }
+            }
+            out.write('"');
+        }
+    }
+
+    /**
+     * stream de una cuenta sobre un destino que comparten varias cuentas a
+     * la vez: guarda lo escrito y lo copia entero al destino al volcarlo,
+     * que RowRenderer hace al final de cada pagina, asi que las filas de
+     * distintas cuentas no se cortan ni se mezclan
+     */
+    static final class PageStream extends OutputStream {
+        private final OutputStream target;
+        private final ByteArrayOutputStream page = new ByteArrayOutputStream(1 << 16);
+
+        PageStream(OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            page.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            page.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (page.size() == 0)
+                return;
+            synchronized (target) {
+                page.writeTo(target);
+                target.flush();
+            }
+            page.reset();
+        }
+    }
+}
@@ -1,12 +1,37 @@
 package twitter;
 
 import twitter.persistence.PersistAccessToken;
+import twitter.persistence.PersistCheckpoint;
 import twitter.persistence.PersistConsumerKey;
+import twitter.persistence.PersistIdSnapshot;
+import twitter.persistence.PersistOutbox;
+import twitter.persistence.PersistSinceIds;
+import twitter.persistence.PersistStatusIndex;
+import twitter.persistence.PersistTape;
+import twitter.persistence.PersistTimelineCache;
 import twitter4j.*;
+import twitter4j.auth.AccessToken;
 import twitter4j.conf.ConfigurationBuilder;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.logging.Level;
+import java.util.stream.Stream;
 
 /**
  * Clase session, contiene la logica de creacion y utilizacion de una
@@ -20,11 +45,30 @@ class Session {
      * sera creado por el TwitterFactory con los consumer key y token
      */
     private final Twitter twitter;
+    /**
+     * antiguedad maxima de una identidad guardada en token.dat para usarla
+     * sin verificarla, configurable con -Djtwit.identity.maxAge
+     */
+    static final long IDENTITY_MAX_AGE = Long.getLong("jtwit.identity.maxAge", 7 * 24 * 60 * 60 * 1000L);
+    /**
+     * milisegundos que se espera al salir a que se envien los mensajes
+     * encolados, configurable con -Djtwit.outbox.drain
+     */
+    static final long OUTBOX_DRAIN = Long.getLong("jtwit.outbox.drain", 10_000L);
+    /**
+     * propiedad con la url base de la api REST, por ejemplo
+     * http://127.0.0.1:8080/1.1/ para usar MockServer
+     */
+    static final String API_URL = "jtwit.api.url";
     /**
      * String q contiene el screen name del usuario autenticado
      */
-    private final String screenName;
-    private final long authUserID;
+    private String screenName;
+    private long authUserID;
+    /**
+     * false si la identidad se ha tomado de token.dat sin verificarla todavia
+     */
+    private volatile boolean verified;
     /**
      * parametro PersistAccessToken que contiene el procesado de una token
      * key preestablecida o la carga de una token key desde el
@@ -33,6 +77,47 @@ class Session {
      * estos son los codigos de autenticacion del usuario que inicia sesion
      */
     private final PersistAccessToken token;
+    /**
+     * guardado y borrado de los tokens: token.dat en una sesion normal o el
+     * almacen de cuentas en una sesion de SessionPool
+     */
+    private final Runnable saveToken;
+    private final Runnable removeToken;
+    /**
+     * directorio de los archivos de datos de la cuenta, null para el
+     * directorio actual
+     */
+    private final File dir;
+    /**
+     * cache de usuarios compartida por getScreenName, pickUser y printFolUserList
+     */
+    private final UserCache userCache = new UserCache();
+    /**
+     * cache en disco de los ultimos status y usuarios recibidos
+     */
+    private final PersistTimelineCache timelineCache;
+    /**
+     * planificador por el que pasan todas las llamadas a twitter
+     */
+    private final RequestScheduler scheduler = new RequestScheduler();
+    /**
+     * indice local de los tweets y DMs recibidos, se carga la primera vez que
+     * se usa
+     */
+    private PersistStatusIndex searchIndex;
+    /**
+     * renderizador de las filas de timeline, busqueda y DMs
+     */
+    private RowRenderer renderer = RowRenderer.stdout(RowRenderer.Format.TABLE);
+    /**
+     * cola de tweets y DMs pendientes de enviar, null en las sesiones de
+     * grabacion y reproduccion, que los envian directamente
+     */
+    private final Outbox outbox;
+    /**
+     * mensajes encolados por esta sesion que flushOutbox todavia no ha esperado
+     */
+    private final List<Long> queued = new ArrayList<>();
 
     /**
      * constructor por defecto de una nueva session
@@ -79,15 +164,19 @@ class Session {
           crear una nueva session
          */
         token = new PersistAccessToken();
-        if (!persist)
+        if (!persist) {
             token.removeKey();
+            deleteData(null);
+        }
+        boolean fromFile = false;
         try {
             token.readKey();
+            fromFile = true;
             System.out.println("Token read from file.");
         } catch (IOException e) {
             System.out.println("Token file not found -> OAuth");
             try {
-                token.createAccessToken(consumer);
+                token.createAccessToken(consumer, ConsoleInput.get()::nextLine);
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
@@ -98,27 +187,207 @@ class Session {
           con todos los codigos de autenticacion validamos instanciamos
           el Objeto twitter
          */
+        ConfigurationBuilder configBuilder = configuration(consumer);
+        configBuilder.setOAuthAccessToken(token.getToken())
+                .setOAuthAccessTokenSecret(token.getSecretToken());
+        twitter = new TwitterFactory(configBuilder.build()).getInstance();
+        saveToken = token::saveKey;
+        removeToken = token::removeKey;
+        dir = null;
+        timelineCache = new PersistTimelineCache();
+        resume(fromFile);
+        outbox = openOutbox();
+    }
+
+    /**
+     * constructor de las sesiones de SessionPool, con una instancia de
+     * twitter ya creada y los archivos de datos en el directorio de la cuenta
+     *
+     * @param twitter     - instancia de twitter con los tokens de la cuenta
+     * @param token       - tokens e identidad guardada de la cuenta
+     * @param saveToken   - guarda los tokens de la cuenta
+     * @param removeToken - borra los tokens de la cuenta
+     * @param dir         - directorio de los archivos de datos de la cuenta
+     * @throws TwitterException - si no hay identidad guardada y falla la autenticacion
+     */
+    Session(Twitter twitter, PersistAccessToken token, Runnable saveToken, Runnable removeToken, File dir) throws TwitterException {
+        this(twitter, token, saveToken, removeToken, dir, true);
+    }
+
+    private Session(Twitter twitter, PersistAccessToken token, Runnable saveToken, Runnable removeToken, File dir,
+                    boolean queue) throws TwitterException {
+        this.twitter = twitter;
+        this.token = token;
+        this.saveToken = saveToken;
+        this.removeToken = removeToken;
+        this.dir = dir;
+        dir.mkdirs();
+        timelineCache = new PersistTimelineCache(new File(dir, PersistTimelineCache.DEFAULT_FILE.getName()));
+        resume(true);
+        outbox = queue ? openOutbox() : null;
+    }
+
+    /**
+     * sesion que graba las peticiones a la api, las responde con una
+     * grabacion, o las dos cosas. Al grabar usa los tokens de token.dat, sin
+     * modificarlo, y pide la identidad a verify_credentials para que quede en
+     * la grabacion; al reproducir no hace falta token.dat y la identidad sale
+     * de esa respuesta grabada. Sus archivos de datos van a un directorio
+     * temporal que se borra al salir, y no tiene cola de salida: los tweets y DMs se envian
+     * directamente, asi que se graban o se reproducen como el resto de
+     * peticiones y los mensajes encolados de la cuenta no se tocan
+     *
+     * @param replay   - grabacion ya leida con la que responder, o null para usar la red
+     * @param realTime - true para tardar lo mismo que las peticiones grabadas
+     * @param record   - grabacion donde añadir las peticiones, o null
+     * @return - sesion aislada de la cuenta
+     * @throws IOException      - si se usa la red y no hay token.dat, o no se puede crear el directorio temporal
+     * @throws TwitterException - si falla la autenticacion
+     */
+    static Session tape(PersistTape replay, boolean realTime, PersistTape record) throws IOException, TwitterException {
+        PersistAccessToken token;
+        Twitter twitter;
+        if (replay != null) {
+            token = new PersistAccessToken("0-replay", "replay");
+            twitter = ApiTape.replay(replay, realTime);
+        } else {
+            PersistAccessToken saved = new PersistAccessToken();
+            saved.readKey();
+            // sin la identidad guardada, asi verify_credentials queda grabado
+            token = new PersistAccessToken(saved.getToken(), saved.getSecretToken());
+            PersistConsumerKey consumer = new PersistConsumerKey();
+            try {
+                consumer.readKey();
+            } catch (IOException e) {
+                consumer.setDefault();
+            }
+            twitter = new TwitterFactory(configuration(consumer).build())
+                    .getInstance(new AccessToken(token.getToken(), token.getSecretToken()));
+        }
+        if (record != null)
+            ApiTape.record(twitter, record);
+        Path dir = Files.createTempDirectory("jtwit-tape");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        Runnable readOnly = () -> {
+        };
+        return new Session(twitter, token, readOnly, readOnly, dir.toFile(), false);
+    }
+
+    /**
+     * configuracion de twitter4j con la consumer key y, si se ha indicado
+     * con -Djtwit.api.url, otra url base para la api REST
+     *
+     * @param consumer - consumer key de la aplicacion
+     * @return - configuracion a completar con los tokens del usuario
+     */
+    static ConfigurationBuilder configuration(PersistConsumerKey consumer) {
         ConfigurationBuilder configBuilder = new ConfigurationBuilder();
         configBuilder.setDebugEnabled(true)
                 .setOAuthConsumerKey(consumer.getApikey())
-                .setOAuthConsumerSecret(consumer.getApisecret())
-                .setOAuthAccessToken(token.getToken())
-                .setOAuthAccessTokenSecret(token.getSecretToken());
-        twitter = new TwitterFactory(configBuilder.build()).getInstance();
-        screenName = twitter.getScreenName();
-        authUserID = twitter.getId();
-        System.out.println("Authentication granted to @" + twitter.showUser(twitter.getScreenName()).getScreenName());
+                .setOAuthConsumerSecret(consumer.getApisecret());
+        String url = System.getProperty(API_URL);
+        if (url != null && !url.isEmpty())
+            configBuilder.setRestBaseURL(url.endsWith("/") ? url : url + "/");
+        return configBuilder;
+    }
+
+    /**
+     * carga la cache del timeline y la identidad del usuario
+     *
+     * @param fromFile - true si los tokens se han leido de disco
+     */
+    private void resume(boolean fromFile) throws TwitterException {
+        try {
+            timelineCache.readKey();
+        } catch (IOException e) {
+            timelineCache.setDefault();
+        }
+        /*
+          si token.dat tiene una identidad verificada recientemente la usamos
+          sin llamar a twitter, se comprobara con el primer fallo de la api
+         */
+        if (fromFile && token.hasRecentIdentity(IDENTITY_MAX_AGE)) {
+            screenName = token.getScreenName();
+            authUserID = token.getUserId();
+            verified = false;
+            System.out.println("Session resumed as @" + screenName);
+        } else {
+            verifyIdentity();
+            if (fromFile)
+                saveToken.run();
+            System.out.println("Authentication granted to @" + screenName);
+        }
+    }
+
+    /**
+     * los mensajes que quedaron en la cola de una ejecucion anterior se
+     * envian ahora, y al salir se espera un poco a que se vacie la cola
+     *
+     * @return - cola de salida de la cuenta
+     */
+    private Outbox openOutbox() {
+        PersistOutbox pending = new PersistOutbox(new File(dir, PersistOutbox.DEFAULT_FILE.getName()));
+        try {
+            pending.readKey();
+        } catch (IOException e) {
+            pending.setDefault();
+        }
+        Outbox created = new Outbox(pending, entry -> deliver(entry.kind, entry.recipientId, entry.text));
+        created.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> created.awaitIdle(OUTBOX_DRAIN)));
+        return created;
+    }
+
+    /**
+     * verifica los tokens con una unica llamada a verify_credentials y
+     * guarda la identidad resultante
+     *
+     * @throws TwitterException - si los tokens no son validos
+     */
+    private void verifyIdentity() throws TwitterException {
+        User user = scheduler.call("/account/verify_credentials", twitter::verifyCredentials);
+        screenName = user.getScreenName();
+        authUserID = user.getId();
+        userCache.put(user);
+        token.setIdentity(authUserID, screenName, System.currentTimeMillis());
+        verified = true;
+    }
+
+    /**
+     * getter del renderizador de filas de los listados
+     *
+     * @return - RowRenderer
+     */
+    public RowRenderer getRenderer() {
+        return renderer;
     }
 
     /**
-     * devuelve un string con un formato de fecha hora basico a
-     * partir de un objeto Date
+     * cambia el formato de salida de los listados
      *
-     * @param date - objeto Date
-     * @return - String formateado
+     * @param format - formato de tabla, TSV o NDJSON
      */
-    private static String dateFormater(java.util.Date date) {
-        return String.format("%02d:%02d:%02d %02d/%02d/%04d", date.getHours(), date.getMinutes(), date.getSeconds(), date.getDate(), date.getMonth(), date.getYear());
+    public void setOutputFormat(RowRenderer.Format format) {
+        setOutput(format, System.out);
+    }
+
+    /**
+     * cambia el formato y el destino de los listados, por ejemplo para
+     * escribir NDJSON en la salida estandar y el resto de mensajes en la
+     * salida de error
+     *
+     * @param format - formato de tabla, TSV o NDJSON
+     * @param out    - stream donde se escriben las filas
+     */
+    public void setOutput(RowRenderer.Format format, OutputStream out) {
+        renderer.flush();
+        renderer = RowRenderer.create(format, out);
     }
 
     /**
@@ -146,19 +415,111 @@ class Session {
     }
 
     /**
-     * imprime por consola el timeline de la cuenta autenticada
+     * getter del planificador de llamadas de la session
+     *
+     * @return - RequestScheduler
+     */
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * ejecuta una llamada a twitter a traves del planificador, que espera si
+     * el endpoint ha agotado su rate limit y reintenta las respuestas 429.
+     * Si la identidad de la sesion no se ha verificado aun, el primer fallo
+     * la verifica; si los tokens ya no son validos (401) se olvida la
+     * identidad guardada y se lanza el error de la verificacion
+     *
+     * @param endpoint - recurso de la api, por ejemplo /statuses/home_timeline
+     * @param call     - llamada a realizar
+     * @return - resultado de la llamada
+     * @throws TwitterException - si la llamada falla
+     */
+    public <T> T call(String endpoint, TwitterCall<T> call) throws TwitterException {
+        try {
+            return scheduler.call(endpoint, call);
+        } catch (TwitterException e) {
+            if (!verified) {
+                synchronized (this) {
+                    if (!verified) {
+                        try {
+                            verifyIdentity();
+                        } catch (TwitterException ex) {
+                            if (ex.getStatusCode() != 401)
+                                throw e;
+                            token.clearIdentity();
+                            saveToken.run();
+                            verified = true;
+                            throw ex;
+                        }
+                        saveToken.run();
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * getter de la cache de usuarios de la session
+     *
+     * @return - UserCache
+     */
+    public UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * imprime por consola el timeline de la cuenta autenticada. Solo se piden
+     * a twitter los status posteriores al mas reciente de la cache en disco,
+     * el resto se leen de la cache
      */
     public void printTimeline() {
         Paging pagina = new Paging();
         pagina.setCount(50);
+        long sinceId = timelineCache.getMaxStatusId();
+        if (sinceId > 0)
+            pagina.setSinceId(sinceId);
         try {
-            ResponseList<Status> listado = twitter.getHomeTimeline(pagina);
+            ResponseList<Status> listado = call("/statuses/home_timeline", () -> twitter.getHomeTimeline(pagina));
             for (Status status : listado) {
-                System.out.printf("%20s | %15s | %100s %n", dateFormater(status.getCreatedAt()), ("@" + status.getUser().getScreenName()), status.getText());
+                timelineCache.put(status);
+                userCache.put(status.getUser());
+                index(status);
             }
+            timelineCache.saveKey();
+            getSearchIndex().saveKey();
         } catch (TwitterException e) {
             e.printStackTrace();
         }
+        for (Status status : timelineCache.getLatestStatuses(50)) {
+            renderer.status(status);
+        }
+        renderer.flush();
+    }
+
+    /**
+     * imprime el timeline de la cuenta autenticada y se queda consultandolo
+     * periodicamente, imprimiendo solo los status nuevos, hasta que se
+     * interrumpa el programa. Al salir se guardan en la cache en disco los
+     * status recibidos
+     */
+    public void followTimeline() {
+        printTimeline();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            timelineCache.saveKey();
+            getSearchIndex().saveKey();
+        }));
+        TimelinePoller poller = new TimelinePoller(paging -> call("/statuses/home_timeline", () -> twitter.getHomeTimeline(paging)), timelineCache.getMaxStatusId(), status -> {
+            timelineCache.put(status);
+            userCache.put(status.getUser());
+            index(status);
+            renderer.status(status);
+            renderer.flush();
+        });
+        poller.run();
+        timelineCache.saveKey();
+        getSearchIndex().saveKey();
     }
 
     /**
@@ -171,114 +532,446 @@ class Session {
         Paging pagina = new Paging();
         pagina.setCount(50);
         try {
-            ResponseList<Status> listado = twitter.getUserTimeline(screenName,pagina);
-            for (Status status : listado) {
-                System.out.printf("%20s | %15s | %100s %n", dateFormater(status.getCreatedAt()), ("@" + status.getUser().getScreenName()), status.getText());
-            }
+            printStatuses(call("/statuses/user_timeline", () -> twitter.getUserTimeline(screenName, pagina)));
         } catch (TwitterException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * metodo que publica un tweet
+     * imprime el timeline conjunto de los usuarios de un archivo, del status
+     * mas reciente al mas antiguo. Los timelines se piden en paralelo; la
+     * primera fila espera a la primera pagina de todos los usuarios y el
+     * resto salen segun se mezclan, sin esperar a las paginas siguientes. El
+     * ultimo status de cada usuario se guarda junto al archivo para que la
+     * siguiente ejecucion solo muestre los nuevos
+     *
+     * @param path  - archivo con un screenName por linea
+     * @param limit - numero maximo de status
+     * @return - false si no se puede leer la lista o falla algun usuario
+     */
+    public boolean printTimelines(String path, int limit) {
+        Set<String> screenNames;
+        try {
+            screenNames = readScreenNames(path);
+        } catch (IOException e) {
+            System.out.println("Could not read users from " + path + ": " + e.getMessage());
+            return false;
+        }
+        PersistSinceIds sinceIds = new PersistSinceIds(path + ".since");
+        try {
+            sinceIds.readKey();
+        } catch (IOException e) {
+            sinceIds.setDefault();
+        }
+        TimelineMerge merge = new TimelineMerge((user, paging) -> call("/statuses/user_timeline", () -> twitter.getUserTimeline(user, paging)),
+                sinceIds, limit, status -> {
+            userCache.put(status.getUser());
+            index(status);
+            renderer.status(status);
+        });
+        merge.setOnWait(renderer::flush);
+        long start = System.nanoTime();
+        try {
+            merge.run(screenNames);
+        } finally {
+            renderer.flush();
+            sinceIds.saveKey();
+            getSearchIndex().saveKey();
+        }
+        System.out.printf("Timeline: %d statuses from %d users, %d requests, %.1f ms%n", merge.getDelivered(),
+                screenNames.size(), merge.getRequests(), (System.nanoTime() - start) / 1e6);
+        return merge.getFailed().isEmpty();
+    }
+
+    /**
+     * lee un archivo con un screenName por linea, con o sin @, sin repetidos
+     */
+    private static Set<String> readScreenNames(String path) throws IOException {
+        Set<String> screenNames = new LinkedHashSet<>();
+        Set<String> seen = new HashSet<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("@"))
+                    line = line.substring(1);
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                if (seen.add(line.toLowerCase(Locale.ROOT)))
+                    screenNames.add(line);
+            }
+        }
+        return screenNames;
+    }
+
+    /**
+     * imprime en consola un listado de status ya cargado y lo añade al
+     * indice local
+     *
+     * @param statuses - status a imprimir
+     */
+    public void printStatuses(Iterable<Status> statuses) {
+        for (Status status : statuses) {
+            index(status);
+            renderer.status(status);
+        }
+        renderer.flush();
+        getSearchIndex().saveKey();
+    }
+
+    /**
+     * busca en el indice local los tweets y DMs ya recibidos, sin conexion
+     *
+     * @param query - palabras, #hashtags, @menciones, from:usuario, since:/until:yyyy-MM-dd
+     * @param limit - numero maximo de resultados
+     * @return - false si la consulta no es valida
+     */
+    public boolean searchLocal(String query, int limit) {
+        long start = System.nanoTime();
+        List<PersistStatusIndex.Doc> docs;
+        try {
+            docs = getSearchIndex().search(query, limit);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        for (PersistStatusIndex.Doc doc : docs) {
+            renderer.status(doc.id, doc.createdAt, doc.userId, doc.screenName, doc.text);
+        }
+        renderer.flush();
+        System.out.printf("Local search: %d results in %.2f ms%n", docs.size(), (System.nanoTime() - start) / 1e6);
+        return true;
+    }
+
+    /**
+     * getter del indice local, lo lee del archivo la primera vez
+     *
+     * @return - PersistStatusIndex
+     */
+    public synchronized PersistStatusIndex getSearchIndex() {
+        if (searchIndex == null) {
+            searchIndex = new PersistStatusIndex(new File(dir, PersistStatusIndex.DEFAULT_FILE.getName()), PersistStatusIndex.DEFAULT_MAX_DOCS);
+            try {
+                searchIndex.readKey();
+            } catch (IOException e) {
+                searchIndex.setDefault();
+            }
+        }
+        return searchIndex;
+    }
+
+    private void index(Status status) {
+        getSearchIndex().put(status.getId(), status.getCreatedAt(), status.getUser().getId(),
+                status.getUser().getScreenName(), status.getText());
+    }
+
+    /**
+     * metodo que publica un tweet. El tweet se guarda en la cola de salida y
+     * se publica en segundo plano
      *
      * @param string -string a ser publicado en el tweet
+     * @return - true si el tweet se ha encolado
      */
-    public void updateStatus(String string) {
+    public boolean updateStatus(String string) {
+        if (outbox == null)
+            return sendNow(PersistOutbox.TWEET, 0, string);
         try {
-            twitter.updateStatus(string);
-        } catch (TwitterException e) {
+            queued(outbox.enqueue(PersistOutbox.TWEET, 0, string));
+            System.out.println("Tweet queued.");
+            return true;
+        } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
+    /**
+     * envia un mensaje de la cola de salida, lo llama el hilo de la cola
+     *
+     * @param kind        - PersistOutbox.TWEET o PersistOutbox.DM
+     * @param recipientId - destinatario de un DM
+     * @param text        - texto del mensaje
+     * @throws TwitterException - si falla el envio, la cola decide si reintentarlo
+     */
+    private void deliver(byte kind, long recipientId, String text) throws TwitterException {
+        if (kind == PersistOutbox.DM) {
+            DirectMessage dm = call("/direct_messages/events/new", () -> twitter.sendDirectMessage(recipientId, text));
+            System.out.println("Direct message successfully sent to " + getScreenName(dm.getRecipientId()));
+        } else {
+            Status status = call("/statuses/update", () -> twitter.updateStatus(text));
+            timelineCache.put(status);
+            System.out.println("Tweet published: " + status.getId());
+        }
+    }
+
+    /**
+     * envia un mensaje sin pasar por la cola, en las sesiones sin cola
+     *
+     * @return - true si se ha enviado
+     */
+    private boolean sendNow(byte kind, long recipientId, String text) {
+        try {
+            deliver(kind, recipientId, text);
+            return true;
+        } catch (TwitterException e) {
+            System.out.println("Could not send the message: "
+                    + (e.getErrorMessage() != null ? e.getErrorMessage() : "HTTP " + e.getStatusCode()));
+            return false;
+        }
+    }
+
+    private void queued(PersistOutbox.Entry entry) {
+        synchronized (queued) {
+            queued.add(entry.seq);
+        }
+    }
+
+    /**
+     * espera a que se envien los mensajes encolados por esta sesion desde la
+     * ultima llamada, como mucho OUTBOX_DRAIN milisegundos entre todos
+     *
+     * @return - true si se han enviado todos; false si alguno se ha
+     * descartado o sigue en la cola
+     */
+    public boolean flushOutbox() {
+        List<Long> seqs;
+        synchronized (queued) {
+            seqs = new ArrayList<>(queued);
+            queued.clear();
+        }
+        long deadline = System.currentTimeMillis() + OUTBOX_DRAIN;
+        int dropped = 0;
+        int waiting = 0;
+        for (long seq : seqs) {
+            Boolean sent = outbox.awaitSent(seq, Math.max(0, deadline - System.currentTimeMillis()));
+            if (sent == null)
+                waiting++;
+            else if (!sent)
+                dropped++;
+        }
+        if (dropped > 0)
+            System.out.println(dropped + " queued message" + (dropped == 1 ? " was" : "s were") + " rejected by twitter and dropped.");
+        if (waiting > 0 && outbox.isParked())
+            System.out.println("Twitter rejected the credentials, " + waiting + " message" + (waiting == 1 ? " is" : "s are")
+                    + " kept queued until you sign in again with : jtwit auth");
+        else if (waiting > 0)
+            System.out.println(waiting + " message" + (waiting == 1 ? " is" : "s are") + " still queued and will be sent by the next jtwit run.");
+        return dropped == 0 && waiting == 0;
+    }
+
+    /**
+     * espera a que se envien los mensajes de la cola de salida de la cuenta,
+     * como mucho OUTBOX_DRAIN milisegundos
+     *
+     * @return - mensajes que siguen sin enviar
+     */
+    public int drainOutbox() {
+        if (outbox == null)
+            return 0;
+        outbox.awaitIdle(OUTBOX_DRAIN);
+        return outbox.getQueueDepth();
+    }
+
+    /**
+     * getter de la cola de salida de tweets y DMs
+     *
+     * @return - Outbox, null en las sesiones de grabacion y reproduccion
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
     /**
      * metodeo que devuelve los resultados de la busqueda un string
      *
      * @param string - string de la busqueda a realizar
      */
     public void searchStatus(String string) {
-        try {
+        searchStatus(Collections.singletonList(string), DeepSearch.DEFAULT_BUDGET, null, null);
+    }
+
+    /**
+     * busqueda en profundidad: sigue las paginas de cada consulta hasta
+     * obtener budget resultados entre todas, ejecutando las consultas en
+     * paralelo y descartando los status repetidos. Los resultados se imprimen
+     * segun llega cada pagina y al final se muestra un resumen
+     *
+     * @param queries - consultas independientes
+     * @param budget  - numero maximo de resultados
+     * @param since   - fecha minima yyyy-MM-dd, o null
+     * @param until   - fecha maxima yyyy-MM-dd, o null
+     */
+    public void searchStatus(List<String> queries, int budget, String since, String until) {
+        RowRenderer rows = renderer;
+        DeepSearch search = new DeepSearch(query -> call("/search/tweets", () -> twitter.search(query)), budget, status -> {
+            index(status);
+            rows.status(status);
+        });
+        search.setOnPage(rows::flush);
+        List<Query> list = new ArrayList<>(queries.size());
+        for (String string : queries) {
             Query query = new Query(string);
-            QueryResult result = twitter.search(query);
-            result.getTweets().forEach((status) -> System.out.printf("%20s | %15s | %100s %n", dateFormater(status.getCreatedAt()), ("@" + status.getUser().getScreenName()), status.getText()));
+            if (since != null)
+                query.setSince(since);
+            if (until != null)
+                query.setUntil(until);
+            list.add(query);
+        }
+        try {
+            search.run(list);
         } catch (TwitterException ex) {
             java.util.logging.Logger.getLogger(Session.class.getName()).log(Level.SEVERE, null, ex);
         }
+        getSearchIndex().saveKey();
+        System.out.println("Search: " + search);
     }
-    
+
     /**
-     * Metodo que genera un objeto IDs que se utiliza por printFolUserList para
-     * imprimir los usuarios que siguen a un usuario determinado por el id 
-     * en el parametro userId, si userId es null el usuario a consultar sera 
+     * Metodo que genera un IDCursor que se utiliza por printFolUserList para
+     * imprimir los usuarios a los que sigue un usuario determinado por el id
+     * en el parametro userId, si userId es null el usuario a consultar sera
      * el usuario autenticado
-     * 
+     *
      * @param userId - id del usuario a consultar a quien sigue
      */
     public void printFollowing(Long userId) {
-        try {
-            System.out.println("\nFollowing: ");
-            if (userId == null) {
-                printFolUserList(twitter.getFriendsIDs(-1));
-            } else {
-                printFolUserList(twitter.getFriendsIDs(userId, -1));
-            }
-        } catch (TwitterException e) {
-            e.printStackTrace();
-        }
+        System.out.println("\nFollowing: ");
+        printFolUserList(new IDCursor(cursor -> userId == null
+                ? call("/friends/ids", () -> twitter.getFriendsIDs(cursor))
+                : call("/friends/ids", () -> twitter.getFriendsIDs(userId, cursor))));
     }
-    
+
     /**
-     * Metodo que genera un objeto IDs que se utiliza por printFolUserList para
-     * imprimir los usuarios que siguen a un usuario determinado por el id 
-     * en el parametro userId, si userId es null el usuario a consultar sera 
+     * Metodo que genera un IDCursor que se utiliza por printFolUserList para
+     * imprimir los usuarios que siguen a un usuario determinado por el id
+     * en el parametro userId, si userId es null el usuario a consultar sera
      * el usuario autenticado
-     * 
+     *
      * @param userId - id del usuario a consultar quien sigue
      */
     public void printFollowers(Long userId) {
+        System.out.println("\nFollowers: ");
+        printFolUserList(new IDCursor(cursor -> userId == null
+                ? call("/followers/ids", () -> twitter.getFollowersIDs(cursor))
+                : call("/followers/ids", () -> twitter.getFollowersIDs(userId, cursor))));
+    }
+
+    /**
+     * descarga los IDs de seguidores y seguidos del usuario autenticado, los
+     * compara con la foto anterior guardada en disco y muestra quien ha dejado
+     * de seguirle, los seguidores nuevos y a quien sigue sin ser seguido. Los
+     * IDs se manejan como long[] ordenados, solo se resuelven los usuarios
+     * de las diferencias
+     */
+    public void printGraph() {
+        SortedLongSet followers;
+        SortedLongSet friends;
         try {
-            System.out.println("\nFollowers: ");
-            if (userId == null) {
-                printFolUserList(twitter.getFollowersIDs(-1));
-            } else {
-                printFolUserList(twitter.getFollowersIDs(userId, -1));
-            }
+            followers = SortedLongSet.collect(new IDCursor(cursor -> call("/followers/ids", () -> twitter.getFollowersIDs(cursor))));
+            friends = SortedLongSet.collect(new IDCursor(cursor -> call("/friends/ids", () -> twitter.getFriendsIDs(cursor))));
+        } catch (IDCursor.FetchException e) {
+            e.getCause().printStackTrace();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        PersistIdSnapshot followersSnapshot = new PersistIdSnapshot(new File(dir, "followers-" + authUserID + ".dat").getPath());
+        PersistIdSnapshot friendsSnapshot = new PersistIdSnapshot(new File(dir, "friends-" + authUserID + ".dat").getPath());
+        SortedLongSet previousFollowers = readSnapshot(followersSnapshot);
+        SortedLongSet previousFriends = readSnapshot(friendsSnapshot);
+
+        SortedLongSet mutuals = followers.intersection(friends);
+        SortedLongSet notFollowingBack = friends.difference(followers);
+        System.out.println("\nFollowers: " + followers.size() + " | Following: " + friends.size()
+                + " | Mutuals: " + mutuals.size() + " | Fans: " + (followers.size() - mutuals.size()));
+        if (previousFollowers != null) {
+            System.out.println("Since " + RowRenderer.TABLE_DATE.format(Instant.ofEpochMilli(followersSnapshot.getTakenAt())) + ":");
+            System.out.println("\nUnfollowed you: ");
+            printUsers(previousFollowers.difference(followers));
+            System.out.println("\nNew followers: ");
+            printUsers(followers.difference(previousFollowers));
+        }
+        if (previousFriends != null) {
+            System.out.println("\nNo longer following: ");
+            printUsers(previousFriends.difference(friends));
+        }
+        System.out.println("\nNot following you back: ");
+        printUsers(notFollowingBack);
+
+        followersSnapshot.setIds(followers.array(), now);
+        followersSnapshot.saveKey();
+        friendsSnapshot.setIds(friends.array(), now);
+        friendsSnapshot.saveKey();
+    }
+
+    /**
+     * @return - la foto guardada, o null si no hay ninguna
+     */
+    private static SortedLongSet readSnapshot(PersistIdSnapshot snapshot) {
+        if (!snapshot.getFile().exists())
+            return null;
+        try {
+            snapshot.readKey();
+            return SortedLongSet.wrap(snapshot.getIds());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * resuelve e imprime los usuarios de un conjunto de IDs
+     *
+     * @param ids - IDs a mostrar
+     */
+    private void printUsers(SortedLongSet ids) {
+        RowRenderer rows = renderer;
+        UserHydrator hydrator = new UserHydrator(chunk -> call("/users/lookup", () -> twitter.lookupUsers(chunk)), userCache, rows::user);
+        hydrator.setOnChunk(rows::flush);
+        try {
+            hydrator.addAll(ids.array());
+            hydrator.flush();
         } catch (TwitterException e) {
             e.printStackTrace();
         }
     }
+
     /**
-     * metodo utilizado por printFollowers() y printFollowing() para 
-     * imprimir los usuarios dentro del IDs que recibe como parametro
-     * 
-     * @param ids - objeto IDs que contiene un grupo de IDs a ser mostrados
+     * metodo utilizado por printFollowers() y printFollowing() para
+     * imprimir los usuarios del cursor que recibe como parametro, recorriendo
+     * todas sus paginas. Los IDs se resuelven en bloques de 100 con lookupUsers
+     * y cada bloque se escribe en cuanto se resuelve
+     *
+     * @param ids - cursor con los IDs a ser mostrados
      */
-    public void printFolUserList(IDs ids) {
+    public void printFolUserList(IDCursor ids) {
+        RowRenderer rows = renderer;
+        UserHydrator hydrator = new UserHydrator(chunk -> call("/users/lookup", () -> twitter.lookupUsers(chunk)), userCache, rows::user);
+        hydrator.setOnChunk(rows::flush);
         try {
-            do {
-                for (long id : ids.getIDs()) {
-                    String followerName = twitter.showUser(id).getName();
-                    String followerScreenName = twitter.showUser(id).getScreenName();
-                    System.out.printf("@%15s | %15s | %20d %n", followerScreenName, followerName, id);
-                }
-                System.out.println();
-            } while (ids.hasNext());
+            while (ids.hasNext()) {
+                hydrator.add(ids.nextLong());
+            }
+            hydrator.flush();
+            System.out.println();
         } catch (TwitterException e) {
+            ids.close();
             e.printStackTrace();
+        } catch (IDCursor.FetchException e) {
+            e.getCause().printStackTrace();
         }
     }
 
     /**
-     * recibe el userId y devuelve el screeenName en String
+     * recibe el userId y devuelve el screeenName en String, consultando
+     * primero la cache de usuarios
      *
      * @param userId - del usuario a buscar
      * @return - screenName en String
      */
     private String getScreenName(long userId) {
         try {
-            return twitter.showUser(userId).getScreenName();
+            return showUser(userId).getScreenName();
         } catch (TwitterException e) {
             e.printStackTrace();
         }
@@ -297,22 +990,20 @@ class Session {
             ResponseList<User> users;
             start:
             do {
-                users = twitter.searchUsers(query, page);
+                int current = page;
+                users = call("/users/search", () -> twitter.searchUsers(query, current));
                 String screenName = "";
                 System.out.println();
                 for (User user : users) {
                     if (user.getScreenName().equalsIgnoreCase(screenName)) {
                         break start;
                     }
-                    if (user.getStatus() != null) {
-                        System.out.println("@" + user.getScreenName() + " - " + user.getStatus().getText());
-                    } else {
-                        // the user is protected
-                        System.out.println("@" + user.getScreenName());
-                    }
+                    renderer.user(user);
                 }
+                renderer.flush();
                 page++;
             } while (users.size() != 0 && page < 2);
+            renderer.flush();
         } catch (TwitterException e) {
             e.printStackTrace();
         }
@@ -327,22 +1018,53 @@ class Session {
      * @throws TwitterException - si hay problemas de autenticacion/conexion con twitter
      */
     public User pickUser(String query) throws TwitterException {
-        return twitter.showUser(query);
+        User user = userCache.get(query);
+        if (user == null) {
+            user = call("/users/show/:id", () -> twitter.showUser(query));
+            userCache.put(user);
+        }
+        return user;
+    }
+
+    /**
+     * devuelve el usuario con el ID indicado desde la cache de usuarios, la
+     * cache en disco o, si no esta en ninguna, desde twitter guardandolo en
+     * ambas caches
+     *
+     * @param userId - ID del usuario
+     * @return - objeto User
+     * @throws TwitterException - si hay problemas de autenticacion/conexion con twitter
+     */
+    public User showUser(long userId) throws TwitterException {
+        User user = userCache.get(userId);
+        if (user == null) {
+            user = timelineCache.getUser(userId);
+            if (user == null) {
+                user = call("/users/show/:id", () -> twitter.showUser(userId));
+                timelineCache.put(user);
+            }
+            userCache.put(user);
+        }
+        return user;
     }
 
     /**
-     * envia un dm a un usuario determinado
+     * envia un dm a un usuario determinado. El mensaje se guarda en la cola
+     * de salida y se envia en segundo plano
      *
      * @param recipientId ID del usuario que recibira el dm
      * @param dmText      - String con el contenido del dm
      */
     public void sendDM(long recipientId, String dmText) {
+        if (outbox == null) {
+            sendNow(PersistOutbox.DM, recipientId, dmText);
+            return;
+        }
         try {
-            DirectMessage dm = twitter.sendDirectMessage(recipientId, dmText);
-            System.out.println("Direct message successfully sent to " + getScreenName(dm.getRecipientId()));
-            System.out.println("Message sent: " + dm.getText());
-        } catch (TwitterException e) {
-            System.out.println("Failed to send a direct message: " + e.getMessage());
+            queued(outbox.enqueue(PersistOutbox.DM, recipientId, dmText));
+            System.out.println("Direct message queued for " + getScreenName(recipientId));
+        } catch (IOException e) {
+            System.out.println("Failed to queue a direct message: " + e.getMessage());
         }
     }
 
@@ -353,10 +1075,15 @@ class Session {
         try {
             int count = 20;
             DirectMessageList messages;
-            messages = twitter.getDirectMessages(count);
+            messages = call("/direct_messages/events/list", () -> twitter.getDirectMessages(count));
             for (DirectMessage message : messages) {
-                System.out.printf("%10s | %15s | %15s | %100s %n", dateFormater(message.getCreatedAt()), getScreenName(message.getSenderId()), getScreenName(message.getRecipientId()), message.getText());
+                String sender = getScreenName(message.getSenderId());
+                getSearchIndex().put(message.getId(), message.getCreatedAt(), message.getSenderId(), sender, message.getText());
+                renderer.directMessage(message, sender, getScreenName(message.getRecipientId()));
             }
+            renderer.flush();
+            timelineCache.saveKey();
+            getSearchIndex().saveKey();
             System.out.println("done.");
         } catch (TwitterException te) {
             te.printStackTrace();
@@ -372,26 +1099,124 @@ class Session {
     public void toggleFollowUser(Relationship relation){
         try {
             if (relation.isSourceFollowingTarget()) {
-                twitter.destroyFriendship(relation.getTargetUserId());
+                call("/friendships/destroy", () -> twitter.destroyFriendship(relation.getTargetUserId()));
             } else {
-                twitter.createFriendship(relation.getTargetUserId());
+                call("/friendships/create", () -> twitter.createFriendship(relation.getTargetUserId()));
             }
         } catch (TwitterException ex) {
             java.util.logging.Logger.getLogger(Session.class.getName()).log(Level.SEVERE, null, ex);
         }        
     }
     
+    /**
+     * sigue o deja de seguir a todos los usuarios de un archivo con un ID por
+     * linea. El progreso se guarda junto al archivo (lista.txt.follow.ckpt)
+     * y una ejecucion interrumpida se retoma al repetir el comando
+     *
+     * @param path   - archivo de IDs, se ignoran las lineas vacias y las que empiezan por #
+     * @param follow - true para seguir, false para dejar de seguir
+     * @return - true si se han aplicado todos los cambios
+     */
+    public boolean bulkFollow(String path, boolean follow) {
+        SortedLongSet ids;
+        try {
+            ids = readIds(path);
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Could not read IDs from " + path + ": " + e.getMessage());
+            return false;
+        }
+        BulkFollow bulk = new BulkFollow(new BulkFollow.Friendships() {
+            @Override
+            public ResponseList<Friendship> lookup(long[] chunk) throws TwitterException {
+                return call("/friendships/lookup", () -> twitter.lookupFriendships(chunk));
+            }
+
+            @Override
+            public void follow(long userId) throws TwitterException {
+                call("/friendships/create", () -> twitter.createFriendship(userId));
+            }
+
+            @Override
+            public void unfollow(long userId) throws TwitterException {
+                call("/friendships/destroy", () -> twitter.destroyFriendship(userId));
+            }
+        }, follow, new PersistCheckpoint(path + (follow ? ".follow" : ".unfollow") + ".ckpt"), BulkFollow.DEFAULT_THREADS);
+        bulk.setOnProgress(() -> System.out.print("\r" + bulk));
+        try {
+            bulk.run(ids);
+        } catch (TwitterException e) {
+            System.out.println();
+            e.printStackTrace();
+            return false;
+        } finally {
+            System.out.println("\r" + bulk);
+        }
+        return bulk.getFailed() == 0;
+    }
+
+    /**
+     * lee un archivo con un ID de usuario por linea
+     */
+    private static SortedLongSet readIds(String path) throws IOException {
+        long[] values = new long[1024];
+        int size = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size * 2);
+                values[size++] = Long.parseLong(line);
+            }
+        }
+        return SortedLongSet.of(values, size);
+    }
+
     /**
      * metodo que guarda los token de acceso en un archivo para reiniciar session
      */
     public void saveSession() {
-        token.saveKey();
+        saveToken.run();
     }
 
     /**
-     * metodo que elimina un archivo de tokens de usuario
+     * metodo que elimina un archivo de tokens de usuario, junto con la cache
+     * del timeline, el indice y la cola de salida de la cuenta, para que la
+     * siguiente cuenta que inicie sesion no los herede. Antes se espera a que
+     * se envien los mensajes encolados, como al salir
      */
     public void clearSession() {
-        token.removeKey();
+        int unsent = drainOutbox();
+        removeToken.run();
+        if (outbox != null) {
+            outbox.discard();
+            if (unsent > 0)
+                System.out.println(unsent + " unsent message" + (unsent == 1 ? " was" : "s were") + " discarded.");
+        }
+        timelineCache.setDefault();
+        synchronized (this) {
+            searchIndex = null;
+        }
+        deleteData(dir);
+    }
+
+    /**
+     * borra los archivos de datos de una cuenta: cache del timeline, indice
+     * de busqueda y cola de salida
+     *
+     * @param dir - directorio de los archivos, null para el directorio actual
+     */
+    private static void deleteData(File dir) {
+        new PersistOutbox(new File(dir, PersistOutbox.DEFAULT_FILE.getName())).delete();
+        for (File file : new File[]{new File(dir, PersistTimelineCache.DEFAULT_FILE.getName()),
+                new File(dir, PersistStatusIndex.DEFAULT_FILE.getName())}) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 }
@@ -0,0 +1,215 @@
+package twitter;
+
+import twitter.persistence.PersistAccessToken;
+import twitter.persistence.PersistConsumerKey;
+import twitter.persistence.PersistKeystore;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterFactory;
+import twitter4j.auth.AccessToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+
+/**
+ * Pool de sesiones de varias cuentas en un mismo proceso. Los tokens de
+ * todas las cuentas se guardan en un unico almacen (accounts.dat), todas las
+ * instancias de twitter salen del mismo TwitterFactory (y comparten su
+ * cliente HTTP) y cada sesion se crea la primera vez que se usa, con sus
+ * archivos de datos en accounts/nombre/. Los comandos se pueden lanzar en
+ * paralelo sobre varias cuentas con fanOut
+ *
+ * @author fsancheztemprano
+ */
+class SessionPool {
+    /**
+     * crea la instancia de twitter de una cuenta, por ejemplo
+     * TwitterFactory::getInstance o una instancia falsa en pruebas
+     */
+    @FunctionalInterface
+    interface TwitterProvider {
+        Twitter create(AccessToken token);
+    }
+
+    /**
+     * tarea a ejecutar sobre la sesion de una cuenta
+     */
+    @FunctionalInterface
+    interface SessionTask<T> {
+        T run(String account, Session session) throws TwitterException;
+    }
+
+    /**
+     * directorio por defecto de los datos de cada cuenta
+     */
+    static final File ACCOUNTS_DIR = new File("accounts");
+    /**
+     * hilos de fanOut, configurable con -Djtwit.pool.threads
+     */
+    static final int DEFAULT_THREADS = Integer.getInteger("jtwit.pool.threads", 8);
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(DEFAULT_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "jtwit-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PersistKeystore keystore;
+    private final TwitterProvider provider;
+    private final File baseDir;
+    private final Map<String, FutureTask<Session>> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * @param keystore - almacen de cuentas ya leido
+     * @param provider - crea la instancia de twitter de cada cuenta
+     * @param baseDir  - directorio de los datos de las cuentas
+     */
+    SessionPool(PersistKeystore keystore, TwitterProvider provider, File baseDir) {
+        this.keystore = keystore;
+        this.provider = provider;
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * pool sobre accounts.dat con la consumer key de consumer.dat o la de
+     * por defecto y un unico TwitterFactory para todas las cuentas
+     *
+     * @return - pool de sesiones
+     */
+    static SessionPool open() {
+        PersistConsumerKey consumer = new PersistConsumerKey();
+        try {
+            consumer.readKey();
+        } catch (IOException e) {
+            consumer.setDefault();
+        }
+        PersistKeystore keystore = new PersistKeystore();
+        try {
+            keystore.readKey();
+        } catch (IOException e) {
+            keystore.setDefault();
+        }
+        TwitterFactory factory = new TwitterFactory(Session.configuration(consumer).build());
+        return new SessionPool(keystore, factory::getInstance, ACCOUNTS_DIR);
+    }
+
+    /**
+     * @return - nombres de las cuentas del almacen
+     */
+    List<String> accounts() {
+        return keystore.names();
+    }
+
+    /**
+     * añade o sustituye una cuenta y guarda el almacen
+     *
+     * @param name  - nombre de la cuenta, letras, numeros, _ . y -
+     * @param token - tokens de la cuenta
+     * @throws IllegalArgumentException - si el nombre no es valido
+     */
+    void add(String name, PersistAccessToken token) {
+        if (!NAME.matcher(name).matches())
+            throw new IllegalArgumentException("Invalid account name: " + name);
+        keystore.put(name, token);
+        keystore.saveKey();
+        sessions.remove(name);
+    }
+
+    /**
+     * elimina una cuenta del almacen, sus archivos de datos se conservan
+     *
+     * @param name - nombre de la cuenta
+     * @return - true si existia
+     */
+    boolean remove(String name) {
+        sessions.remove(name);
+        if (!keystore.remove(name))
+            return false;
+        keystore.saveKey();
+        return true;
+    }
+
+    /**
+     * devuelve la sesion de una cuenta, creandola si es la primera vez. Si
+     * varios hilos piden a la vez la misma cuenta solo se crea una sesion
+     *
+     * @param name - nombre de la cuenta
+     * @return - sesion de la cuenta
+     * @throws TwitterException         - si falla la autenticacion
+     * @throws IllegalArgumentException - si la cuenta no existe
+     */
+    Session get(String name) throws TwitterException {
+        FutureTask<Session> task = sessions.get(name);
+        if (task == null) {
+            PersistAccessToken token = keystore.get(name);
+            if (token == null)
+                throw new IllegalArgumentException("Unknown account: " + name);
+            FutureTask<Session> created = new FutureTask<>(() -> create(name, token));
+            task = sessions.putIfAbsent(name, created);
+            if (task == null) {
+                task = created;
+                task.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TwitterException("Interrupted while opening " + name, e);
+        } catch (ExecutionException e) {
+            sessions.remove(name, task);
+            if (e.getCause() instanceof TwitterException)
+                throw (TwitterException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private Session create(String name, PersistAccessToken token) throws TwitterException {
+        Twitter twitter = provider.create(new AccessToken(token.getToken(), token.getSecretToken()));
+        Runnable save = () -> {
+            keystore.put(name, token);
+            keystore.saveKey();
+        };
+        Runnable delete = () -> remove(name);
+        return new Session(twitter, token, save, delete, new File(baseDir, name));
+    }
+
+    /**
+     * ejecuta una tarea en paralelo sobre varias cuentas y espera a que
+     * terminen todas
+     *
+     * @param names - cuentas sobre las que ejecutar la tarea
+     * @param task  - tarea a ejecutar
+     * @return - future terminado de cada cuenta, en el orden de names; los
+     * errores se obtienen con AsyncSession.await
+     */
+    <T> Map<String, CompletableFuture<T>> fanOut(Collection<String> names, SessionTask<T> task) {
+        Map<String, CompletableFuture<T>> results = new LinkedHashMap<>();
+        for (String name : names) {
+            results.put(name, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return task.run(name, get(name));
+                } catch (TwitterException e) {
+                    throw new CompletionException(e);
+                }
+            }, EXECUTOR));
+        }
+        CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, error) -> null)
+                .join();
+        return results;
+    }
+}
@@ -0,0 +1,136 @@
+package twitter;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Conjunto inmutable de IDs guardado como un long[] ordenado y sin repetidos,
+ * sin objetos Long. Ocupa 8 bytes por ID y permite calcular diferencias e
+ * intersecciones con otro conjunto recorriendo ambos arrays una sola vez
+ *
+ * @author fsancheztemprano
+ */
+final class SortedLongSet {
+    static final SortedLongSet EMPTY = new SortedLongSet(new long[0]);
+
+    private final long[] ids;
+
+    private SortedLongSet(long[] ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * @param sorted - array ya ordenado y sin repetidos, no se copia
+     * @return - conjunto sobre el array
+     */
+    static SortedLongSet wrap(long[] sorted) {
+        return new SortedLongSet(sorted);
+    }
+
+    /**
+     * @param values - IDs en cualquier orden, con o sin repetidos
+     * @param size   - numero de valores validos de values
+     * @return - conjunto con los IDs, values queda ordenado
+     */
+    static SortedLongSet of(long[] values, int size) {
+        Arrays.sort(values, 0, size);
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (n == 0 || values[i] != values[n - 1])
+                values[n++] = values[i];
+        }
+        return new SortedLongSet(n == values.length ? values : Arrays.copyOf(values, n));
+    }
+
+    /**
+     * consume un iterador de IDs, por ejemplo un IDCursor
+     *
+     * @param it - iterador de IDs
+     * @return - conjunto con los IDs
+     */
+    static SortedLongSet collect(PrimitiveIterator.OfLong it) {
+        long[] values = new long[1024];
+        int size = 0;
+        while (it.hasNext()) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size + (size >> 1));
+            values[size++] = it.nextLong();
+        }
+        return of(values, size);
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    boolean contains(long id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * @param other - conjunto a restar
+     * @return - IDs de este conjunto que no estan en other
+     */
+    SortedLongSet difference(SortedLongSet other) {
+        long[] result = new long[ids.length];
+        int i = 0, j = 0, n = 0;
+        while (i < ids.length) {
+            if (j == other.ids.length || ids[i] < other.ids[j]) {
+                result[n++] = ids[i++];
+            } else if (ids[i] > other.ids[j]) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return new SortedLongSet(Arrays.copyOf(result, n));
+    }
+
+    /**
+     * @param other - conjunto con el que intersecar
+     * @return - IDs presentes en ambos conjuntos
+     */
+    SortedLongSet intersection(SortedLongSet other) {
+        long[] result = new long[Math.min(ids.length, other.ids.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < ids.length && j < other.ids.length) {
+            if (ids[i] < other.ids[j]) {
+                i++;
+            } else if (ids[i] > other.ids[j]) {
+                j++;
+            } else {
+                result[n++] = ids[i];
+                i++;
+                j++;
+            }
+        }
+        return new SortedLongSet(Arrays.copyOf(result, n));
+    }
+
+    /**
+     * @return - el array interno, no debe modificarse
+     */
+    long[] array() {
+        return ids;
+    }
+
+    PrimitiveIterator.OfLong iterator() {
+        return new PrimitiveIterator.OfLong() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < ids.length;
+            }
+
+            @Override
+            public long nextLong() {
+                if (index == ids.length)
+                    throw new NoSuchElementException();
+                return ids[index++];
+            }
+        };
+    }
+}
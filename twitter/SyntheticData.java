@@ -0,0 +1,233 @@
+package twitter;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Datos sinteticos deterministas con el JSON de la api de twitter, para
+ * medir el rendimiento sin red: el mismo ID produce siempre el mismo
+ * usuario, status o DM sea cual sea el orden de las peticiones.
+ * <p>
+ * Hay users usuarios con IDs de 1 a users. El status n lo escribe el
+ * usuario ((n - 1) % users) + 1, diez segundos despues del status n - 1, asi
+ * que los IDs de status crecen con la fecha como en twitter. Los seguidores
+ * y seguidos de cualquier usuario son los usuarios 1..followers
+ *
+ * @author fsancheztemprano
+ */
+class SyntheticData {
+    /**
+     * fecha del status 0
+     */
+    static final long EPOCH = 1_500_000_000_000L;
+    /**
+     * milisegundos entre dos status consecutivos
+     */
+    static final long STEP = 10_000L;
+
+    private static final DateTimeFormatter CREATED_AT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss Z yyyy", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+    private static final String[] WORDS = {
+            "java", "twitter", "timeline", "latency", "cache", "thread", "heap", "socket", "query", "cursor",
+            "follow", "tweet", "daemon", "index", "merge", "buffer", "stream", "batch", "page", "token",
+            "hola", "mundo", "rapido", "lento", "datos", "red", "disco", "cola", "lista", "usuario"};
+
+    private final long seed;
+    private final int users;
+    private final int followers;
+
+    /**
+     * @param seed      - semilla de los textos
+     * @param users     - numero de usuarios
+     * @param followers - seguidores y seguidos de cada usuario
+     */
+    SyntheticData(long seed, int users, int followers) {
+        this.seed = seed;
+        this.users = users;
+        this.followers = Math.min(followers, users);
+    }
+
+    int getUsers() {
+        return users;
+    }
+
+    int getFollowers() {
+        return followers;
+    }
+
+    /**
+     * @param statusId - ID del status
+     * @return - ID de su autor
+     */
+    long author(long statusId) {
+        return (statusId - 1) % users + 1;
+    }
+
+    /**
+     * @param statusId - ID del status
+     * @return - fecha de publicacion en milisegundos
+     */
+    static long createdAt(long statusId) {
+        return EPOCH + statusId * STEP;
+    }
+
+    /**
+     * @param statusId - ID del status
+     * @return - texto del status, el mismo que en statusJson
+     */
+    String text(long statusId) {
+        StringBuilder text = new StringBuilder(128);
+        appendText(text, statusId, 16);
+        return text.toString();
+    }
+
+    String userJson(long id) {
+        return appendUser(new StringBuilder(512), id).toString();
+    }
+
+    String statusJson(long id) {
+        return appendStatus(new StringBuilder(1024), id).toString();
+    }
+
+    /**
+     * @param ids - IDs de los usuarios
+     * @return - array JSON de usuarios, como users/lookup
+     */
+    String usersJson(long[] ids) {
+        StringBuilder json = new StringBuilder(ids.length * 512).append('[');
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0)
+                json.append(',');
+            appendUser(json, ids[i]);
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * @param ids - IDs de los status, del mas reciente al mas antiguo
+     * @return - array JSON de status, como los timelines
+     */
+    String statusesJson(long[] ids) {
+        StringBuilder json = new StringBuilder(ids.length * 1024).append('[');
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0)
+                json.append(',');
+            appendStatus(json, ids[i]);
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * IDs del home timeline: los count status mas recientes que no pasen de
+     * head y sean posteriores a sinceId
+     *
+     * @param head    - ID del status mas reciente que existe
+     * @param sinceId - solo status posteriores, 0 para todos
+     * @param maxId   - solo status hasta este, 0 para no limitar
+     * @param count   - numero maximo de status
+     * @return - IDs del mas reciente al mas antiguo
+     */
+    static long[] homeTimeline(long head, long sinceId, long maxId, int count) {
+        long top = maxId > 0 ? Math.min(maxId, head) : head;
+        int size = (int) Math.max(0, Math.min(count, top - sinceId));
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++)
+            ids[i] = top - i;
+        return ids;
+    }
+
+    /**
+     * IDs del timeline de un usuario, con los mismos limites que homeTimeline
+     */
+    long[] userTimeline(long userId, long head, long sinceId, long maxId, int count) {
+        long top = maxId > 0 ? Math.min(maxId, head) : head;
+        // ultimo status del usuario que no pasa de top
+        top -= Math.floorMod(top - userId, (long) users);
+        int size = 0;
+        long[] ids = new long[count];
+        for (long id = top; id > sinceId && id > 0 && size < count; id -= users)
+            ids[size++] = id;
+        return size == count ? ids : Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * pagina de IDs de seguidores o seguidos, como followers/ids
+     *
+     * @param cursor   - -1 para la primera pagina o el next_cursor anterior
+     * @param pageSize - IDs por pagina
+     * @return - objeto JSON con ids, next_cursor y previous_cursor
+     */
+    String idsJson(long cursor, int pageSize) {
+        long from = cursor <= 0 ? 0 : cursor;
+        long to = Math.min(followers, from + pageSize);
+        StringBuilder json = new StringBuilder((int) (to - from) * 8 + 64).append("{\"ids\":[");
+        for (long id = from + 1; id <= to; id++) {
+            if (id > from + 1)
+                json.append(',');
+            json.append(id);
+        }
+        return json.append("],\"next_cursor\":").append(to < followers ? to : 0)
+                .append(",\"previous_cursor\":").append(from > 0 ? -Math.max(1, from - pageSize) : 0)
+                .append('}').toString();
+    }
+
+    /**
+     * evento de mensaje directo, como direct_messages/events/list
+     *
+     * @param id          - ID del mensaje, tambien fija su fecha
+     * @param senderId    - ID del remitente
+     * @param recipientId - ID del destinatario
+     * @return - objeto JSON del evento
+     */
+    String directMessageJson(long id, long senderId, long recipientId) {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"type\":\"message_create\",\"id\":\"").append(id)
+                .append("\",\"created_timestamp\":\"").append(createdAt(id))
+                .append("\",\"message_create\":{\"target\":{\"recipient_id\":\"").append(recipientId)
+                .append("\"},\"sender_id\":\"").append(senderId)
+                .append("\",\"message_data\":{\"text\":\"");
+        appendText(json, id ^ 0x5DEECE66DL, 12);
+        return json.append("\",\"entities\":{\"hashtags\":[],\"symbols\":[],\"user_mentions\":[],\"urls\":[]}}}}").toString();
+    }
+
+    private StringBuilder appendUser(StringBuilder json, long id) {
+        SplittableRandom random = new SplittableRandom(seed * 31 + id);
+        json.append("{\"id\":").append(id).append(",\"id_str\":\"").append(id)
+                .append("\",\"name\":\"User ").append(id)
+                .append("\",\"screen_name\":\"user").append(id)
+                .append("\",\"location\":\"\",\"description\":\"");
+        appendText(json, id, 8);
+        json.append("\",\"protected\":false,\"verified\":false")
+                .append(",\"followers_count\":").append(random.nextInt(100_000))
+                .append(",\"friends_count\":").append(random.nextInt(5_000))
+                .append(",\"listed_count\":0,\"favourites_count\":").append(random.nextInt(10_000))
+                .append(",\"statuses_count\":").append(random.nextInt(50_000))
+                .append(",\"created_at\":\"");
+        CREATED_AT.formatTo(Instant.ofEpochMilli(EPOCH - id * 60_000L), json);
+        return json.append("\",\"lang\":\"es\"}");
+    }
+
+    private StringBuilder appendStatus(StringBuilder json, long id) {
+        json.append("{\"id\":").append(id).append(",\"id_str\":\"").append(id).append("\",\"created_at\":\"");
+        CREATED_AT.formatTo(Instant.ofEpochMilli(createdAt(id)), json);
+        json.append("\",\"text\":\"");
+        appendText(json, id, 16);
+        json.append("\",\"truncated\":false,\"favorited\":false,\"retweeted\":false,\"retweet_count\":0,\"favorite_count\":0")
+                .append(",\"lang\":\"es\",\"entities\":{\"hashtags\":[],\"symbols\":[],\"user_mentions\":[],\"urls\":[]},\"user\":");
+        appendUser(json, author(id));
+        return json.append('}');
+    }
+
+    private void appendText(StringBuilder json, long id, int words) {
+        SplittableRandom random = new SplittableRandom(seed ^ id * 0x9E3779B97F4A7C15L);
+        int count = words / 2 + random.nextInt(words / 2 + 1);
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                json.append(' ');
+            json.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package twitter;
+
+import twitter.persistence.PersistSinceIds;
+import twitter4j.Paging;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Timeline conjunto de una lista de usuarios. Los timelines se piden en
+ * paralelo con un numero limitado de hilos y se mezclan con un heap de
+ * cabezas (mezcla de k listas ordenadas) por fecha e ID, del mas reciente
+ * al mas antiguo. La primera fila no sale hasta que ha llegado la primera
+ * pagina de todos los usuarios: hasta entonces no se sabe cual es el status
+ * mas reciente, asi que el usuario mas lento marca la espera inicial. El
+ * resto se entrega mientras se piden en segundo plano las paginas
+ * siguientes, y solo se pide la pagina siguiente de un usuario cuando la
+ * mezcla empieza a consumir la actual. La primera pagina no pide mas status
+ * que el limite.
+ * <p>
+ * Se recuerda el ID del ultimo status entregado de cada usuario para que la
+ * siguiente ejecucion solo pida los status nuevos. Un usuario que falla (no
+ * existe, es privado...) se avisa y se salta sin parar la mezcla
+ *
+ * @author fsancheztemprano
+ */
+class TimelineMerge {
+    /**
+     * fuente de los timelines, por ejemplo twitter::getUserTimeline
+     */
+    @FunctionalInterface
+    interface TimelineSource {
+        ResponseList<Status> fetch(String screenName, Paging paging) throws TwitterException;
+    }
+
+    /**
+     * status por pagina, maximo permitido por statuses/user_timeline
+     */
+    static final int PAGE_SIZE = 200;
+    /**
+     * paginas maximas por usuario en cada ejecucion
+     */
+    static final int MAX_PAGES = 4;
+    /**
+     * numero de status por defecto
+     */
+    static final int DEFAULT_LIMIT = 200;
+    static final int DEFAULT_THREADS = Integer.getInteger("jtwit.timeline.threads", 8);
+
+    /**
+     * mas reciente primero, y a igual fecha el ID mayor
+     */
+    static final Comparator<Status> NEWEST_FIRST = Comparator.comparing(Status::getCreatedAt)
+            .thenComparingLong(Status::getId).reversed();
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(DEFAULT_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "jtwit-timeline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TimelineSource source;
+    private final PersistSinceIds sinceIds;
+    private final int limit;
+    private final Consumer<Status> sink;
+    private Runnable onWait = () -> {
+    };
+    private final List<String> failed = new ArrayList<>();
+    private int delivered;
+    private int requests;
+
+    /**
+     * @param source   - fuente de los timelines
+     * @param sinceIds - ultimo status entregado de cada usuario
+     * @param limit    - numero maximo de status entre todos los usuarios
+     * @param sink     - consumidor de los status, del mas reciente al mas antiguo
+     */
+    TimelineMerge(TimelineSource source, PersistSinceIds sinceIds, int limit, Consumer<Status> sink) {
+        this.source = source;
+        this.sinceIds = sinceIds;
+        this.limit = limit;
+        this.sink = sink;
+    }
+
+    /**
+     * accion a ejecutar antes de esperar a una pagina, por ejemplo volcar la
+     * salida para que se vean las filas ya entregadas
+     *
+     * @param onWait - accion a ejecutar
+     */
+    void setOnWait(Runnable onWait) {
+        this.onWait = onWait;
+    }
+
+    /**
+     * @return - usuarios cuyo timeline no se ha podido pedir
+     */
+    List<String> getFailed() {
+        return failed;
+    }
+
+    int getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return - paginas pedidas
+     */
+    int getRequests() {
+        return requests;
+    }
+
+    /**
+     * pide los timelines y entrega la mezcla hasta el limite o hasta agotar
+     * todos los usuarios. Al terminar se actualizan los sinceId, pero no se
+     * guardan en disco
+     *
+     * @param screenNames - usuarios, sin repetidos
+     */
+    void run(Collection<String> screenNames) {
+        List<Cursor> cursors = new ArrayList<>(screenNames.size());
+        for (String screenName : screenNames)
+            cursors.add(new Cursor(screenName, sinceIds.get(screenName)));
+        for (Cursor cursor : cursors)
+            cursor.request(0, Math.min(PAGE_SIZE, limit));
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(Math.max(1, cursors.size()), (a, b) -> NEWEST_FIRST.compare(a.head(), b.head()));
+        try {
+            for (Cursor cursor : cursors) {
+                if (cursor.await())
+                    heap.add(cursor);
+            }
+            while (!heap.isEmpty() && delivered < limit) {
+                Cursor cursor = heap.poll();
+                Status status = cursor.head();
+                sink.accept(status);
+                delivered++;
+                sinceIds.put(cursor.screenName, status.getId());
+                cursor.prefetch();
+                if (cursor.advance())
+                    heap.add(cursor);
+            }
+        } finally {
+            for (Cursor cursor : cursors)
+                cursor.cancel();
+        }
+    }
+
+    /**
+     * posicion de la mezcla en el timeline de un usuario: la pagina actual y,
+     * si hay mas, la peticion de la siguiente
+     */
+    private final class Cursor {
+        final String screenName;
+        final long sinceId;
+        private Future<ResponseList<Status>> next;
+        private List<Status> page = Collections.emptyList();
+        private int index;
+        private int pages;
+
+        Cursor(String screenName, long sinceId) {
+            this.screenName = screenName;
+            this.sinceId = sinceId;
+        }
+
+        Status head() {
+            return page.get(index);
+        }
+
+        /**
+         * pide en segundo plano la pagina de status anteriores a maxId
+         *
+         * @param maxId - 0 para la primera pagina
+         * @param count - status de la pagina
+         */
+        void request(long maxId, int count) {
+            Paging paging = new Paging();
+            paging.setCount(count);
+            if (sinceId > 0)
+                paging.setSinceId(sinceId);
+            if (maxId > 0)
+                paging.setMaxId(maxId);
+            pages++;
+            requests++;
+            next = EXECUTOR.submit(() -> source.fetch(screenName, paging));
+        }
+
+        /**
+         * espera a la pagina pedida
+         *
+         * @return - false si no hay mas status del usuario
+         */
+        boolean await() {
+            if (next == null)
+                return false;
+            if (!next.isDone())
+                onWait.run();
+            try {
+                page = next.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (!(cause instanceof TwitterException))
+                    throw new IllegalStateException(cause);
+                TwitterException error = (TwitterException) cause;
+                failed.add(screenName);
+                System.out.println("Could not fetch @" + screenName + ": "
+                        + (error.getErrorMessage() != null ? error.getErrorMessage() : "HTTP " + error.getStatusCode()));
+                page = Collections.emptyList();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                page = Collections.emptyList();
+            }
+            next = null;
+            index = 0;
+            return !page.isEmpty();
+        }
+
+        /**
+         * al entregar el primer status de una pagina completa se pide ya la
+         * siguiente, para que este lista cuando se termine la actual
+         */
+        void prefetch() {
+            if (index == 0 && next == null && page.size() >= PAGE_SIZE && pages < MAX_PAGES)
+                request(page.get(page.size() - 1).getId() - 1, PAGE_SIZE);
+        }
+
+        /**
+         * pasa al siguiente status del usuario
+         *
+         * @return - false si no hay mas
+         */
+        boolean advance() {
+            return ++index < page.size() || await();
+        }
+
+        void cancel() {
+            if (next != null)
+                next.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package twitter;
+
+import twitter4j.Paging;
+import twitter4j.RateLimitStatus;
+import twitter4j.ResponseList;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Clase que consulta periodicamente un timeline y entrega solo los status
+ * nuevos. Recuerda el sinceId de la ultima consulta y, si llegan mas status
+ * de los que caben en una pagina, retrocede con maxId hasta cubrir el hueco.
+ * El intervalo entre consultas se ajusta a las cabeceras de rate limit para
+ * repartir las peticiones restantes hasta el reinicio de la ventana
+ *
+ * @author fsancheztemprano
+ */
+class TimelinePoller {
+    /**
+     * fuente del timeline, por ejemplo twitter::getHomeTimeline
+     */
+    @FunctionalInterface
+    interface TimelineSource {
+        ResponseList<Status> fetch(Paging paging) throws TwitterException;
+    }
+
+    /**
+     * espera entre consultas, permite sustituir Thread.sleep en pruebas
+     */
+    @FunctionalInterface
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    /**
+     * status por pagina, maximo permitido por statuses/home_timeline
+     */
+    static final int PAGE_SIZE = 200;
+    /**
+     * paginas maximas que se recorren hacia atras para cubrir un hueco
+     */
+    static final int MAX_GAP_PAGES = 4;
+    static final long MIN_INTERVAL = 60_000;
+
+    private final TimelineSource source;
+    private final Consumer<Status> sink;
+    private final Sleeper sleeper;
+    private final long minInterval;
+    private long sinceId;
+    private long interval;
+
+    /**
+     * @param source  - fuente del timeline
+     * @param sinceId - ID del ultimo status ya mostrado, 0 si ninguno
+     * @param sink    - consumidor de los status nuevos, del mas antiguo al mas nuevo
+     */
+    TimelinePoller(TimelineSource source, long sinceId, Consumer<Status> sink) {
+        this(source, sinceId, sink, Thread::sleep, MIN_INTERVAL);
+    }
+
+    /**
+     * @param source      - fuente del timeline
+     * @param sinceId     - ID del ultimo status ya mostrado, 0 si ninguno
+     * @param sink        - consumidor de los status nuevos, del mas antiguo al mas nuevo
+     * @param sleeper     - espera entre consultas
+     * @param minInterval - intervalo minimo entre consultas en milisegundos
+     */
+    TimelinePoller(TimelineSource source, long sinceId, Consumer<Status> sink, Sleeper sleeper, long minInterval) {
+        this.source = source;
+        this.sinceId = sinceId;
+        this.sink = sink;
+        this.sleeper = sleeper;
+        this.minInterval = minInterval;
+        this.interval = minInterval;
+    }
+
+    /**
+     * consulta el timeline hasta que el hilo se interrumpa
+     */
+    void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    poll();
+                } catch (TwitterException e) {
+                    adjustInterval(e.getRateLimitStatus(), e.getRetryAfter());
+                    System.out.println("Timeline poll failed: " + e.getMessage());
+                }
+                sleeper.sleep(interval);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * realiza una consulta y entrega los status nuevos
+     *
+     * @return - numero de status nuevos
+     * @throws TwitterException - si falla la consulta
+     */
+    int poll() throws TwitterException {
+        List<Status> fresh = new ArrayList<>();
+        Paging paging = new Paging().count(PAGE_SIZE);
+        if (sinceId > 0)
+            paging.setSinceId(sinceId);
+        for (int page = 0; page < MAX_GAP_PAGES; page++) {
+            ResponseList<Status> statuses = source.fetch(paging);
+            adjustInterval(statuses.getRateLimitStatus(), -1);
+            if (statuses.isEmpty())
+                break;
+            fresh.addAll(statuses);
+            long oldest = Long.MAX_VALUE;
+            for (Status status : statuses)
+                oldest = Math.min(oldest, status.getId());
+            if (sinceId == 0 || statuses.size() < PAGE_SIZE)
+                break;
+            paging.setMaxId(oldest - 1);
+        }
+        fresh.sort(Comparator.comparingLong(Status::getId));
+        long last = sinceId;
+        for (Status status : fresh) {
+            if (status.getId() > last) {
+                sink.accept(status);
+                last = status.getId();
+            }
+        }
+        sinceId = last;
+        return fresh.size();
+    }
+
+    /**
+     * reparte las peticiones restantes de la ventana hasta su reinicio
+     *
+     * @param limit      - rate limit de la ultima respuesta, puede ser null
+     * @param retryAfter - segundos indicados por twitter en un 429, o negativo
+     */
+    private void adjustInterval(RateLimitStatus limit, int retryAfter) {
+        if (retryAfter > 0) {
+            interval = Math.max(minInterval, retryAfter * 1000L);
+        } else if (limit != null) {
+            long untilReset = Math.max(0, limit.getSecondsUntilReset()) * 1000L;
+            interval = limit.getRemaining() <= 0
+                    ? untilReset + 1000
+                    : Math.max(minInterval, untilReset / limit.getRemaining());
+        } else {
+            interval = minInterval;
+        }
+    }
+
+    long getSinceId() {
+        return sinceId;
+    }
+
+    /**
+     * @return - intervalo actual entre consultas en milisegundos
+     */
+    long getInterval() {
+        return interval;
+    }
+}
@@ -0,0 +1,14 @@
+package twitter;
+
+import twitter4j.TwitterException;
+
+/**
+ * llamada a la api de twitter que devuelve un resultado, se usa para pasar
+ * llamadas a RequestScheduler y AsyncSession
+ *
+ * @author fsancheztemprano
+ */
+@FunctionalInterface
+public interface TwitterCall<T> {
+    T call() throws TwitterException;
+}
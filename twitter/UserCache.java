@@ -0,0 +1,157 @@
+package twitter;
+
+import twitter4j.User;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache en memoria de usuarios de twitter con tamaño acotado, expulsion LRU
+ * y caducidad (TTL). Indexa los usuarios por ID y mantiene un indice
+ * secundario screenName -> ID. Lleva la cuenta de aciertos, fallos y
+ * expulsiones
+ *
+ * @author fsancheztemprano
+ */
+class UserCache {
+    /**
+     * numero maximo de usuarios por defecto, configurable con -Djtwit.userCache.size
+     */
+    static final int DEFAULT_SIZE = Integer.getInteger("jtwit.userCache.size", 10_000);
+    /**
+     * caducidad por defecto en milisegundos, configurable con -Djtwit.userCache.ttl
+     */
+    static final long DEFAULT_TTL = Long.getLong("jtwit.userCache.ttl", 15 * 60 * 1000L);
+
+    /**
+     * entrada de la cache, usuario y momento en el que se guardo
+     */
+    private static final class CachedUser {
+        final User user;
+        final long storedAt;
+
+        CachedUser(User user, long storedAt) {
+            this.user = user;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttl;
+    private final LongSupplier clock;
+    private final LinkedHashMap<Long, CachedUser> byId;
+    private final Map<String, Long> byScreenName = new HashMap<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * cache con el tamaño y caducidad por defecto
+     */
+    UserCache() {
+        this(DEFAULT_SIZE, DEFAULT_TTL, System::currentTimeMillis);
+    }
+
+    /**
+     * @param maxSize - numero maximo de usuarios
+     * @param ttl     - caducidad de cada entrada en milisegundos
+     * @param clock   - reloj en milisegundos, permite usar un reloj falso
+     */
+    UserCache(int maxSize, long ttl, LongSupplier clock) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.clock = clock;
+        this.byId = new LinkedHashMap<Long, CachedUser>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedUser> eldest) {
+                if (size() <= UserCache.this.maxSize)
+                    return false;
+                byScreenName.remove(key(eldest.getValue().user.getScreenName()));
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param id - ID del usuario
+     * @return - usuario guardado o null si no esta o ha caducado
+     */
+    synchronized User get(long id) {
+        return lookup(id);
+    }
+
+    /**
+     * @param screenName - screenName del usuario, sin distinguir mayusculas
+     * @return - usuario guardado o null si no esta o ha caducado
+     */
+    synchronized User get(String screenName) {
+        return lookup(byScreenName.get(key(screenName)));
+    }
+
+    /**
+     * busca por ID y cuenta un unico acierto o fallo por consulta, tambien
+     * cuando la entrada ha caducado y se elimina
+     */
+    private User lookup(Long id) {
+        CachedUser entry = id == null ? null : byId.get(id);
+        if (entry == null || expired(entry)) {
+            if (entry != null)
+                remove(id, entry);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.user;
+    }
+
+    /**
+     * guarda o refresca un usuario
+     *
+     * @param user - usuario a guardar
+     */
+    synchronized void put(User user) {
+        CachedUser previous = byId.put(user.getId(), new CachedUser(user, clock.getAsLong()));
+        if (previous != null && !previous.user.getScreenName().equalsIgnoreCase(user.getScreenName()))
+            byScreenName.remove(key(previous.user.getScreenName()));
+        byScreenName.put(key(user.getScreenName()), user.getId());
+    }
+
+    synchronized int size() {
+        return byId.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UserCache{size=" + byId.size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "}";
+    }
+
+    private boolean expired(CachedUser entry) {
+        return clock.getAsLong() - entry.storedAt > ttl;
+    }
+
+    private void remove(long id, CachedUser entry) {
+        byId.remove(id);
+        byScreenName.remove(key(entry.user.getScreenName()));
+    }
+
+    private static String key(String screenName) {
+        return screenName.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,144 @@
+package twitter;
+
+import twitter4j.ResponseList;
+import twitter4j.TwitterException;
+import twitter4j.User;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Clase que acumula IDs de usuario en bloques de hasta 100 y los resuelve
+ * con una unica llamada a lookupUsers por bloque, en lugar de una llamada
+ * showUser por cada ID. Cada bloque resuelto se entrega al consumidor en el
+ * mismo orden en que se recibieron los IDs, de forma que las filas se
+ * imprimen segun se completa cada bloque. Si se indica una UserCache solo
+ * se piden los IDs que no esten en ella y los usuarios resueltos se guardan
+ *
+ * @author fsancheztemprano
+ */
+class UserHydrator {
+    /**
+     * numero maximo de IDs que admite el endpoint users/lookup por peticion
+     */
+    static final int CHUNK_SIZE = 100;
+
+    /**
+     * resolucion de un bloque de IDs, por ejemplo twitter::lookupUsers
+     */
+    @FunctionalInterface
+    interface Lookup {
+        ResponseList<User> lookup(long[] ids) throws TwitterException;
+    }
+
+    private final Lookup lookup;
+    private final Consumer<User> sink;
+    private final UserCache cache;
+    private Runnable onChunk = () -> {
+    };
+    private final long[] buffer = new long[CHUNK_SIZE];
+    private int size;
+    /**
+     * contador de peticiones lookupUsers realizadas
+     */
+    private int requests;
+
+    /**
+     * @param lookup - resolucion de bloques de IDs
+     * @param sink   - consumidor que recibe cada usuario resuelto
+     */
+    UserHydrator(Lookup lookup, Consumer<User> sink) {
+        this(lookup, null, sink);
+    }
+
+    /**
+     * @param lookup - resolucion de bloques de IDs
+     * @param cache  - cache de usuarios a consultar y rellenar, puede ser null
+     * @param sink   - consumidor que recibe cada usuario resuelto
+     */
+    UserHydrator(Lookup lookup, UserCache cache, Consumer<User> sink) {
+        this.lookup = lookup;
+        this.cache = cache;
+        this.sink = sink;
+    }
+
+    /**
+     * añade un ID al bloque actual, si el bloque se llena se resuelve
+     *
+     * @param id - ID del usuario
+     * @throws TwitterException - si falla la peticion lookupUsers
+     */
+    void add(long id) throws TwitterException {
+        buffer[size++] = id;
+        if (size == CHUNK_SIZE)
+            flush();
+    }
+
+    /**
+     * añade todos los IDs recibidos
+     *
+     * @param ids - array de IDs de usuario
+     * @throws TwitterException - si falla la peticion lookupUsers
+     */
+    void addAll(long[] ids) throws TwitterException {
+        for (long id : ids)
+            add(id);
+    }
+
+    /**
+     * resuelve los IDs pendientes del bloque actual. Los usuarios que twitter
+     * no devuelve (suspendidos o eliminados) se omiten
+     *
+     * @throws TwitterException - si falla la peticion lookupUsers
+     */
+    void flush() throws TwitterException {
+        if (size == 0)
+            return;
+        long[] chunk = Arrays.copyOf(buffer, size);
+        size = 0;
+        Map<Long, User> byId = new HashMap<>(chunk.length * 2);
+        long[] missing = new long[chunk.length];
+        int count = 0;
+        for (long id : chunk) {
+            User cached = cache == null ? null : cache.get(id);
+            if (cached != null)
+                byId.put(id, cached);
+            else
+                missing[count++] = id;
+        }
+        if (count > 0) {
+            requests++;
+            ResponseList<User> users = lookup.lookup(Arrays.copyOf(missing, count));
+            for (User user : users) {
+                byId.put(user.getId(), user);
+                if (cache != null)
+                    cache.put(user);
+            }
+        }
+        for (long id : chunk) {
+            User user = byId.get(id);
+            if (user != null)
+                sink.accept(user);
+        }
+        onChunk.run();
+    }
+
+    /**
+     * accion a ejecutar cada vez que se termina de entregar un bloque, por
+     * ejemplo volcar la salida
+     *
+     * @param onChunk - accion a ejecutar
+     */
+    void setOnChunk(Runnable onChunk) {
+        this.onChunk = onChunk;
+    }
+
+    /**
+     * @return - numero de peticiones lookupUsers realizadas
+     */
+    int getRequests() {
+        return requests;
+    }
+}
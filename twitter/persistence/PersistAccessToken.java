@@ -8,10 +8,16 @@ import twitter4j.auth.RequestToken;
 import twitter4j.conf.ConfigurationBuilder;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.function.Supplier;
 
 /**
- * clase que crea, controla y limpia los tokens de autenticacion de usuario
+ * clase que crea, controla y limpia los tokens de autenticacion de usuario.
+ * token.dat es un PersistRecordStore con un unico registro; los token.dat
+ * de texto de versiones anteriores se leen y se convierten al guardar
  *
  * @author fsancheztemprano
  */
@@ -20,12 +26,17 @@ public class PersistAccessToken implements Persistable {
      * parametro con la ubicacion del archivo de guardado de tokens
      */
     public static final File file = new File("token.dat");
+    private static final String RECORD = "token";
     //public static final File file = new File(System.getProperty("user.home")+"/consumer.txt".replace("\\","/"));
 
     private String token;
     private String secretToken;
-
-    private Scanner scan;
+    /**
+     * identidad verificada del usuario de los tokens, userId 0 si no se conoce
+     */
+    private long userId;
+    private String screenName;
+    private long verifiedAt;
 
     /**
      * constructor por defecto
@@ -66,41 +77,148 @@ public class PersistAccessToken implements Persistable {
         this.secretToken = secretToken;
     }
 
+    public long getUserId() {
+        return userId;
+    }
+
+    public String getScreenName() {
+        return screenName;
+    }
+
+    public long getVerifiedAt() {
+        return verifiedAt;
+    }
+
+    /**
+     * guarda la identidad verificada del usuario de los tokens
+     *
+     * @param userId     - ID del usuario autenticado
+     * @param screenName - screenName del usuario autenticado
+     * @param verifiedAt - momento de la verificacion en milisegundos
+     */
+    public void setIdentity(long userId, String screenName, long verifiedAt) {
+        this.userId = userId;
+        this.screenName = screenName;
+        this.verifiedAt = verifiedAt;
+    }
+
+    /**
+     * olvida la identidad verificada, la proxima sesion tendra que verificarla
+     */
+    public void clearIdentity() {
+        setIdentity(0, null, 0);
+    }
+
+    /**
+     * @param maxAge - antiguedad maxima en milisegundos
+     * @return - true si hay una identidad verificada hace menos de maxAge
+     */
+    public boolean hasRecentIdentity(long maxAge) {
+        return userId != 0 && screenName != null && System.currentTimeMillis() - verifiedAt < maxAge;
+    }
+
     /**
-     * guardamos los tokens autenticados en el archivo file para guardar la session
+     * guardamos los tokens autenticados en el archivo file para guardar la
+     * session, junto a la identidad verificada si se conoce
      */
     @Override
     public void saveKey() {
-        try (PrintWriter pw = new PrintWriter(file)) {
-            pw.println(token);
-            pw.println(secretToken);
+        PersistRecordStore store = new PersistRecordStore(file);
+        try {
+            store.put(RECORD, toBytes());
         } catch (IOException e) {
             System.out.println("IOException on saving tokens ***");
             e.printStackTrace();
+            return;
         }
+        store.saveKey();
         System.out.println("Token saved.");
     }
 
     /**
-     * metodo que lee las tokens del file si existe
+     * metodo que lee las tokens del file si existe, y la identidad verificada
+     * si el archivo la contiene
      *
-     * @throws FileNotFoundException si el file no existe
+     * @throws IOException si el file no existe o no contiene tokens
      */
     @Override
-    public void readKey() throws FileNotFoundException {
-        scan = new Scanner(file);
-        this.token = scan.nextLine();
-        this.secretToken = scan.nextLine();
+    public void readKey() throws IOException {
+        if (file.exists() && !PersistRecordStore.isRecordStore(file)) {
+            readText();
+        } else {
+            PersistRecordStore store = new PersistRecordStore(file);
+            store.readKey();
+            ByteBuffer value = store.get(RECORD);
+            if (value == null)
+                throw new IOException("No token in " + file);
+            read(value);
+        }
         System.out.println("Read token OK");
     }
 
     /**
-     * elimina el file que contiene las tokes si existe
+     * lee un token.dat de texto: token, secret token y opcionalmente userId,
+     * screenName y fecha de verificacion, una por linea
+     */
+    private void readText() throws IOException {
+        try (Scanner scan = new Scanner(file)) {
+            this.token = scan.nextLine();
+            this.secretToken = scan.nextLine();
+            clearIdentity();
+            try {
+                if (scan.hasNextLine()) {
+                    long id = Long.parseLong(scan.nextLine());
+                    String name = scan.nextLine();
+                    long verified = Long.parseLong(scan.nextLine());
+                    setIdentity(id, name, verified);
+                }
+            } catch (RuntimeException e) {
+                //identidad incompleta o corrupta, se volvera a verificar
+                clearIdentity();
+            }
+        } catch (NoSuchElementException e) {
+            throw new IOException("Incomplete token file " + file, e);
+        }
+    }
+
+    /**
+     * @return - tokens e identidad codificados para un PersistRecordStore
+     */
+    byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        PersistRecordStore.writeString(out, token);
+        PersistRecordStore.writeString(out, secretToken);
+        out.writeLong(userId);
+        PersistRecordStore.writeString(out, screenName);
+        out.writeLong(verifiedAt);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * lee los tokens e identidad escritos por toBytes
+     *
+     * @param value - valor del registro
+     * @throws IOException - si el valor esta incompleto
+     */
+    void read(ByteBuffer value) throws IOException {
+        try {
+            token = PersistRecordStore.readString(value);
+            secretToken = PersistRecordStore.readString(value);
+            long id = value.getLong();
+            String name = PersistRecordStore.readString(value);
+            setIdentity(id, name.isEmpty() ? null : name, value.getLong());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt token record", e);
+        }
+    }
+
+    /**
+     * elimina el file que contiene las tokes si existe, esperando a que
+     * terminen de leerlo otros procesos
      */
     public void removeKey() {
-        if (scan != null)
-            scan.close();
-        file.delete();
+        new PersistRecordStore(file).delete();
         //System.out.println("Token Killed");
     }
 
@@ -108,10 +226,11 @@ public class PersistAccessToken implements Persistable {
      * metodo que procesa la validacion de los api key y la autenticacion del cliente
      *
      * @param consumer - las secret token (normalmente tomamos la default de la clase PersistentConsumerKey
+     * @param pinReader - lee el PIN que introduce el usuario, por ejemplo de la consola
      * @throws IOException - si hay error en la escritura de las tokens
      * @throws TwitterException - si hay error de autenticacion
      */
-    public void createAccessToken(PersistConsumerKey consumer) throws IOException, TwitterException {
+    public void createAccessToken(PersistConsumerKey consumer, Supplier<String> pinReader) throws IOException, TwitterException {
         ConfigurationBuilder configBuilder = new ConfigurationBuilder();
         configBuilder.setDebugEnabled(true)
                 .setOAuthConsumerKey(consumer.getApikey())
@@ -132,7 +251,6 @@ public class PersistAccessToken implements Persistable {
             } catch (TwitterException ex) {
                 //Logger.getLogger(JTwit.class.getName()).log(Level.SEVERE, null, ex);
             }
-            BufferedReader lectorTeclado = new BufferedReader(new InputStreamReader(System.in));
             //Abro el navegador. Firefox, en este caso.
             Runtime runtime = Runtime.getRuntime();
             try {
@@ -143,7 +261,7 @@ public class PersistAccessToken implements Persistable {
             //Nos avisa de que introduciremos el PIN a continuación
             System.out.print("\n\nOAuth PIN: ");
             //Leemos el PIN
-            String pin = lectorTeclado.readLine();
+            String pin = pinReader.get();
             if (pin.length() > 0) {
                 accessToken = OAuthTwitter.getOAuthAccessToken(requestToken, pin);
             } else {
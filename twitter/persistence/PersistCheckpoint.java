@@ -0,0 +1,136 @@
+package twitter.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * clase que guarda el progreso de una operacion por lotes (por ejemplo
+ * seguir o dejar de seguir una lista de usuarios) para poder retomarla si
+ * se interrumpe.
+ * <p>
+ * El archivo es de solo añadir: una cabecera y a continuacion el ID de cada
+ * elemento terminado, 8 bytes por ID. Cada ID se escribe en cuanto termina
+ * su operacion; un ID final incompleto se descarta al leer
+ *
+ * @author fsancheztemprano
+ */
+public class PersistCheckpoint implements Persistable, Closeable {
+    private static final int MAGIC = 0x4A54434B;
+    private static final int HEADER = 4;
+
+    /**
+     * parametro con la ubicacion del archivo de progreso
+     */
+    private final File file;
+    private long[] done = new long[0];
+    private FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(8);
+
+    /**
+     * @param name - nombre del archivo de progreso
+     */
+    public PersistCheckpoint(String name) {
+        this.file = new File(name);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return - IDs terminados en ejecuciones anteriores, ordenados
+     */
+    public long[] getDone() {
+        return done;
+    }
+
+    /**
+     * borra el progreso guardado
+     */
+    @Override
+    public synchronized void setDefault() {
+        close();
+        done = new long[0];
+        file.delete();
+    }
+
+    /**
+     * fuerza a disco los IDs añadidos
+     */
+    @Override
+    public synchronized void saveKey() {
+        if (channel == null)
+            return;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            System.out.println("IOException on saving checkpoint ***");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * lee los IDs terminados y descarta un ultimo ID incompleto
+     *
+     * @throws IOException - si el archivo no existe o no es valido
+     */
+    @Override
+    public synchronized void readKey() throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = in.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE - 8));
+            while (buffer.hasRemaining() && in.read(buffer) >= 0) ;
+            buffer.flip();
+            if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC)
+                throw new IOException("Invalid checkpoint file " + file);
+            long[] values = new long[buffer.remaining() / 8];
+            for (int i = 0; i < values.length; i++)
+                values[i] = buffer.getLong();
+            if (length != HEADER + values.length * 8L)
+                in.truncate(HEADER + values.length * 8L);
+            Arrays.sort(values);
+            done = values;
+        }
+    }
+
+    /**
+     * añade un ID terminado al final del archivo, creandolo si no existe
+     *
+     * @param id - ID terminado
+     */
+    public synchronized void append(long id) throws IOException {
+        if (channel == null) {
+            boolean exists = file.exists() && file.length() >= HEADER;
+            if (!exists)
+                file.delete();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (!exists) {
+                record.clear();
+                record.putInt(MAGIC).flip();
+                channel.write(record);
+            }
+        }
+        record.clear();
+        record.putLong(id).flip();
+        while (record.hasRemaining())
+            channel.write(record);
+    }
+
+    /**
+     * cierra el archivo
+     */
+    @Override
+    public synchronized void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+}
@@ -1,13 +1,18 @@
 package twitter.persistence;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 
 /**
- * clase que crea, controla y limpia los tokens de autenticacion de api
+ * clase que crea, controla y limpia los tokens de autenticacion de api.
+ * consumer.dat es un PersistRecordStore con un unico registro; los
+ * consumer.dat de texto de versiones anteriores tambien se leen
  *
  * @author fsancheztemprano
  */
@@ -17,6 +22,7 @@ public class PersistConsumerKey implements Persistable {
      * parametro con la ubicacion del archivo de guardado de tokens
      */
     private final File file = new File("consumer.dat");
+    private static final String RECORD = "consumer";
     private String apikey;
     private String apisecret;
     //File file = new File(System.getProperty("user.home")+"/consumer.txt".replace("\\","/"));
@@ -66,26 +72,48 @@ public class PersistConsumerKey implements Persistable {
      */
     @Override
     public void saveKey() {
-        try (PrintWriter pw = new PrintWriter(file)) {
-            pw.println(apikey);
-            pw.println(apisecret);
-            System.out.println(file.getAbsolutePath());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            PersistRecordStore.writeString(out, apikey);
+            PersistRecordStore.writeString(out, apisecret);
         } catch (IOException e) {
             System.out.println("IOException on saving consumers ***");
             e.printStackTrace();
+            return;
         }
+        PersistRecordStore store = new PersistRecordStore(file);
+        store.put(RECORD, bytes.toByteArray());
+        store.saveKey();
+        System.out.println(file.getAbsolutePath());
     }
 
     /**
      * lee las tokens del archivo file si existe
      *
-     * @throws FileNotFoundException - si falla al leer el archivo file
+     * @throws IOException - si falla al leer el archivo file
      */
     @Override
-    public void readKey() throws FileNotFoundException {
-        Scanner scan = new Scanner(file);
-        this.apikey = scan.nextLine();
-        this.apisecret = scan.nextLine();
+    public void readKey() throws IOException {
+        if (file.exists() && !PersistRecordStore.isRecordStore(file)) {
+            try (Scanner scan = new Scanner(file)) {
+                this.apikey = scan.nextLine();
+                this.apisecret = scan.nextLine();
+            } catch (NoSuchElementException e) {
+                throw new IOException("Incomplete consumer file " + file, e);
+            }
+        } else {
+            PersistRecordStore store = new PersistRecordStore(file);
+            store.readKey();
+            ByteBuffer value = store.get(RECORD);
+            if (value == null)
+                throw new IOException("No consumer key in " + file);
+            try {
+                this.apikey = PersistRecordStore.readString(value);
+                this.apisecret = PersistRecordStore.readString(value);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Corrupt consumer record", e);
+            }
+        }
         System.out.println("Read consumer OK");
         //System.out.println(file.getAbsolutePath());
     }
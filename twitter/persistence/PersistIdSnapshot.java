@@ -0,0 +1,131 @@
+package twitter.persistence;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * clase que guarda en disco una foto de una lista de IDs (seguidores o
+ * seguidos) para compararla con la siguiente. Los IDs se guardan ordenados
+ * y codificados como diferencias con el anterior en varint, de forma que
+ * cada ID ocupa unos pocos bytes
+ *
+ * @author fsancheztemprano
+ */
+public class PersistIdSnapshot implements Persistable {
+    private static final int MAGIC = 0x4A545447;
+
+    /**
+     * parametro con la ubicacion del archivo de la foto
+     */
+    private final File file;
+    private long[] ids = new long[0];
+    private long takenAt;
+
+    /**
+     * @param name - nombre del archivo, junto a token.dat
+     */
+    public PersistIdSnapshot(String name) {
+        this.file = new File(name);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return - IDs ordenados y sin repetidos
+     */
+    public long[] getIds() {
+        return ids;
+    }
+
+    /**
+     * @param ids     - IDs ordenados y sin repetidos
+     * @param takenAt - momento de la foto en milisegundos
+     */
+    public void setIds(long[] ids, long takenAt) {
+        this.ids = ids;
+        this.takenAt = takenAt;
+    }
+
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    /**
+     * foto vacia
+     */
+    @Override
+    public void setDefault() {
+        setIds(new long[0], 0);
+    }
+
+    /**
+     * escribe la foto en un archivo temporal y lo renombra sobre el anterior
+     */
+    @Override
+    public void saveKey() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(takenAt);
+            out.writeInt(ids.length);
+            long previous = 0;
+            for (long id : ids) {
+                writeVarLong(out, id - previous);
+                previous = id;
+            }
+        } catch (IOException e) {
+            System.out.println("IOException on saving snapshot ***");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("IOException on saving snapshot ***");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * lee la foto del archivo
+     *
+     * @throws IOException - si el archivo no existe o esta incompleto
+     */
+    @Override
+    public void readKey() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Invalid snapshot file " + file);
+            long taken = in.readLong();
+            long[] values = new long[in.readInt()];
+            long previous = 0;
+            for (int i = 0; i < values.length; i++) {
+                previous += readVarLong(in);
+                values[i] = previous;
+            }
+            setIds(values, taken);
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed snapshot file " + file);
+    }
+}
@@ -0,0 +1,121 @@
+package twitter.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * clase que guarda en un unico archivo los tokens de varias cuentas, cada
+ * una con un nombre, junto a la identidad verificada de cada una. El
+ * archivo es un PersistRecordStore con un registro por cuenta, asi que
+ * varios procesos pueden añadir o actualizar cuentas distintas a la vez
+ *
+ * @author fsancheztemprano
+ */
+public class PersistKeystore implements Persistable {
+    /**
+     * ubicacion por defecto del almacen de cuentas, junto a token.dat
+     */
+    public static final File DEFAULT_FILE = new File("accounts.dat");
+
+    /**
+     * parametro con la ubicacion del archivo de cuentas
+     */
+    private final File file;
+    private final PersistRecordStore store;
+
+    public PersistKeystore() {
+        this(DEFAULT_FILE);
+    }
+
+    /**
+     * @param file - archivo de cuentas
+     */
+    public PersistKeystore(File file) {
+        this.file = file;
+        this.store = new PersistRecordStore(file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * almacen vacio
+     */
+    @Override
+    public void setDefault() {
+        store.setDefault();
+    }
+
+    /**
+     * guarda los cambios de las cuentas en el archivo
+     */
+    @Override
+    public void saveKey() {
+        store.saveKey();
+    }
+
+    /**
+     * lee las cuentas del archivo
+     *
+     * @throws IOException - si el archivo no existe o no es valido
+     */
+    @Override
+    public void readKey() throws IOException {
+        store.readKey();
+    }
+
+    /**
+     * @param name - nombre de la cuenta
+     * @return - tokens de la cuenta, o null si no existe o su registro esta corrupto
+     */
+    public PersistAccessToken get(String name) {
+        ByteBuffer value = store.get(name);
+        if (value == null)
+            return null;
+        PersistAccessToken token = new PersistAccessToken();
+        try {
+            token.read(value);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * añade o sustituye una cuenta, sin guardar el archivo
+     *
+     * @param name  - nombre de la cuenta
+     * @param token - tokens de la cuenta
+     */
+    public void put(String name, PersistAccessToken token) {
+        try {
+            store.put(name, token.toBytes());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * elimina una cuenta, sin guardar el archivo
+     *
+     * @param name - nombre de la cuenta
+     * @return - true si existia
+     */
+    public boolean remove(String name) {
+        if (store.get(name) == null)
+            return false;
+        store.remove(name);
+        return true;
+    }
+
+    /**
+     * @return - nombres de las cuentas en el orden en que se añadieron
+     */
+    public List<String> names() {
+        return store.keys();
+    }
+}
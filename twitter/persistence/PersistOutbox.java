@@ -0,0 +1,491 @@
+package twitter.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * clase que guarda en disco los tweets y DMs pendientes de enviar para que
+ * sobrevivan a un cierre o caida del programa.
+ * <p>
+ * El archivo es un registro de solo añadir: una cabecera [generacion]
+ * [siguiente seq] y a continuacion registros ENQUEUE [seq][tipo]
+ * [destinatario][fecha][texto] y SENT o FAILED [seq]. Cada registro se
+ * escribe y se sincroniza con el disco antes de devolver. Al leerlo los
+ * mensajes pendientes son los encolados sin SENT ni FAILED; un registro
+ * final incompleto se descarta. Cuando no queda nada pendiente o hay
+ * demasiados registros terminados el archivo se reescribe solo con los
+ * pendientes y los ultimos terminados, con otra generacion.
+ * <p>
+ * Varios procesos pueden usar el mismo archivo: cada operacion toma un
+ * bloqueo exclusivo sobre archivo.lock, lee lo que hayan añadido los demas
+ * (o el archivo entero si otro lo ha reescrito) y numera los mensajes nuevos
+ * a partir del ultimo seq del archivo. El envio se bloquea aparte, sobre
+ * archivo.send, para que dos procesos no envien el mismo mensaje
+ *
+ * @author fsancheztemprano
+ */
+public class PersistOutbox implements Persistable {
+    /**
+     * ubicacion por defecto del archivo de mensajes pendientes, junto a token.dat
+     */
+    public static final File DEFAULT_FILE = new File("outbox.dat");
+
+    public static final byte TWEET = 1;
+    public static final byte DM = 2;
+
+    private static final int MAGIC = 0x4A54574F;
+    private static final int HEADER = 20;
+    private static final byte ENQUEUE = 1;
+    private static final byte SENT = 2;
+    private static final byte FAILED = 3;
+    /**
+     * numero de registros terminados a partir del cual se compacta el archivo
+     */
+    private static final int MAX_DONE = 1000;
+    /**
+     * mensajes terminados que se conservan al compactar, para que otro
+     * proceso que espera uno de ellos pueda saber como termino
+     */
+    private static final int RECENT = 100;
+    /**
+     * un bloqueo por archivo dentro del proceso, FileLock solo excluye a
+     * otros procesos
+     */
+    private static final Map<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * mensaje pendiente
+     */
+    public static final class Entry {
+        public final long seq;
+        public final byte kind;
+        /**
+         * ID del destinatario de un DM, 0 en un tweet
+         */
+        public final long recipientId;
+        public final long queuedAt;
+        public final String text;
+
+        Entry(long seq, byte kind, long recipientId, long queuedAt, String text) {
+            this.seq = seq;
+            this.kind = kind;
+            this.recipientId = recipientId;
+            this.queuedAt = queuedAt;
+            this.text = text;
+        }
+    }
+
+    /**
+     * parametro con la ubicacion del archivo de mensajes pendientes
+     */
+    private final File file;
+    private final File lockFile;
+    private final File sendFile;
+    private final ReentrantLock lock;
+    private final ReentrantLock sendLock;
+    private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<>();
+    /**
+     * ultimos mensajes terminados: true si se enviaron, false si se descartaron
+     */
+    private final LinkedHashMap<Long, Boolean> finished = new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > RECENT;
+        }
+    };
+    /**
+     * mensajes terminados cuyo registro no se ha podido escribir todavia
+     */
+    private final Map<Long, Boolean> unwritten = new HashMap<>();
+    private long nextSeq = 1;
+    private int doneRecords;
+    /**
+     * generacion del archivo leido, 0 si no se ha leido ninguno
+     */
+    private long generation;
+    /**
+     * bytes del archivo ya leidos
+     */
+    private long offset;
+    private FileChannel sendChannel;
+
+    public PersistOutbox() {
+        this(DEFAULT_FILE);
+    }
+
+    /**
+     * @param file - archivo de mensajes pendientes, por ejemplo el de otra cuenta
+     */
+    public PersistOutbox(File file) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+        this.sendFile = new File(file.getPath() + ".send");
+        this.lock = LOCKS.computeIfAbsent(file.getAbsolutePath(), key -> new ReentrantLock());
+        this.sendLock = LOCKS.computeIfAbsent(sendFile.getAbsolutePath(), key -> new ReentrantLock());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * deja la cola vacia, sin tocar el archivo
+     */
+    @Override
+    public synchronized void setDefault() {
+        pending.clear();
+        finished.clear();
+        unwritten.clear();
+        nextSeq = 1;
+        doneRecords = 0;
+        generation = 0;
+        offset = 0;
+    }
+
+    /**
+     * lee el registro y recupera los mensajes pendientes
+     *
+     * @throws IOException - si el archivo no existe o no es valido
+     */
+    @Override
+    public synchronized void readKey() throws IOException {
+        setDefault();
+        if (!file.exists())
+            throw new FileNotFoundException(file.getPath());
+        locked(() -> {
+        });
+    }
+
+    /**
+     * reescribe el archivo solo con los mensajes pendientes
+     */
+    @Override
+    public synchronized void saveKey() {
+        try {
+            locked(this::rewrite);
+        } catch (IOException e) {
+            System.out.println("IOException on saving outbox ***");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * añade un mensaje a la cola y lo sincroniza con el disco
+     *
+     * @param kind        - TWEET o DM
+     * @param recipientId - destinatario del DM, 0 en un tweet
+     * @param text        - texto del mensaje
+     * @return - mensaje encolado
+     * @throws IOException - si no se ha podido guardar, el mensaje no queda encolado
+     */
+    public synchronized Entry append(byte kind, long recipientId, String text) throws IOException {
+        Entry[] appended = new Entry[1];
+        locked(() -> {
+            if (generation == 0)
+                rewrite();
+            Entry entry = new Entry(nextSeq, kind, recipientId, System.currentTimeMillis(), text);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + text.length() * 3);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(ENQUEUE);
+            out.writeLong(entry.seq);
+            out.writeByte(entry.kind);
+            out.writeLong(entry.recipientId);
+            out.writeLong(entry.queuedAt);
+            out.writeUTF(entry.text);
+            write(bytes.toByteArray());
+            nextSeq++;
+            pending.put(entry.seq, entry);
+            appended[0] = entry;
+        });
+        return appended[0];
+    }
+
+    /**
+     * marca un mensaje como terminado. Si no se puede escribir el registro
+     * el mensaje deja de estar pendiente en este proceso y se vuelve a
+     * intentar escribir en la siguiente operacion
+     *
+     * @param seq  - numero del mensaje
+     * @param sent - true si se ha enviado, false si se ha descartado
+     * @throws IOException - si no se ha podido escribir el registro
+     */
+    public synchronized void markDone(long seq, boolean sent) throws IOException {
+        if (pending.remove(seq) == null)
+            return;
+        finished.put(seq, sent);
+        unwritten.put(seq, sent);
+        locked(() -> {
+        });
+    }
+
+    /**
+     * @return - el mensaje pendiente mas antiguo, incluidos los que hayan
+     * encolado otros procesos, o null si no hay ninguno
+     * @throws IOException - si no se puede leer el archivo
+     */
+    public synchronized Entry peek() throws IOException {
+        locked(() -> {
+        });
+        Iterator<Entry> it = pending.values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @param seq - numero del mensaje
+     * @return - true si el mensaje sigue pendiente, tras leer lo que hayan
+     * hecho otros procesos
+     * @throws IOException - si no se puede leer el archivo
+     */
+    public synchronized boolean isPending(long seq) throws IOException {
+        locked(() -> {
+        });
+        return pending.containsKey(seq);
+    }
+
+    /**
+     * @param seq - numero del mensaje
+     * @return - true si se envio, false si se descarto, o null si sigue
+     * pendiente o termino hace demasiado para saberlo
+     * @throws IOException - si no se puede leer el archivo
+     */
+    public synchronized Boolean outcome(long seq) throws IOException {
+        locked(() -> {
+        });
+        return pending.containsKey(seq) ? null : finished.get(seq);
+    }
+
+    /**
+     * @return - numero de mensajes pendientes, sin volver a leer el archivo
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * bloquea el envio de mensajes de este archivo, dentro del proceso y
+     * entre procesos. Hay que llamar a unlockSend al terminar
+     *
+     * @throws IOException - si no se puede crear el archivo de bloqueo
+     */
+    public void lockSend() throws IOException {
+        sendLock.lock();
+        try {
+            sendChannel = FileChannel.open(sendFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            sendChannel.lock();
+        } catch (IOException | RuntimeException e) {
+            unlockSend();
+            throw e;
+        }
+    }
+
+    /**
+     * libera el bloqueo de envio tomado con lockSend
+     */
+    public void unlockSend() {
+        try {
+            if (sendChannel != null)
+                sendChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            sendChannel = null;
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * borra el archivo y deja la cola vacia, por ejemplo al cerrar la sesion
+     * de la cuenta
+     */
+    public synchronized void delete() {
+        try {
+            locked(() -> Files.deleteIfExists(file.toPath()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        setDefault();
+    }
+
+    /**
+     * operacion sobre el archivo con el bloqueo exclusivo
+     */
+    @FunctionalInterface
+    private interface Operation {
+        void run() throws IOException;
+    }
+
+    /**
+     * toma el bloqueo, lee los cambios de otros procesos, escribe los
+     * registros pendientes de este y ejecuta la operacion
+     */
+    private void locked(Operation operation) throws IOException {
+        lock.lock();
+        try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // el bloqueo se libera al cerrar el canal
+            lockChannel.lock();
+            refresh();
+            writeUnwritten();
+            operation.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * lee lo añadido al archivo desde la ultima lectura, o el archivo entero
+     * si otro proceso lo ha reescrito o borrado. Un registro final
+     * incompleto, de un proceso que termino a mitad de escribirlo, se corta
+     */
+    private void refresh() throws IOException {
+        if (!file.exists()) {
+            pending.clear();
+            doneRecords = 0;
+            generation = 0;
+            offset = 0;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header) >= 0)
+                ;
+            header.flip();
+            if (header.remaining() < HEADER || header.getInt() != MAGIC)
+                throw new IOException("Invalid outbox file " + file);
+            long read = header.getLong();
+            long base = header.getLong();
+            if (read != generation || size < offset) {
+                pending.clear();
+                doneRecords = 0;
+                generation = read;
+                offset = HEADER;
+            }
+            nextSeq = Math.max(nextSeq, base);
+            if (size == offset)
+                return;
+            ByteBuffer data = ByteBuffer.allocate((int) (size - offset));
+            channel.position(offset);
+            while (data.hasRemaining() && channel.read(data) >= 0)
+                ;
+            offset += parse(data.array(), data.position());
+            if (offset < size)
+                channel.truncate(offset);
+        }
+    }
+
+    /**
+     * aplica los registros completos
+     *
+     * @return - bytes de los registros completos
+     */
+    private int parse(byte[] data, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+        int valid = 0;
+        try {
+            while (valid < length) {
+                byte type = in.readByte();
+                long seq = in.readLong();
+                if (type == ENQUEUE) {
+                    Entry entry = new Entry(seq, in.readByte(), in.readLong(), in.readLong(), in.readUTF());
+                    if (!unwritten.containsKey(seq))
+                        pending.put(seq, entry);
+                } else if (type == SENT || type == FAILED) {
+                    pending.remove(seq);
+                    finished.put(seq, type == SENT);
+                    doneRecords++;
+                } else {
+                    break;
+                }
+                nextSeq = Math.max(nextSeq, seq + 1);
+                valid = length - in.available();
+            }
+        } catch (EOFException e) {
+            // registro final incompleto
+        }
+        return valid;
+    }
+
+    /**
+     * escribe los registros de los mensajes terminados en este proceso, o
+     * compacta el archivo si ya no queda nada pendiente
+     */
+    private void writeUnwritten() throws IOException {
+        if (unwritten.isEmpty())
+            return;
+        for (Long seq : unwritten.keySet())
+            pending.remove(seq);
+        if (generation == 0 || pending.isEmpty() || doneRecords >= MAX_DONE) {
+            rewrite();
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(unwritten.size() * 9);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (Map.Entry<Long, Boolean> done : unwritten.entrySet()) {
+                out.writeByte(done.getValue() ? SENT : FAILED);
+                out.writeLong(done.getKey());
+            }
+            write(bytes.toByteArray());
+            doneRecords += unwritten.size();
+        }
+        unwritten.clear();
+    }
+
+    /**
+     * añade registros al final del archivo y los sincroniza con el disco
+     */
+    private void write(byte[] records) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(file, true)) {
+            stream.write(records);
+            stream.getFD().sync();
+        }
+        offset += records.length;
+    }
+
+    /**
+     * reescribe el archivo con otra generacion: los ultimos terminados y los
+     * pendientes
+     */
+    private void rewrite() throws IOException {
+        long next;
+        do {
+            next = ThreadLocalRandom.current().nextLong();
+        } while (next == 0 || next == generation);
+        File tmp = new File(file.getPath() + ".tmp");
+        long size;
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(fos))) {
+            tmpOut.writeInt(MAGIC);
+            tmpOut.writeLong(next);
+            tmpOut.writeLong(nextSeq);
+            for (Map.Entry<Long, Boolean> done : finished.entrySet()) {
+                tmpOut.writeByte(done.getValue() ? SENT : FAILED);
+                tmpOut.writeLong(done.getKey());
+            }
+            for (Entry entry : pending.values()) {
+                tmpOut.writeByte(ENQUEUE);
+                tmpOut.writeLong(entry.seq);
+                tmpOut.writeByte(entry.kind);
+                tmpOut.writeLong(entry.recipientId);
+                tmpOut.writeLong(entry.queuedAt);
+                tmpOut.writeUTF(entry.text);
+            }
+            tmpOut.flush();
+            fos.getFD().sync();
+            size = tmpOut.size();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = next;
+        offset = size;
+        doneRecords = finished.size();
+    }
+}
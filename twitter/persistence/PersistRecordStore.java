@@ -0,0 +1,324 @@
+package twitter.persistence;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * almacen binario de registros clave/valor para credenciales y otros datos
+ * pequeños que varios procesos jtwit pueden leer y escribir a la vez.
+ * <p>
+ * Formato: MAGIC, version, numero de registros, registros
+ * [longitud clave][clave UTF-8][longitud valor][valor] y un CRC32 final.
+ * Las escrituras se hacen en un archivo temporal que se sincroniza y se
+ * renombra sobre el anterior, asi que un lector nunca ve un archivo a
+ * medias. Lectores y escritores se coordinan con un bloqueo compartido o
+ * exclusivo sobre archivo.lock entre procesos; dentro del mismo proceso
+ * los accesos a un archivo se hacen de uno en uno, porque la JVM no admite
+ * dos bloqueos de archivo solapados aunque sean compartidos. Al leer el archivo se mapea en memoria y los valores se devuelven
+ * como vistas de solo lectura del mapa, sin copiarlos.
+ * <p>
+ * Los cambios (put/remove) se guardan como pendientes y saveKey los aplica
+ * sobre el contenido actual del archivo, de forma que dos procesos que
+ * cambian registros distintos no se pisan
+ *
+ * @author fsancheztemprano
+ */
+public class PersistRecordStore implements Persistable {
+    private static final int MAGIC = 0x4A545253;
+    private static final short VERSION = 1;
+    private static final Map<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * parametro con la ubicacion del archivo de registros
+     */
+    private final File file;
+    private final File lockFile;
+    private final ReentrantLock lock;
+    private boolean ownerOnly;
+    private final LinkedHashMap<String, ByteBuffer> records = new LinkedHashMap<>();
+    /**
+     * cambios sin guardar, un valor null es un registro borrado
+     */
+    private final LinkedHashMap<String, byte[]> changes = new LinkedHashMap<>();
+
+    /**
+     * @param file - archivo de registros
+     */
+    public PersistRecordStore(File file) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+        this.lock = LOCKS.computeIfAbsent(file.getAbsolutePath(), key -> new ReentrantLock());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param ownerOnly - true para que el archivo solo lo pueda leer el
+     *                  usuario desde que se crea, para guardar secretos
+     */
+    public void setOwnerOnly(boolean ownerOnly) {
+        this.ownerOnly = ownerOnly;
+    }
+
+    /**
+     * @param file - archivo a comprobar
+     * @return - true si el archivo existe y tiene la cabecera de un almacen
+     */
+    public static boolean isRecordStore(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * almacen vacio, sin tocar el archivo
+     */
+    @Override
+    public synchronized void setDefault() {
+        records.clear();
+        changes.clear();
+    }
+
+    /**
+     * lee los registros con un bloqueo compartido
+     *
+     * @throws IOException - si el archivo no existe, no es un almacen o esta corrupto
+     */
+    @Override
+    public synchronized void readKey() throws IOException {
+        if (!file.exists())
+            throw new FileNotFoundException(file.getPath());
+        lock.lock();
+        try (FileChannel lockChannel = openLock()) {
+            lockChannel.lock(0, Long.MAX_VALUE, true);
+            Map<String, ByteBuffer> loaded = load();
+            records.clear();
+            records.putAll(loaded);
+            changes.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * aplica los cambios pendientes sobre el contenido actual del archivo y
+     * lo reescribe de forma atomica, con un bloqueo exclusivo
+     */
+    @Override
+    public synchronized void saveKey() {
+        lock.lock();
+        try (FileChannel lockChannel = openLock()) {
+            lockChannel.lock();
+            // un archivo que no es un almacen (por ejemplo uno de texto antiguo) se sustituye
+            Map<String, ByteBuffer> current = isRecordStore(file) ? load() : new LinkedHashMap<>();
+            for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+                if (change.getValue() == null)
+                    current.remove(change.getKey());
+                else
+                    current.put(change.getKey(), ByteBuffer.wrap(change.getValue()).asReadOnlyBuffer());
+            }
+            write(current);
+            records.clear();
+            records.putAll(current);
+            changes.clear();
+        } catch (IOException e) {
+            System.out.println("IOException on saving " + file + " ***");
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * borra el archivo con un bloqueo exclusivo, esperando a que terminen
+     * los lectores
+     */
+    public synchronized void delete() {
+        setDefault();
+        if (!file.exists())
+            return;
+        lock.lock();
+        try (FileChannel lockChannel = openLock()) {
+            lockChannel.lock();
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param key - clave del registro
+     * @return - vista de solo lectura del valor, o null si no existe
+     */
+    public synchronized ByteBuffer get(String key) {
+        if (changes.containsKey(key)) {
+            byte[] value = changes.get(key);
+            return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+        }
+        ByteBuffer value = records.get(key);
+        return value == null ? null : value.duplicate();
+    }
+
+    /**
+     * guarda un valor, el archivo no cambia hasta saveKey
+     *
+     * @param key   - clave del registro
+     * @param value - valor del registro
+     */
+    public synchronized void put(String key, byte[] value) {
+        changes.put(key, value.clone());
+    }
+
+    /**
+     * borra un registro, el archivo no cambia hasta saveKey
+     *
+     * @param key - clave del registro
+     */
+    public synchronized void remove(String key) {
+        changes.put(key, null);
+    }
+
+    /**
+     * @return - claves de los registros, incluidos los cambios sin guardar
+     */
+    public synchronized List<String> keys() {
+        LinkedHashSet<String> keys = new LinkedHashSet<>(records.keySet());
+        for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+            if (change.getValue() == null)
+                keys.remove(change.getKey());
+            else
+                keys.add(change.getKey());
+        }
+        return new ArrayList<>(keys);
+    }
+
+    /**
+     * escribe un string como longitud y bytes UTF-8, para codificar valores
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * lee un string escrito con writeString directamente del valor
+     */
+    static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        ByteBuffer bytes = in.slice();
+        bytes.limit(length);
+        in.position(in.position() + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /**
+     * el bloqueo que se tome sobre el canal se libera al cerrarlo
+     */
+    private FileChannel openLock() throws IOException {
+        return FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * mapea el archivo y separa sus registros sin copiar los valores
+     */
+    private Map<String, ByteBuffer> load() throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (map.remaining() < 14 || map.getInt() != MAGIC)
+                throw new IOException("Invalid record file " + file);
+            short version = map.getShort();
+            if (version > VERSION)
+                throw new IOException("Unsupported record file version " + version + " in " + file);
+            CRC32 crc = new CRC32();
+            ByteBuffer body = map.duplicate();
+            body.position(0).limit(map.capacity() - 4);
+            crc.update(body);
+            if ((int) crc.getValue() != map.getInt(map.capacity() - 4))
+                throw new IOException("Corrupt record file " + file);
+            int count = map.getInt();
+            Map<String, ByteBuffer> loaded = new LinkedHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[map.getShort() & 0xFFFF];
+                map.get(key);
+                int length = map.getInt();
+                ByteBuffer value = map.slice();
+                value.limit(length);
+                map.position(map.position() + length);
+                loaded.put(new String(key, StandardCharsets.UTF_8), value.asReadOnlyBuffer());
+            }
+            return loaded;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt record file " + file, e);
+        }
+    }
+
+    /**
+     * crea el archivo vacio con permisos solo para el usuario, antes de
+     * escribir nada en el
+     */
+    private static void createOwnerOnly(File tmp) throws IOException {
+        Files.deleteIfExists(tmp.toPath());
+        try {
+            Files.createFile(tmp.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // sistemas sin permisos POSIX, como Windows
+            Files.createFile(tmp.toPath());
+            tmp.setReadable(false, false);
+            tmp.setWritable(false, false);
+            tmp.setReadable(true, true);
+            tmp.setWritable(true, true);
+        }
+    }
+
+    private void write(Map<String, ByteBuffer> values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(values.size());
+        for (Map.Entry<String, ByteBuffer> record : values.entrySet()) {
+            byte[] key = record.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(key.length);
+            out.write(key);
+            ByteBuffer value = record.getValue().duplicate();
+            byte[] copy = new byte[value.remaining()];
+            value.get(copy);
+            out.writeInt(copy.length);
+            out.write(copy);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        File tmp = new File(file.getPath() + ".tmp");
+        if (ownerOnly)
+            createOwnerOnly(tmp);
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
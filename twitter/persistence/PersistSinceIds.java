@@ -0,0 +1,106 @@
+package twitter.persistence;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * clase que guarda el ID del ultimo status recibido de cada usuario de una
+ * lista, para que la siguiente consulta de sus timelines solo pida los
+ * status nuevos. Los screenNames se guardan en minusculas
+ *
+ * @author fsancheztemprano
+ */
+public class PersistSinceIds implements Persistable {
+    private static final int MAGIC = 0x4A545349;
+
+    /**
+     * parametro con la ubicacion del archivo
+     */
+    private final File file;
+    private final Map<String, Long> sinceIds = new HashMap<>();
+
+    /**
+     * @param name - nombre del archivo, por ejemplo junto a la lista de usuarios
+     */
+    public PersistSinceIds(String name) {
+        this.file = new File(name);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param screenName - usuario de la lista
+     * @return - ID del ultimo status recibido del usuario, 0 si ninguno
+     */
+    public synchronized long get(String screenName) {
+        return sinceIds.getOrDefault(screenName.toLowerCase(Locale.ROOT), 0L);
+    }
+
+    /**
+     * guarda el ID si es posterior al que ya habia
+     *
+     * @param screenName - usuario de la lista
+     * @param statusId   - ID de un status recibido del usuario
+     */
+    public synchronized void put(String screenName, long statusId) {
+        sinceIds.merge(screenName.toLowerCase(Locale.ROOT), statusId, Math::max);
+    }
+
+    /**
+     * sin ningun usuario
+     */
+    @Override
+    public synchronized void setDefault() {
+        sinceIds.clear();
+    }
+
+    /**
+     * escribe los IDs en un archivo temporal y lo renombra sobre el anterior
+     */
+    @Override
+    public synchronized void saveKey() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(sinceIds.size());
+            for (Map.Entry<String, Long> entry : sinceIds.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            System.out.println("IOException on saving since IDs ***");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("IOException on saving since IDs ***");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * lee los IDs del archivo
+     *
+     * @throws IOException - si el archivo no existe o esta incompleto
+     */
+    @Override
+    public synchronized void readKey() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Invalid since IDs file " + file);
+            Map<String, Long> read = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--)
+                read.put(in.readUTF(), in.readLong());
+            sinceIds.clear();
+            sinceIds.putAll(read);
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package twitter.persistence;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * clase que mantiene un indice invertido local de los tweets y DMs
+ * recibidos para poder buscarlos sin conexion.
+ * <p>
+ * Cada documento se indexa por sus palabras, hashtags (#tag), menciones
+ * (@usuario), autor (from:usuario) y dia de publicacion (day:yyyy-MM-dd).
+ * En disco solo se guardan los documentos, en orden de llegada; los indices
+ * de terminos se construyen con la primera busqueda, asi que los comandos
+ * que solo añaden documentos no tienen que tokenizar todo el archivo. Los
+ * documentos nuevos se añaden al final del archivo y cuando se supera el
+ * tamaño maximo se descartan los mas antiguos y se reescribe.
+ * <p>
+ * Varios procesos (el daemon y un comando sin daemon) pueden guardar en el
+ * mismo archivo: lecturas y escrituras toman un bloqueo exclusivo sobre
+ * archivo.lock, y si otro proceso ha cambiado el archivo desde la ultima
+ * lectura se vuelve a leer antes de añadir los documentos nuevos. Un
+ * documento final incompleto se corta al leer
+ *
+ * @author fsancheztemprano
+ */
+public class PersistStatusIndex implements Persistable {
+    /**
+     * ubicacion por defecto del archivo del indice, junto a token.dat
+     */
+    public static final File DEFAULT_FILE = new File("index.dat");
+    /**
+     * numero maximo de documentos por defecto, configurable con -Djtwit.index.maxDocs
+     */
+    public static final int DEFAULT_MAX_DOCS = Integer.getInteger("jtwit.index.maxDocs", 100_000);
+
+    private static final int MAGIC = 0x4A545749;
+    /**
+     * un bloqueo por archivo dentro del proceso, FileLock solo excluye a
+     * otros procesos
+     */
+    private static final Map<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * mas reciente primero, y a igual fecha el ID mayor
+     */
+    private static final Comparator<Doc> NEWEST_FIRST = Comparator.comparingLong((Doc doc) -> doc.createdAt)
+            .thenComparingLong(doc -> doc.id).reversed();
+
+    /**
+     * documento indexado
+     */
+    public static final class Doc {
+        public final long id;
+        public final long createdAt;
+        public final long userId;
+        public final String screenName;
+        public final String text;
+
+        Doc(long id, long createdAt, long userId, String screenName, String text) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.userId = userId;
+            this.screenName = screenName;
+            this.text = text;
+        }
+    }
+
+    /**
+     * lista de enteros sin boxing para las listas de documentos de cada termino
+     */
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * parametro con la ubicacion del archivo del indice
+     */
+    private final File file;
+    private final File lockFile;
+    private final ReentrantLock lock;
+    private final int maxDocs;
+    /**
+     * documentos en orden de llegada, el numero de documento es base + posicion
+     */
+    private final ArrayList<Doc> docs = new ArrayList<>();
+    private int base;
+    private final Map<Long, Integer> byId = new HashMap<>();
+    private final Map<String, IntList> postings = new HashMap<>();
+    /**
+     * true si postings contiene todos los documentos
+     */
+    private boolean indexed = true;
+    /**
+     * documentos ya escritos en el archivo, -1 si hay que reescribirlo entero
+     */
+    private int persisted;
+    /**
+     * longitud del archivo tras la ultima lectura o escritura de este proceso
+     */
+    private long length;
+
+    public PersistStatusIndex() {
+        this(DEFAULT_FILE, DEFAULT_MAX_DOCS);
+    }
+
+    /**
+     * @param file    - archivo del indice, por ejemplo el de otra cuenta
+     * @param maxDocs - numero maximo de documentos a conservar
+     */
+    public PersistStatusIndex(File file, int maxDocs) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+        this.lock = LOCKS.computeIfAbsent(file.getAbsolutePath(), key -> new ReentrantLock());
+        this.maxDocs = maxDocs;
+    }
+
+    /**
+     * deja el indice vacio, sin tocar el archivo
+     */
+    @Override
+    public synchronized void setDefault() {
+        docs.clear();
+        byId.clear();
+        postings.clear();
+        base = 0;
+        persisted = -1;
+        length = 0;
+        indexed = true;
+    }
+
+    /**
+     * lee los documentos del archivo; los indices de terminos se construyen
+     * en la primera busqueda. Un documento final incompleto se corta del
+     * archivo para que los siguientes se añadan detras del ultimo completo
+     *
+     * @throws IOException si el archivo no existe o no es un indice valido
+     */
+    @Override
+    public synchronized void readKey() throws IOException {
+        if (!file.exists())
+            throw new FileNotFoundException(file.getPath());
+        locked(this::load);
+    }
+
+    /**
+     * escribe en el archivo los documentos nuevos, o lo reescribe entero si
+     * se han descartado documentos antiguos. Si otro proceso ha cambiado el
+     * archivo se leen antes sus documentos
+     */
+    @Override
+    public synchronized void saveKey() {
+        if (persisted == docs.size())
+            return;
+        try {
+            locked(() -> {
+                if (file.exists() && file.length() != length)
+                    merge();
+                if (persisted < 0 || !file.exists()) {
+                    File tmp = new File(file.getPath() + ".tmp");
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                        out.writeInt(MAGIC);
+                        write(out, 0);
+                    }
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } else if (persisted < docs.size()) {
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16))) {
+                        write(out, persisted);
+                    }
+                }
+                persisted = docs.size();
+                length = file.length();
+            });
+        } catch (IOException e) {
+            System.out.println("IOException on saving search index ***");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * operacion sobre el archivo con el bloqueo exclusivo
+     */
+    @FunctionalInterface
+    private interface Operation {
+        void run() throws IOException;
+    }
+
+    private void locked(Operation operation) throws IOException {
+        lock.lock();
+        try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // el bloqueo se libera al cerrar el canal
+            lockChannel.lock();
+            operation.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * lee los documentos del archivo y corta un documento final incompleto
+     */
+    private void load() throws IOException {
+        setDefault();
+        indexed = false;
+        long valid;
+        try (CountingInputStream counted = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+             DataInputStream in = new DataInputStream(counted)) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Invalid index file " + file);
+            valid = counted.count;
+            while (true) {
+                Doc doc;
+                try {
+                    doc = new Doc(in.readLong(), in.readLong(), in.readLong(), in.readUTF(), in.readUTF());
+                } catch (EOFException | UTFDataFormatException e) {
+                    break;
+                }
+                add(doc);
+                valid = counted.count;
+            }
+        }
+        if (valid < file.length()) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        length = valid;
+        persisted = docs.size() > maxDocs ? -1 : docs.size();
+        evict();
+    }
+
+    /**
+     * otro proceso ha cambiado el archivo: se vuelve a leer y se añaden
+     * detras los documentos de este proceso que aun no estaban guardados
+     */
+    private void merge() throws IOException {
+        List<Doc> unsaved = new ArrayList<>(docs.subList(Math.max(persisted, 0), docs.size()));
+        load();
+        for (Doc doc : unsaved)
+            add(doc);
+        evict();
+    }
+
+    private void write(DataOutputStream out, int from) throws IOException {
+        for (int i = from; i < docs.size(); i++) {
+            Doc doc = docs.get(i);
+            out.writeLong(doc.id);
+            out.writeLong(doc.createdAt);
+            out.writeLong(doc.userId);
+            out.writeUTF(doc.screenName);
+            out.writeUTF(doc.text);
+        }
+    }
+
+    /**
+     * indexa un documento si no estaba ya indexado
+     *
+     * @param id         - ID del status o DM
+     * @param createdAt  - fecha de publicacion
+     * @param userId     - ID del autor
+     * @param screenName - screenName del autor
+     * @param text       - texto
+     */
+    public synchronized void put(long id, Date createdAt, long userId, String screenName, String text) {
+        if (byId.containsKey(id))
+            return;
+        add(new Doc(id, createdAt.getTime(), userId, screenName == null ? "" : screenName, text == null ? "" : text));
+        evict();
+    }
+
+    private void add(Doc doc) {
+        if (byId.containsKey(doc.id))
+            return;
+        int number = base + docs.size();
+        docs.add(doc);
+        byId.put(doc.id, number);
+        if (indexed)
+            index(doc, number);
+    }
+
+    private void index(Doc doc, int number) {
+        Set<String> terms = new HashSet<>();
+        tokenize(doc.text, terms);
+        terms.add("from:" + doc.screenName.toLowerCase(Locale.ROOT));
+        terms.add("day:" + day(doc.createdAt));
+        for (String term : terms)
+            postings.computeIfAbsent(term, key -> new IntList()).add(number);
+    }
+
+    /**
+     * descarta el 10% mas antiguo de los documentos si se supera el maximo
+     */
+    private void evict() {
+        if (docs.size() <= maxDocs)
+            return;
+        int drop = Math.max(docs.size() - maxDocs, maxDocs / 10);
+        for (int i = 0; i < drop; i++)
+            byId.remove(docs.get(i).id);
+        docs.subList(0, drop).clear();
+        base += drop;
+        persisted = -1;
+        if (!indexed)
+            return;
+        for (Iterator<IntList> it = postings.values().iterator(); it.hasNext(); ) {
+            IntList list = it.next();
+            int from = 0;
+            while (from < list.size && list.values[from] < base)
+                from++;
+            if (from == list.size) {
+                it.remove();
+            } else if (from > 0) {
+                list.values = Arrays.copyOfRange(list.values, from, Math.max(list.size, from + 4));
+                list.size -= from;
+            }
+        }
+    }
+
+    /**
+     * construye los indices de terminos de los documentos leidos del archivo
+     */
+    private void ensureIndexed() {
+        if (indexed)
+            return;
+        for (int i = 0; i < docs.size(); i++)
+            index(docs.get(i), base + i);
+        indexed = true;
+    }
+
+    /**
+     * busca los documentos que contienen todos los terminos de la consulta.
+     * Admite palabras, #hashtags, @menciones, from:usuario, since:yyyy-MM-dd
+     * y until:yyyy-MM-dd. Una consulta solo con since: y until: devuelve
+     * todos los documentos de esas fechas
+     *
+     * @param query - consulta
+     * @param limit - numero maximo de resultados
+     * @return - documentos encontrados, del mas reciente al mas antiguo por
+     * fecha y a igual fecha por ID
+     * @throws IllegalArgumentException - si una fecha de since: o until: no es valida
+     */
+    public synchronized List<Doc> search(String query, int limit) {
+        long since = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+        List<String> terms = new ArrayList<>();
+        boolean text = false;
+        for (String part : query.trim().split("\\s+")) {
+            String lower = part.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("since:")) {
+                since = parseDay(part);
+            } else if (lower.startsWith("until:")) {
+                until = parseDay(part);
+            } else if (lower.startsWith("from:") || lower.startsWith("day:")) {
+                terms.add(lower);
+            } else if (!part.isEmpty()) {
+                text = true;
+                tokenize(part, terms);
+            }
+        }
+        // un texto sin ningun termino (una letra, solo signos) o una consulta
+        // vacia no coinciden con nada; solo since: y until: devuelven todos
+        // los documentos de esas fechas
+        boolean dates = since != Long.MIN_VALUE || until != Long.MAX_VALUE;
+        if (limit <= 0 || terms.isEmpty() && (text || !dates))
+            return Collections.emptyList();
+        ensureIndexed();
+        int[] candidates = null;
+        int count = docs.size();
+        for (String term : terms) {
+            IntList list = postings.get(term);
+            if (list == null)
+                return Collections.emptyList();
+            if (candidates == null) {
+                candidates = Arrays.copyOf(list.values, list.size);
+                count = list.size;
+            } else {
+                count = intersect(candidates, count, list);
+            }
+        }
+        // los documentos estan en orden de llegada, que no es el de
+        // publicacion: se guardan los limit mas recientes en un heap
+        PriorityQueue<Doc> newest = new PriorityQueue<>(Math.min(limit, 64) + 1, NEWEST_FIRST.reversed());
+        for (int i = 0; i < count; i++) {
+            Doc doc = docs.get(candidates == null ? i : candidates[i] - base);
+            if (doc.createdAt < since || doc.createdAt >= until)
+                continue;
+            if (newest.size() < limit) {
+                newest.add(doc);
+            } else if (NEWEST_FIRST.compare(doc, newest.peek()) < 0) {
+                newest.poll();
+                newest.add(doc);
+            }
+        }
+        List<Doc> result = new ArrayList<>(newest);
+        result.sort(NEWEST_FIRST);
+        return result;
+    }
+
+    /**
+     * @param part - since:yyyy-MM-dd o until:yyyy-MM-dd
+     * @return - inicio del dia en UTC en milisegundos
+     */
+    private static long parseDay(String part) {
+        try {
+            return LocalDate.parse(part.substring(6)).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date in " + part + ", use yyyy-MM-dd", e);
+        }
+    }
+
+    /**
+     * interseccion de dos listas ordenadas, el resultado queda en candidates
+     */
+    private static int intersect(int[] candidates, int count, IntList list) {
+        int i = 0, j = 0, n = 0;
+        while (i < count && j < list.size) {
+            if (candidates[i] < list.values[j]) {
+                i++;
+            } else if (candidates[i] > list.values[j]) {
+                j++;
+            } else {
+                candidates[n++] = candidates[i];
+                i++;
+                j++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return - numero de documentos indexados
+     */
+    public synchronized int size() {
+        return docs.size();
+    }
+
+    /**
+     * separa un texto en terminos en minusculas: palabras de al menos dos
+     * caracteres, #hashtags y @menciones
+     */
+    static void tokenize(String text, Collection<String> terms) {
+        int i = 0;
+        int length = text.length();
+        StringBuilder token = new StringBuilder();
+        while (i < length) {
+            char c = text.charAt(i);
+            char prefix = 0;
+            if ((c == '#' || c == '@') && i + 1 < length && isWordChar(text.charAt(i + 1))) {
+                prefix = c;
+                i++;
+            } else if (!isWordChar(c)) {
+                i++;
+                continue;
+            }
+            token.setLength(0);
+            if (prefix != 0)
+                token.append(prefix);
+            while (i < length && isWordChar(text.charAt(i)))
+                token.append(Character.toLowerCase(text.charAt(i++)));
+            if (prefix != 0 || token.length() >= 2)
+                terms.add(token.toString());
+        }
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * cuenta los bytes consumidos por el DataInputStream, que no lee por
+     * adelantado, para saber donde termina el ultimo documento completo
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static String day(long millis) {
+        return Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC).toLocalDate().toString();
+    }
+}
@@ -0,0 +1,224 @@
+package twitter.persistence;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * clase que guarda una grabacion de las peticiones a la api de twitter y
+ * sus respuestas, para reproducirlas despues sin red.
+ * <p>
+ * El archivo esta comprimido con gzip: una cabecera y a continuacion cada
+ * peticion con su metodo, url, parametros, codigo de estado, cabeceras y
+ * cuerpo de la respuesta, el momento en que se hizo y lo que tardo. Cada
+ * peticion se vacia a disco en cuanto termina; una peticion final
+ * incompleta se descarta al leer
+ *
+ * @author fsancheztemprano
+ */
+public class PersistTape implements Persistable, Closeable {
+    public static final File DEFAULT_FILE = new File("tape.gz");
+    private static final int MAGIC = 0x4A544150;
+
+    /**
+     * peticion grabada con su respuesta
+     */
+    public static final class Entry {
+        /**
+         * milisegundos desde el inicio de la grabacion
+         */
+        public final long offset;
+        /**
+         * duracion de la peticion en microsegundos
+         */
+        public final long micros;
+        public final String method;
+        public final String url;
+        /**
+         * nombre y valor de cada parametro, alternados
+         */
+        public final String[] params;
+        public final int status;
+        /**
+         * nombre y valor de cada cabecera de la respuesta, alternados
+         */
+        public final String[] headers;
+        /**
+         * cuerpo de la respuesta, el JSON tal cual llego
+         */
+        public final String body;
+
+        public Entry(long offset, long micros, String method, String url, String[] params, int status, String[] headers, String body) {
+            this.offset = offset;
+            this.micros = micros;
+            this.method = method;
+            this.url = url;
+            this.params = params;
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    /**
+     * parametro con la ubicacion del archivo de la grabacion
+     */
+    private final File file;
+    private List<Entry> entries = new ArrayList<>();
+    private DataOutputStream out;
+
+    public PersistTape() {
+        this(DEFAULT_FILE);
+    }
+
+    /**
+     * @param file - archivo de la grabacion
+     */
+    public PersistTape(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return - peticiones leidas con readKey, en el orden en que terminaron.
+     * Las añadidas con append no se guardan en memoria
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * borra la grabacion
+     */
+    @Override
+    public synchronized void setDefault() {
+        close();
+        entries = new ArrayList<>();
+        file.delete();
+    }
+
+    /**
+     * vacia a disco las peticiones añadidas
+     */
+    @Override
+    public synchronized void saveKey() {
+        if (out == null)
+            return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("IOException on saving tape ***");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * lee todas las peticiones de la grabacion y descarta una ultima
+     * peticion incompleta
+     *
+     * @throws IOException - si el archivo no existe o no es valido
+     */
+    @Override
+    public synchronized void readKey() throws IOException {
+        List<Entry> read = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Invalid tape file " + file);
+            try {
+                while (true) {
+                    long offset = in.readLong();
+                    long micros = in.readLong();
+                    String method = readString(in);
+                    String url = readString(in);
+                    String[] params = readStrings(in);
+                    int status = in.readInt();
+                    String[] headers = readStrings(in);
+                    String body = readString(in);
+                    read.add(new Entry(offset, micros, method, url, params, status, headers, body));
+                }
+            } catch (EOFException e) {
+                //fin de la grabacion, o grabacion cortada a mitad de una peticion
+            }
+        }
+        entries = read;
+    }
+
+    /**
+     * añade una peticion al final de la grabacion. La primera peticion de
+     * cada ejecucion empieza una grabacion nueva
+     *
+     * @param entry - peticion con su respuesta
+     */
+    public synchronized void append(Entry entry) throws IOException {
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 1 << 16, true), 1 << 16));
+            out.writeInt(MAGIC);
+        }
+        out.writeLong(entry.offset);
+        out.writeLong(entry.micros);
+        writeString(out, entry.method);
+        writeString(out, entry.url);
+        writeStrings(out, entry.params);
+        out.writeInt(entry.status);
+        writeStrings(out, entry.headers);
+        writeString(out, entry.body);
+        out.flush();
+    }
+
+    /**
+     * cierra el archivo, terminando el flujo gzip
+     */
+    @Override
+    public synchronized void close() {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    /**
+     * writeUTF no admite mas de 64KB y los cuerpos pueden ser mayores
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeShort(values.length);
+        for (String value : values)
+            writeString(out, value);
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] values = new String[in.readUnsignedShort()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = readString(in);
+        return values;
+    }
+}
@@ -0,0 +1,346 @@
+package twitter.persistence;
+
+import twitter4j.Status;
+import twitter4j.User;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * clase que guarda en disco los ultimos Status y User recibidos para que las
+ * siguientes ejecuciones empiecen con la cache caliente y solo pidan a
+ * twitter los status nuevos.
+ * <p>
+ * El archivo es de solo añadir: una cabecera y a continuacion registros
+ * [longitud][tipo][id][objeto serializado]. Al leerlo se mapea en memoria y
+ * solo se indexan las posiciones de cada registro, los objetos se
+ * deserializan cuando se piden. Cuando crece demasiado se compacta
+ * reescribiendolo con los registros mas recientes.
+ * <p>
+ * Varios procesos (el daemon y un comando sin daemon) pueden guardar en el
+ * mismo archivo: al guardar se toma un bloqueo exclusivo sobre archivo.lock
+ * y se vuelve a indexar el archivo antes de añadir, asi los registros de
+ * otros procesos se conservan y solo se corta un registro final incompleto
+ *
+ * @author fsancheztemprano
+ */
+public class PersistTimelineCache implements Persistable {
+    /**
+     * ubicacion por defecto del archivo de la cache, junto a token.dat
+     */
+    public static final File DEFAULT_FILE = new File("timeline.dat");
+
+    private static final int MAGIC = 0x4A54574C;
+    private static final int HEADER = 4;
+    /**
+     * bytes de cada registro antes del objeto: longitud(4) + tipo(1) + id(8)
+     */
+    private static final int RECORD_HEADER = 13;
+    private static final byte STATUS = 1;
+    private static final byte USER = 2;
+    /**
+     * numero de status y usuarios que se conservan al compactar
+     */
+    private static final int MAX_STATUSES = 500;
+    private static final int MAX_USERS = 2000;
+    private static final int MAX_RECORDS = 4 * (MAX_STATUSES + MAX_USERS);
+    /**
+     * un bloqueo por archivo dentro del proceso, FileLock solo excluye a
+     * otros procesos
+     */
+    private static final Map<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * parametro con la ubicacion del archivo de la cache
+     */
+    private final File file;
+    private final File lockFile;
+    private final ReentrantLock lock;
+    private MappedByteBuffer map;
+    private int validLength;
+    private int records;
+    private final TreeMap<Long, Integer> statusOffsets = new TreeMap<>();
+    private final LinkedHashMap<Long, Integer> userOffsets = new LinkedHashMap<>();
+    private final TreeMap<Long, Status> pendingStatuses = new TreeMap<>();
+    private final LinkedHashMap<Long, User> pendingUsers = new LinkedHashMap<>();
+
+    public PersistTimelineCache() {
+        this(DEFAULT_FILE);
+    }
+
+    /**
+     * @param file - archivo de la cache, por ejemplo el de otra cuenta
+     */
+    public PersistTimelineCache(File file) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+        this.lock = LOCKS.computeIfAbsent(file.getAbsolutePath(), key -> new ReentrantLock());
+    }
+
+    /**
+     * deja la cache vacia, sin tocar el archivo
+     */
+    @Override
+    public synchronized void setDefault() {
+        map = null;
+        validLength = 0;
+        records = 0;
+        statusOffsets.clear();
+        userOffsets.clear();
+        pendingStatuses.clear();
+        pendingUsers.clear();
+    }
+
+    /**
+     * mapea el archivo en memoria e indexa sus registros. Un registro final
+     * incompleto (escritura interrumpida) se corta
+     *
+     * @throws IOException si el archivo no existe o no es una cache valida
+     */
+    @Override
+    public synchronized void readKey() throws IOException {
+        setDefault();
+        if (!file.exists())
+            throw new FileNotFoundException(file.getPath());
+        locked(() -> {
+            if (!index())
+                throw new IOException("Invalid cache file " + file);
+        });
+    }
+
+    /**
+     * añade al archivo los status y usuarios pendientes, o lo compacta si
+     * supera el numero maximo de registros
+     */
+    @Override
+    public synchronized void saveKey() {
+        if (pendingStatuses.isEmpty() && pendingUsers.isEmpty())
+            return;
+        try {
+            locked(() -> {
+                // el archivo puede haber crecido con los registros de otro proceso
+                index();
+                if (records + pendingStatuses.size() + pendingUsers.size() > MAX_RECORDS)
+                    compact();
+                else
+                    append();
+                pendingStatuses.clear();
+                pendingUsers.clear();
+                index();
+            });
+        } catch (IOException e) {
+            System.out.println("IOException on saving timeline cache ***");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * operacion sobre el archivo con el bloqueo exclusivo
+     */
+    @FunctionalInterface
+    private interface Operation {
+        void run() throws IOException;
+    }
+
+    private void locked(Operation operation) throws IOException {
+        lock.lock();
+        try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // el bloqueo se libera al cerrar el canal
+            lockChannel.lock();
+            operation.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * indexa el archivo tal y como esta ahora, sin tocar los pendientes.
+     * Con el bloqueo tomado nadie esta escribiendo, asi que un registro final
+     * incompleto es de un proceso que termino a mitad y se corta. Solo se
+     * corta por detras del ultimo registro completo, que es hasta donde
+     * leen los demas procesos, asi que sus mapeos siguen siendo validos
+     *
+     * @return - false si el archivo no existe o no es una cache valida
+     */
+    private boolean index() throws IOException {
+        map = null;
+        validLength = 0;
+        records = 0;
+        statusOffsets.clear();
+        userOffsets.clear();
+        if (!file.exists())
+            return false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.limit() < HEADER || map.getInt(0) != MAGIC) {
+                map = null;
+                return false;
+            }
+            int pos = HEADER;
+            while (pos + RECORD_HEADER <= map.limit()) {
+                int length = map.getInt(pos);
+                if (length < 0 || pos + RECORD_HEADER + length > map.limit())
+                    break;
+                long id = map.getLong(pos + 5);
+                if (map.get(pos + 4) == STATUS) {
+                    statusOffsets.put(id, pos);
+                } else {
+                    userOffsets.remove(id);
+                    userOffsets.put(id, pos);
+                }
+                records++;
+                pos += RECORD_HEADER + length;
+            }
+            validLength = pos;
+            if (size > pos) {
+                channel.truncate(pos);
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, pos);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * guarda un status (y su autor) para el proximo saveKey
+     *
+     * @param status - status recibido de twitter
+     */
+    public synchronized void put(Status status) {
+        pendingStatuses.put(status.getId(), status);
+        if (status.getUser() != null)
+            put(status.getUser());
+    }
+
+    /**
+     * guarda un usuario para el proximo saveKey
+     *
+     * @param user - usuario recibido de twitter
+     */
+    public synchronized void put(User user) {
+        pendingUsers.remove(user.getId());
+        pendingUsers.put(user.getId(), user);
+    }
+
+    /**
+     * @return - el mayor ID de status guardado, 0 si no hay ninguno
+     */
+    public synchronized long getMaxStatusId() {
+        long max = statusOffsets.isEmpty() ? 0 : statusOffsets.lastKey();
+        return pendingStatuses.isEmpty() ? max : Math.max(max, pendingStatuses.lastKey());
+    }
+
+    /**
+     * @param count - numero maximo de status a devolver
+     * @return - los status mas recientes, del mas nuevo al mas antiguo
+     */
+    public synchronized List<Status> getLatestStatuses(int count) {
+        TreeSet<Long> ids = new TreeSet<>(statusOffsets.keySet());
+        ids.addAll(pendingStatuses.keySet());
+        List<Status> latest = new ArrayList<>(Math.min(count, ids.size()));
+        for (Iterator<Long> it = ids.descendingIterator(); it.hasNext() && latest.size() < count; ) {
+            Status status = getStatus(it.next());
+            if (status != null)
+                latest.add(status);
+        }
+        return latest;
+    }
+
+    /**
+     * @param id - ID del status
+     * @return - status guardado o null si no esta
+     */
+    public synchronized Status getStatus(long id) {
+        Status status = pendingStatuses.get(id);
+        if (status != null)
+            return status;
+        Integer pos = statusOffsets.get(id);
+        return pos == null ? null : (Status) read(pos);
+    }
+
+    /**
+     * @param id - ID del usuario
+     * @return - usuario guardado o null si no esta
+     */
+    public synchronized User getUser(long id) {
+        User user = pendingUsers.get(id);
+        if (user != null)
+            return user;
+        Integer pos = userOffsets.get(id);
+        return pos == null ? null : (User) read(pos);
+    }
+
+    private Object read(int pos) {
+        byte[] bytes = new byte[map.getInt(pos)];
+        ByteBuffer record = map.duplicate();
+        record.position(pos + RECORD_HEADER);
+        record.get(bytes);
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private void append() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (validLength == 0)
+                out.writeInt(MAGIC);
+            for (Status status : pendingStatuses.values())
+                writeRecord(out, STATUS, status.getId(), status);
+            for (User user : pendingUsers.values())
+                writeRecord(out, USER, user.getId(), user);
+            channel.truncate(validLength);
+            channel.position(validLength);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    private void compact() throws IOException {
+        List<Status> statuses = getLatestStatuses(MAX_STATUSES);
+        LinkedHashMap<Long, User> users = new LinkedHashMap<>();
+        List<Long> userIds = new ArrayList<>(userOffsets.keySet());
+        for (Long id : pendingUsers.keySet()) {
+            userIds.remove(id);
+            userIds.add(id);
+        }
+        for (int i = Math.max(0, userIds.size() - MAX_USERS); i < userIds.size(); i++) {
+            User user = getUser(userIds.get(i));
+            if (user != null)
+                users.put(user.getId(), user);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            for (int i = statuses.size() - 1; i >= 0; i--)
+                writeRecord(out, STATUS, statuses.get(i).getId(), statuses.get(i));
+            for (User user : users.values())
+                writeRecord(out, USER, user.getId(), user);
+        }
+        map = null;
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, long id, Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(object);
+        }
+        out.writeInt(bytes.size());
+        out.writeByte(type);
+        out.writeLong(id);
+        bytes.writeTo(out);
+    }
+}